@@ -0,0 +1,106 @@
+package js.tools.ant.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipOutputStream;
+
+import js.tools.ant.task.BuildSamsungTvApp;
+import js.tools.ant.util.Log;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * ZIP assembly performed by Samsung TV application build. Benchmarks invoke private
+ * <code>BuildSamsungTvApp.addFileToArchive</code> on a mixed synthetic tree and on a tree with only HTML files, the
+ * latter measuring HTML rewriting, that is, scripts injection and line endings conversion. Archive is written to a
+ * null output stream so that measurements do not include disk writes.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ArchiveBenchmark
+{
+  @Param("1000")
+  public int size;
+
+  @Param("4096")
+  public int fileSize;
+
+  private File sourceDir;
+  private File htmlDir;
+  private File archiveFile;
+  private Log log;
+  private Method addFileToArchive;
+
+  @Setup
+  public void setup() throws Exception
+  {
+    sourceDir = SyntheticTree.create(size, fileSize);
+    htmlDir = SyntheticTree.create(size, fileSize, "htm");
+
+    log = new Log(null, BuildSamsungTvApp.class)
+    {
+      @Override
+      public boolean isEnabled(int level)
+      {
+        return false;
+      }
+    };
+    archiveFile = new File(sourceDir, "archive.zip");
+    addFileToArchive = BuildSamsungTvApp.class.getDeclaredMethod("addFileToArchive", File.class, File.class, ZipOutputStream.class, File.class, Log.class);
+    addFileToArchive.setAccessible(true);
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    SyntheticTree.delete(sourceDir);
+    SyntheticTree.delete(htmlDir);
+  }
+
+  @Benchmark
+  public void assembleArchive() throws Exception
+  {
+    archive(sourceDir);
+  }
+
+  @Benchmark
+  public void rewriteHtml() throws Exception
+  {
+    archive(htmlDir);
+  }
+
+  private void archive(File dir) throws Exception
+  {
+    ZipOutputStream archive = new ZipOutputStream(new NullOutputStream());
+    addFileToArchive.invoke(null, dir, dir, archive, archiveFile, log);
+    archive.close();
+  }
+
+  private static class NullOutputStream extends OutputStream
+  {
+    @Override
+    public void write(int b) throws IOException
+    {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package js.tools.ant.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import js.tools.ant.task.BuildConfig;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.w3c.dom.Document;
+
+/**
+ * Application descriptor merging performed by BuildConfig task. Synthetic application descriptor and its included
+ * variant descriptor have <code>size</code> sections, every one with {@link #ELEMENTS} elements, merged by private
+ * <code>BuildConfig.Loader</code> into a single document.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DescriptorBenchmark
+{
+  /** Elements count for every descriptor section. */
+  private static final int ELEMENTS = 50;
+
+  @Param("100")
+  public int size;
+
+  private File configDir;
+  private Method createDocument;
+  private Method loadXML;
+  private Constructor<?> loaderConstructor;
+
+  @Setup
+  public void setup() throws Exception
+  {
+    configDir = File.createTempFile("synthetic-config", "");
+    configDir.delete();
+
+    // descriptor layout follows application descriptor convention: sections and a trailing include for variant file
+    SyntheticTree.write(new File(configDir, "app-descriptor.xml"), descriptor("<include file=\"app.xml\" />"));
+    SyntheticTree.write(new File(configDir, "app.xml"), descriptor(""));
+
+    Class<?> loaderClass = Class.forName(BuildConfig.class.getName() + "$Loader");
+    loaderConstructor = loaderClass.getDeclaredConstructor(Document.class, File.class);
+    loaderConstructor.setAccessible(true);
+    createDocument = BuildConfig.class.getDeclaredMethod("createDocument");
+    createDocument.setAccessible(true);
+    loadXML = BuildConfig.class.getDeclaredMethod("loadXML", InputStream.class, loaderClass);
+    loadXML.setAccessible(true);
+  }
+
+  private String descriptor(String include)
+  {
+    StringBuilder descriptor = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n");
+    descriptor.append("<app-descriptor>\r\n");
+    for(int i = 0; i < size; ++i) {
+      descriptor.append(String.format("\t<section-%03d>\r\n", i));
+      for(int j = 0; j < ELEMENTS; ++j) {
+        descriptor.append(String.format("\t\t<service-%03d interface=\"js.bench.Service%d\" class=\"js.bench.ServiceImpl%d\" type=\"POJO\" />\r\n", j, j, j));
+      }
+      descriptor.append(String.format("\t</section-%03d>\r\n", i));
+    }
+    descriptor.append(include);
+    descriptor.append("</app-descriptor>\r\n");
+    return descriptor.toString();
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    SyntheticTree.delete(configDir);
+  }
+
+  @Benchmark
+  public Document mergeDescriptor() throws Exception
+  {
+    Document document = (Document)createDocument.invoke(null);
+    Object loader = loaderConstructor.newInstance(document, configDir);
+    InputStream stream = new FileInputStream(new File(configDir, "app-descriptor.xml"));
+    try {
+      loadXML.invoke(null, stream, loader);
+    }
+    finally {
+      stream.close();
+    }
+    return document;
+  }
+}
@@ -0,0 +1,84 @@
+package js.tools.ant.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import js.tools.ant.util.Log;
+
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Logger overhead for the per-file debug message from Samsung TV application build, on a build logging at info level,
+ * that is, debug messages are discarded, and for an info message that is actually formatted and printed to a null
+ * stream.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LogBenchmark
+{
+  private static final String FILE = "scripts/js/edu/pedia/hello/IndexPage.js";
+
+  private Log log;
+
+  @Setup
+  public void setup()
+  {
+    PrintStream nullStream = new PrintStream(new OutputStream()
+    {
+      @Override
+      public void write(int b)
+      {
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len)
+      {
+      }
+    });
+    DefaultLogger logger = new DefaultLogger();
+    logger.setMessageOutputLevel(Project.MSG_INFO);
+    logger.setOutputPrintStream(nullStream);
+    logger.setErrorPrintStream(nullStream);
+    Project project = new Project();
+    project.addBuildListener(logger);
+    log = new Log(project, LogBenchmark.class);
+  }
+
+  @Benchmark
+  public void debugDiscarded()
+  {
+    log.debug("process file: |%s|", FILE);
+  }
+
+  @Benchmark
+  public void debugSupplierDiscarded()
+  {
+    log.debug(new Log.Message()
+    {
+      @Override
+      public String get()
+      {
+        return "process file: |" + FILE + "|";
+      }
+    });
+  }
+
+  @Benchmark
+  public void infoFormatted()
+  {
+    log.info("process file: |%s|", FILE);
+  }
+}
@@ -0,0 +1,95 @@
+package js.tools.ant.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import js.tools.ant.util.DigestCache;
+import js.tools.ant.util.Utils;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Source files walk and digest, as performed by Sync task on incremental synchronization.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SyncBenchmark
+{
+  private static final String ALGORITHM = "SHA-256";
+
+  @Param("1000")
+  public int size;
+
+  @Param("4096")
+  public int fileSize;
+
+  private File sourceDir;
+  private File cacheFile;
+  private DigestCache digestCache;
+
+  @Setup
+  public void setup() throws IOException, InterruptedException
+  {
+    sourceDir = SyntheticTree.create(size, fileSize);
+    cacheFile = File.createTempFile("digest", ".cache");
+    cacheFile.delete();
+    // digests computed for files younger than time granularity are not trusted by cache
+    Thread.sleep(DigestCache.TIME_GRANULARITY + 100);
+    digestCache = DigestCache.getInstance(null, cacheFile);
+    for(String file : scan()) {
+      digestCache.getDigest(new File(sourceDir, file), ALGORITHM);
+    }
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    SyntheticTree.delete(sourceDir);
+    cacheFile.delete();
+  }
+
+  @Benchmark
+  public String[] walk()
+  {
+    return scan();
+  }
+
+  @Benchmark
+  public void walkAndDigest(Blackhole blackhole) throws IOException
+  {
+    for(String file : scan()) {
+      blackhole.consume(Utils.getFileDigest(new File(sourceDir, file), ALGORITHM));
+    }
+  }
+
+  @Benchmark
+  public void walkAndCachedDigest(Blackhole blackhole) throws IOException
+  {
+    for(String file : scan()) {
+      blackhole.consume(digestCache.getDigest(new File(sourceDir, file), ALGORITHM));
+    }
+  }
+
+  private String[] scan()
+  {
+    DirectoryScanner scanner = new DirectoryScanner();
+    scanner.setBasedir(sourceDir);
+    scanner.scan();
+    return scanner.getIncludedFiles();
+  }
+}
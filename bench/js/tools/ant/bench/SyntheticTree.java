@@ -0,0 +1,130 @@
+package js.tools.ant.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Generator for synthetic source trees used by benchmarks. Generated tree is deterministic for given size: files are
+ * distributed into nested directories, at most {@link #FILES_PER_DIR} per directory, and have pseudo-random content
+ * with fixed seed. File extensions rotate through HTML, style, script and image so that tree resembles a site build.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public final class SyntheticTree
+{
+  /** Maximum number of files per directory. */
+  public static final int FILES_PER_DIR = 50;
+
+  private static final String[] EXTENSIONS = new String[]
+  {
+      "htm", "css", "js", "png"
+  };
+
+  private static final String HTML = "<!DOCTYPE html>\r\n<html>\r\n<head>\r\n<meta charset=\"UTF-8\" />\r\n<title>Synthetic</title>\r\n<link href=\"styles/index.css\" rel=\"stylesheet\" />\r\n</head>\r\n<body>\r\n%s</body>\r\n</html>\r\n";
+
+  /**
+   * Create temporary directory and fill it with synthetic files.
+   * 
+   * @param size the number of files,
+   * @param fileSize approximate file size, in bytes.
+   * @return created directory.
+   * @throws IOException if files creation fails.
+   */
+  public static File create(int size, int fileSize) throws IOException
+  {
+    return create(size, fileSize, EXTENSIONS);
+  }
+
+  /**
+   * Create temporary directory and fill it with synthetic files having given extensions, in rotation.
+   * 
+   * @param size the number of files,
+   * @param fileSize approximate file size, in bytes,
+   * @param extensions file extensions.
+   * @return created directory.
+   * @throws IOException if files creation fails.
+   */
+  public static File create(int size, int fileSize, String... extensions) throws IOException
+  {
+    File rootDir = File.createTempFile("synthetic-tree", "");
+    rootDir.delete();
+    Random random = new Random(size);
+    for(int i = 0; i < size; ++i) {
+      File dir = new File(rootDir, String.format("d%03d/d%03d", i / (FILES_PER_DIR * FILES_PER_DIR), (i / FILES_PER_DIR) % FILES_PER_DIR));
+      dir.mkdirs();
+      String extension = extensions[i % extensions.length];
+      File file = new File(dir, String.format("f%06d.%s", i, extension));
+      OutputStream stream = new FileOutputStream(file);
+      try {
+        if(extension.equals("htm")) {
+          stream.write(html(random, fileSize).getBytes("UTF-8"));
+        }
+        else {
+          byte[] content = new byte[fileSize];
+          random.nextBytes(content);
+          stream.write(content);
+        }
+      }
+      finally {
+        stream.close();
+      }
+    }
+    return rootDir;
+  }
+
+  /**
+   * Create file with given content.
+   * 
+   * @param file file to create,
+   * @param content file content.
+   * @throws IOException if file creation fails.
+   */
+  public static void write(File file, String content) throws IOException
+  {
+    file.getParentFile().mkdirs();
+    OutputStream stream = new FileOutputStream(file);
+    try {
+      stream.write(content.getBytes("UTF-8"));
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  /**
+   * Remove synthetic tree.
+   * 
+   * @param file tree root or descendant file.
+   */
+  public static void delete(File file)
+  {
+    File[] files = file.listFiles();
+    if(files != null) {
+      for(File child : files) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static String html(Random random, int fileSize)
+  {
+    StringBuilder body = new StringBuilder();
+    while(body.length() < fileSize) {
+      body.append("<p>");
+      for(int i = 0; i < 16; ++i) {
+        body.append((char)('a' + random.nextInt(26)));
+      }
+      body.append("</p>\r\n");
+    }
+    return String.format(HTML, body);
+  }
+
+  private SyntheticTree()
+  {
+  }
+}
@@ -17,6 +17,7 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import js.tools.ant.util.Log;
+import js.tools.ant.util.Metrics;
 import js.tools.commons.util.Files;
 
 import org.apache.tools.ant.BuildException;
@@ -82,8 +83,6 @@ public class BuildConfig extends Task
   private String context;
   private String buildPath = DEF_BUILD_PATH;
 
-  private Log log;
-
   public void setConfig(String configPath)
   {
     this.configPath = configPath;
@@ -108,7 +107,7 @@ public class BuildConfig extends Task
   public void execute() throws BuildException
   {
     Project project = getProject();
-    log = new Log(project, Deploy.class);
+    Log log = new Log(project, BuildConfig.class);
     File configDir = new File(project.getBaseDir(), configPath);
     File variantDir = new File(configDir, variant);
     File buildDir = new File(project.getBaseDir(), buildPath);
@@ -117,19 +116,19 @@ public class BuildConfig extends Task
     try {
       File contextFile = new File(variantDir, CONTEXT_XML);
       if(contextFile.exists()) {
-        if(context == null) {
-          context = project.getName();
-        }
-        Files.copy(contextFile, new File(buildDir, context + ".xml"));
+        String contextName = context != null ? context : project.getName();
+        Files.copy(contextFile, new File(buildDir, contextName + ".xml"));
       }
 
       Files.copy(new File(variantDir, WEB_XML), new File(buildDir, WEB_XML));
       log.debug("Create deployment descriptor.");
 
+      Metrics.Span span = Metrics.getInstance(project).start("config.parse");
       Document document = createDocument();
       Loader loader = new Loader(document, variantDir);
       loadXML(new FileInputStream(new File(configDir, APP_DESCRIPTOR_XML)), loader);
       serializeDocument(document, new File(buildDir, APP_XML));
+      span.end();
       log.debug("Create application descriptor.");
     }
     catch(Exception e) {
@@ -0,0 +1,317 @@
+package js.tools.ant.task;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+
+import js.tools.ant.util.Log;
+import js.tools.ant.util.Metrics;
+import js.tools.ant.util.Utils;
+import js.tools.ant.util.ZipReader;
+import js.tools.ant.util.ZipWriter;
+import js.tools.commons.util.Files;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * Build preview web archive from {@link BuildResources} and {@link BuildConfig} outputs. Site directory files are
+ * stored on archive root while configuration files are stored on their standard locations: <code>web.xml</code> and
+ * <code>app.xml</code> on <code>WEB-INF</code> and context descriptor as <code>META-INF/context.xml</code>. If build
+ * directory has no <code>web.xml</code> this task uses a preview deployment descriptor with preview servlet configured
+ * for current project directory.
+ * <p>
+ * Archive entries are streamed directly to archive file. Already compressed files, like images, fonts or archives, are
+ * stored while the rest are deflated. If archive file exists from a previous build, entries with unchanged content are
+ * copied raw from previous archive, without compressing them again.
+ * <table border="1" style="border-collapse:collapse;" summary="">
+ * <tr>
+ * <td>Attribute
+ * <td>Description
+ * <td>Required
+ * <tr>
+ * <td><b>site</b>
+ * <td>Site directory created by {@link BuildResources}, relative to project directory. Default to
+ * <code>build/site</code>.
+ * <td>No
+ * <tr>
+ * <td><b>build</b>
+ * <td>Build directory where {@link BuildConfig} creates configuration files, relative to project directory. Default to
+ * <code>build</code>.
+ * <td>No
+ * <tr>
+ * <td><b>context</b>
+ * <td>Context name used for context descriptor and default archive name. Default to project name.
+ * <td>No
+ * <tr>
+ * <td><b>file</b>
+ * <td>Web archive file, relative to project directory. Default to <code>context-name.war</code> on build directory.
+ * <td>No
+ * <tr>
+ * <td><b>store</b>
+ * <td>Comma separated extensions of files to store uncompressed, replacing default list of already compressed file
+ * types.
+ * <td>No
+ * </table>
+ * 
+ * <p>
+ * Standard usage of this task is as follow:
+ * 
+ * <pre>
+ *  &lt;taskdef name="js.BuildPreviewWar" className="js.tools.ant.task.BuildPreviewWar" /&gt;
+ *  . . .
+ *  &lt;target name="build-preview-war"&gt;
+ *      &lt;js.BuildResources site="build/site" /&gt;
+ *      &lt;js.BuildConfig variant="local" /&gt;
+ *      &lt;js.BuildPreviewWar site="build/site" /&gt;
+ *  &lt;/target&gt;
+ * </pre>
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class BuildPreviewWar extends Task
+{
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  private static final String DEF_SITE_PATH = "build/site";
+  private static final String DEF_BUILD_PATH = "build";
+  private static final String PREVIEW_WEB_XML = "preview-web.xml";
+  private static final String WEB_XML = "web.xml";
+  private static final String APP_XML = "app.xml";
+  private static final String MANIFEST = "Manifest-Version: 1.0\r\nCreated-By: js.tools.ant\r\n\r\n";
+
+  /** Extensions of already compressed files, stored as they are. */
+  private static final Set<String> STORED_EXTENSIONS = new HashSet<String>(Arrays.asList("png", "jpg", "jpeg", "gif", "webp", "ico", "woff", "woff2", "zip", "jar", "war", "gz", "tgz", "bz2", "xz", "7z", "mp3", "mp4", "ogg", "webm", "avi", "pdf"));
+
+  private String sitePath = DEF_SITE_PATH;
+  private String buildPath = DEF_BUILD_PATH;
+  private String context;
+  private String archivePath;
+  private Set<String> storedExtensions = STORED_EXTENSIONS;
+
+  public void setSite(String sitePath)
+  {
+    this.sitePath = sitePath;
+  }
+
+  public void setBuild(String buildPath)
+  {
+    this.buildPath = buildPath;
+  }
+
+  public void setContext(String context)
+  {
+    this.context = context;
+  }
+
+  public void setFile(String archivePath)
+  {
+    this.archivePath = archivePath;
+  }
+
+  public void setStore(String store)
+  {
+    Set<String> storedExtensions = new HashSet<String>();
+    for(String extension : store.split(",")) {
+      extension = extension.trim().toLowerCase();
+      if(!extension.isEmpty()) {
+        storedExtensions.add(extension.startsWith(".") ? extension.substring(1) : extension);
+      }
+    }
+    this.storedExtensions = storedExtensions;
+  }
+
+  @Override
+  public void execute() throws BuildException
+  {
+    Project project = getProject();
+    // project can be null only on tests
+    File projectDir = project != null ? project.getBaseDir() : new File(".");
+
+    File siteDir = resolve(projectDir, sitePath);
+    if(!siteDir.isDirectory()) {
+      Utils.badArgument(this, "Site directory does not exist or is an ordinary file. Please fix <site> attribute.");
+    }
+    File buildDir = resolve(projectDir, buildPath);
+    String contextName = context != null ? context : project != null ? project.getName() : null;
+    if(contextName == null && archivePath == null) {
+      Utils.badArgument(this, "Context name is missing. Please set <context> attribute.");
+    }
+    File archiveFile = archivePath != null ? resolve(projectDir, archivePath) : new File(buildDir, contextName + ".war");
+    archiveFile.getAbsoluteFile().getParentFile().mkdirs();
+
+    Log log = new Log(project, BuildPreviewWar.class);
+    Metrics metrics = Metrics.getInstance(project);
+    Metrics.Span span = metrics.start("war.build");
+
+    File tempFile = new File(archiveFile.getPath() + ".tmp");
+    ZipReader previousArchive = null;
+    Statistics statistics = new Statistics();
+    try {
+      previousArchive = openArchive(archiveFile, log);
+      ZipWriter archive = new ZipWriter(new FileOutputStream(tempFile));
+      try {
+        archive.write("META-INF/MANIFEST.MF", MANIFEST.getBytes(CHARSET), System.currentTimeMillis(), true);
+
+        File contextFile = contextName != null ? new File(buildDir, contextName + ".xml") : null;
+        if(contextFile != null && contextFile.isFile()) {
+          addFile(archive, "META-INF/context.xml", contextFile, previousArchive, statistics);
+        }
+
+        File webXmlFile = new File(buildDir, WEB_XML);
+        if(webXmlFile.isFile()) {
+          addFile(archive, "WEB-INF/" + WEB_XML, webXmlFile, previousArchive, statistics);
+        }
+        else {
+          log.debug("Missing build deployment descriptor. Use preview descriptor.");
+          archive.write("WEB-INF/" + WEB_XML, previewDescriptor(projectDir, contextName), System.currentTimeMillis(), true);
+        }
+
+        File appXmlFile = new File(buildDir, APP_XML);
+        if(appXmlFile.isFile()) {
+          addFile(archive, "WEB-INF/" + APP_XML, appXmlFile, previousArchive, statistics);
+        }
+
+        DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setBasedir(siteDir);
+        scanner.scan();
+        String[] paths = scanner.getIncludedFiles();
+        // sort paths to have deterministic archive entries order
+        Arrays.sort(paths);
+        for(String path : paths) {
+          File file = new File(siteDir, path);
+          // here we have the same peculiar condition as on BuildSamsungTvApp: archive file inside site directory
+          if(file.getAbsoluteFile().equals(archiveFile.getAbsoluteFile()) || file.getAbsoluteFile().equals(tempFile.getAbsoluteFile())) {
+            continue;
+          }
+          String name = Files.path2unix(path);
+          if(name.startsWith("WEB-INF/") || name.startsWith("META-INF/")) {
+            log.warning("Site file |%s| overlaps configuration entries. Ignore it.", name);
+            continue;
+          }
+          addFile(archive, name, file, previousArchive, statistics);
+        }
+      }
+      finally {
+        archive.close();
+      }
+    }
+    catch(IOException e) {
+      tempFile.delete();
+      throw new BuildException(e);
+    }
+    finally {
+      if(previousArchive != null) {
+        try {
+          previousArchive.close();
+        }
+        catch(IOException ignore) {}
+      }
+    }
+
+    // on some platforms rename fails if target file exists
+    archiveFile.delete();
+    if(!tempFile.renameTo(archiveFile)) {
+      tempFile.delete();
+      throw new BuildException(String.format("Fail to create web archive |%s|.", archiveFile));
+    }
+
+    span.end();
+    metrics.count("war.entries", statistics.entriesCount);
+    metrics.count("war.reused.entries", statistics.reusedCount);
+    metrics.count("war.bytes", archiveFile.length());
+    log.info("Build web archive |%s|. Reuse |%d| of |%d| file entries.", archiveFile, statistics.reusedCount, statistics.entriesCount);
+  }
+
+  /**
+   * Add file entry to archive. If previous archive has an entry with the same name, content and compression method,
+   * entry is copied raw from previous archive.
+   */
+  private void addFile(ZipWriter archive, String name, File file, ZipReader previousArchive, Statistics statistics) throws IOException
+  {
+    ++statistics.entriesCount;
+    boolean compress = !storedExtensions.contains(Files.getExtension(file).toLowerCase());
+    long crc = ZipWriter.crc(file);
+
+    ZipReader.Entry previousEntry = previousArchive != null ? previousArchive.getEntry(name) : null;
+    if(previousEntry != null && previousEntry.getCrc() == crc && previousEntry.getSize() == file.length() && previousEntry.getMethod() == (compress ? ZipEntry.DEFLATED : ZipEntry.STORED)) {
+      archive.copy(previousArchive, previousEntry, file.lastModified());
+      ++statistics.reusedCount;
+      return;
+    }
+    archive.write(name, file, crc, compress);
+  }
+
+  /**
+   * Open previous archive, if any. Returns null if archive does not exist or is not readable, in which case all
+   * entries are compressed again.
+   */
+  private static ZipReader openArchive(File archiveFile, Log log)
+  {
+    if(!archiveFile.isFile()) {
+      return null;
+    }
+    try {
+      return new ZipReader(archiveFile);
+    }
+    catch(IOException e) {
+      log.warning("Cannot reuse previous web archive |%s|: %s", archiveFile, e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Create preview deployment descriptor from template, with project directory and display name filled in.
+   */
+  private static byte[] previewDescriptor(File projectDir, String contextName) throws IOException
+  {
+    InputStream stream = BuildPreviewWar.class.getResourceAsStream(PREVIEW_WEB_XML);
+    if(stream == null) {
+      throw new IOException(String.format("Missing preview deployment descriptor template |%s|.", PREVIEW_WEB_XML));
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      Files.copy(stream, bytes);
+    }
+    finally {
+      Files.close(stream);
+    }
+
+    String descriptor = new String(bytes.toByteArray(), CHARSET);
+    descriptor = descriptor.replace("<display-name></display-name>", "<display-name>" + escapeXML(contextName != null ? contextName : "") + "</display-name>");
+    descriptor = descriptor.replace("<param-value></param-value>", "<param-value>" + escapeXML(projectDir.getAbsolutePath()) + "</param-value>");
+    return descriptor.getBytes(CHARSET);
+  }
+
+  private static File resolve(File projectDir, String path)
+  {
+    File file = new File(path);
+    return file.isAbsolute() ? file : new File(projectDir, path);
+  }
+
+  private static String escapeXML(String text)
+  {
+    return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+
+  /**
+   * Archive entries statistics for a single task execution.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  private static class Statistics
+  {
+    int entriesCount;
+    int reusedCount;
+  }
+}
@@ -2,6 +2,7 @@ package js.tools.ant.task;
 
 import java.io.File;
 
+import js.tools.ant.util.Metrics;
 import js.wood.Builder;
 import js.wood.NamingStrategy;
 
@@ -86,18 +87,14 @@ public class BuildResources extends Task
   @Override
   public void execute() throws BuildException
   {
-    if(siteDir == null) {
-      siteDir = DEFAULT_SITE_DIR;
-    }
-    if(namingStrategy == null) {
-      namingStrategy = DEFAULT_NAMING_STRATEGY;
-    }
     try {
       Builder builder = new Builder(getProject().getBaseDir().getAbsolutePath());
       builder.setBuildNumber(buildNumber);
-      builder.setSiteDir(new File(siteDir));
-      builder.setNamingStrategy(namingStrategy);
+      builder.setSiteDir(new File(siteDir != null ? siteDir : DEFAULT_SITE_DIR));
+      builder.setNamingStrategy(namingStrategy != null ? namingStrategy : DEFAULT_NAMING_STRATEGY);
+      Metrics.Span span = Metrics.getInstance(getProject()).start("resources.build");
       builder.build();
+      span.end();
     }
     catch(Exception e) {
       throw new BuildException(e);
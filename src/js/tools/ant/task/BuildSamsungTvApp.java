@@ -14,6 +14,7 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import js.tools.ant.util.Log;
+import js.tools.ant.util.Metrics;
 import js.tools.ant.util.Utils;
 import js.tools.commons.util.Files;
 
@@ -125,9 +126,6 @@ public class BuildSamsungTvApp extends Task
     this.buildDir = buildDir;
   }
 
-  private Log log;
-  private File archiveFile;
-
   @Override
   public void execute() throws BuildException
   {
@@ -136,7 +134,7 @@ public class BuildSamsungTvApp extends Task
     }
 
     Project project = getProject();
-    this.log = new Log(project, BuildSamsungTvApp.class);
+    Log log = new Log(project, BuildSamsungTvApp.class);
 
     // project can be null only on tests
     File projectDir = project != null ? project.getBaseDir() : new File(".");
@@ -151,7 +149,7 @@ public class BuildSamsungTvApp extends Task
     String version = version(this.versionNumber, this.buildNumber);
     updateConfigXmlVersion(configDir, version);
     String archiveName = String.format("%1$s_%2$s_Europe_%3$tY%3$tm%3$td.zip", this.appName, version, new Date());
-    this.archiveFile = new File(buildDir, archiveName);
+    File archiveFile = new File(buildDir, archiveName);
 
     File archiveRelativePath = new File(this.buildDir);
     archiveRelativePath = new File(archiveRelativePath, archiveName);
@@ -159,11 +157,13 @@ public class BuildSamsungTvApp extends Task
       project.setNewProperty(ARCHIVE_PATH_ANT_PROPERTY, archiveRelativePath.getPath());
     }
 
+    Metrics metrics = Metrics.getInstance(project);
+    Metrics.Span span = metrics.start("samsung-tv.compress");
     ZipOutputStream archive = null;
     try {
-      archive = new ZipOutputStream(new FileOutputStream(this.archiveFile), CHARSET);
-      addFileToArchive(configDir, configDir, archive);
-      addFileToArchive(sourceDir, sourceDir, archive);
+      archive = new ZipOutputStream(new FileOutputStream(archiveFile), CHARSET);
+      addFileToArchive(configDir, configDir, archive, archiveFile, log);
+      addFileToArchive(sourceDir, sourceDir, archive, archiveFile, log);
     }
     catch(IOException e) {
       throw new BuildException(e);
@@ -171,9 +171,11 @@ public class BuildSamsungTvApp extends Task
     finally {
       Files.close(archive);
     }
+    span.end();
+    metrics.count("samsung-tv.bytes", archiveFile.length());
   }
 
-  private void addFileToArchive(File baseDir, File file, ZipOutputStream archive) throws IOException
+  private static void addFileToArchive(File baseDir, File file, ZipOutputStream archive, File archiveFile, Log log) throws IOException
   {
     if(file.isDirectory()) {
       File[] files = file.listFiles();
@@ -181,7 +183,7 @@ public class BuildSamsungTvApp extends Task
         return;
       }
       for(File childFile : files) {
-        addFileToArchive(baseDir, childFile, archive);
+        addFileToArchive(baseDir, childFile, archive, archiveFile, log);
       }
       return;
     }
@@ -189,8 +191,8 @@ public class BuildSamsungTvApp extends Task
     // here we have a peculiar condition but could happen and need to handle it:
     // if target directory is configured to be the same as config or context directories is possible to invoke this
     // method with file parameter equals with target archive file; this recursive append of itself leads to deadlock
-    if(file.equals(this.archiveFile)) {
-      this.log.debug("Ignore attempt to recursivelly append archive file to itself. This can happend when target directory is the same with context or config.");
+    if(file.equals(archiveFile)) {
+      log.debug("Ignore attempt to recursivelly append archive file to itself. This can happend when target directory is the same with context or config.");
       return;
     }
 
@@ -204,8 +206,7 @@ public class BuildSamsungTvApp extends Task
       zipEntryName += "l";
     }
 
-    assert this.log != null;
-    this.log.debug("process file: |%s|", zipEntryName);
+    log.debug("process file: |%s|", zipEntryName);
     archive.putNextEntry(new ZipEntry(zipEntryName));
 
     if(htmlFile) {
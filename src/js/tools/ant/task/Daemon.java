@@ -0,0 +1,130 @@
+package js.tools.ant.task;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import js.tools.ant.util.BuildDaemon;
+import js.tools.ant.util.Log;
+import js.tools.ant.util.Utils;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DynamicAttribute;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * Forward task execution to local build daemon, see {@link BuildDaemon}. Daemon keeps a warm JVM across Ant runs so
+ * that repeated development builds do not pay class loading, JIT compilation and caches loading on every run. Supported
+ * tasks are {@link BuildResources}, {@link PackScriptArchive}, {@link GenerateScriptDoc}, {@link BuildConfig} and
+ * {@link Sync}; all attributes not listed below are forwarded as they are to the named task. Nested elements are not
+ * supported. If daemon is not running or runs a different build of this library, task is executed on current JVM,
+ * unless <code>fallback</code> is false.
+ * <table border="1" style="border-collapse:collapse;" summary="">
+ * <tr>
+ * <td>Attribute
+ * <td>Description
+ * <td>Required
+ * <tr>
+ * <td><b>task</b>
+ * <td>Simple name of the task to execute, e.g. <code>Sync</code>.
+ * <td>Yes, unless <code>stop</code> is true
+ * <tr>
+ * <td><b>fallback</b>
+ * <td>Execute task on current JVM if daemon is not running or runs a different build. Default to true.
+ * <td>No
+ * <tr>
+ * <td><b>stop</b>
+ * <td>Request running daemon to stop. Default to false.
+ * <td>No
+ * </table>
+ * 
+ * <p>
+ * Daemon is started once, outside Ant, with <code>java js.tools.ant.util.BuildDaemon</code> and tasks are forwarded
+ * as follow:
+ * 
+ * <pre>
+ *  &lt;taskdef name="js.Daemon" className="js.tools.ant.task.Daemon" /&gt;
+ *  . . .
+ *  &lt;target name="build-resources"&gt;
+ *      &lt;js.Daemon task="BuildResources" site="build/site" /&gt;
+ *  &lt;/target&gt;
+ * </pre>
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class Daemon extends Task implements DynamicAttribute
+{
+  private String taskName;
+  private boolean fallback = true;
+  private boolean stop;
+
+  /** Attributes forwarded to named task. */
+  private final Map<String, String> attributes = new HashMap<String, String>();
+
+  public void setTask(String taskName)
+  {
+    this.taskName = taskName;
+  }
+
+  public void setFallback(boolean fallback)
+  {
+    this.fallback = fallback;
+  }
+
+  public void setStop(boolean stop)
+  {
+    this.stop = stop;
+  }
+
+  @Override
+  public void setDynamicAttribute(String name, String value) throws BuildException
+  {
+    attributes.put(name, value);
+  }
+
+  @Override
+  public void execute() throws BuildException
+  {
+    Log log = new Log(getProject(), Daemon.class);
+    if(stop) {
+      try {
+        if(!BuildDaemon.stop()) {
+          log.info("Build daemon is not running.");
+        }
+      }
+      catch(IOException e) {
+        throw new BuildException(e);
+      }
+      return;
+    }
+
+    if(taskName == null) {
+      Utils.badArgument(this, "Task name is missing. Please set <task> attribute.");
+    }
+    if(!BuildDaemon.TASKS.containsKey(taskName)) {
+      Utils.badArgument(this, String.format("Task |%s| is not supported. Please fix <task> attribute.", taskName));
+    }
+
+    if(BuildDaemon.forward(getProject(), taskName, attributes, getLogLevel(log), this)) {
+      return;
+    }
+    if(!fallback) {
+      throw new BuildException("Build daemon is not running or runs a different build.");
+    }
+    log.debug("Build daemon is not available. Execute |%s| on current JVM.", taskName);
+    BuildDaemon.execute(getProject(), taskName, attributes);
+  }
+
+  /** Get the most verbose level accepted by this project listeners. */
+  private static int getLogLevel(Log log)
+  {
+    for(int level = Project.MSG_DEBUG; level > Project.MSG_ERR; --level) {
+      if(log.isEnabled(level)) {
+        return level;
+      }
+    }
+    return Project.MSG_ERR;
+  }
+}
@@ -3,16 +3,21 @@ package js.tools.ant.task;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
-import js.server.client.AppsManager;
+import js.tools.ant.util.Agent;
 import js.tools.ant.util.Log;
+import js.tools.ant.util.Metrics;
+import js.tools.ant.util.ThrottledOutputStream;
+import js.tools.ant.util.TokenBucket;
 import js.tools.ant.util.Utils;
-import js.tools.commons.rmi.HttpRmi;
+import js.tools.ant.util.WarDelta;
+import js.tools.ant.util.ZipReader;
 import js.tools.commons.rmi.StreamHandler;
 import js.tools.commons.util.Files;
 
 import org.apache.tools.ant.BuildException;
-import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
 
 /**
@@ -46,9 +51,40 @@ import org.apache.tools.ant.Task;
  * <td><b>secure</b>
  * <td>Flag indicating that server connection is secure, that is, uses HTTPS protocol. Default to not secure HTTP.
  * <td>No
+ * <tr>
+ * <td><b>rate</b>
+ * <td>Upload bandwidth limit, in kilobytes per second. Default to unlimited.
+ * <td>No
+ * <tr>
+ * <td><b>burst</b>
+ * <td>Bytes count, in kilobytes, that can be sent at once without rate limit after an idle period. Default to one
+ * second of transfer at configured rate.
+ * <td>No
+ * <tr>
+ * <td><b>delta</b>
+ * <td>Send only entries changed from currently deployed archive. Requires an agent supporting delta deploy. Default to
+ * false.
+ * <td>No
+ * <tr>
+ * <td><b>hotReload</b>
+ * <td>Hot swap static resources and configuration changes without web context restart. Requires delta deploy. Default
+ * to false.
+ * <td>No
  * </table>
  * 
  * <p>
+ * On delta deploy this task gets entries CRC and size of currently deployed archive and sends a delta archive holding
+ * only changed and new entries, see {@link WarDelta}; agent rebuilds web archive from deployed one. If application is
+ * not deployed full archive is sent. If there are no changed entries application is not deployed again. Delta deploy is
+ * opt-in since it relies on agent support; if agent fails to provide deployed entries, e.g. does not support delta
+ * deploy, or archive cannot be read, a warning is logged and full archive is sent. If agent rejects delta, full archive
+ * is sent.
+ * <p>
+ * On hot reload mode delta changes are classified, see {@link WarDelta.Change}. If delta changes only static resources
+ * or application configuration, changed files are hot swapped on running web context, with configuration reloaded if
+ * the case; classes, libraries and container descriptors changes still restart web context. If agent is not able to
+ * hot swap, delta is deployed with context restart.
+ * <p>
  * Here is a sample code using all attributes:
  * 
  * <pre>
@@ -70,6 +106,10 @@ public class Deploy extends Task
   private String agent = AGENT_NAME;
   private String fileName;
   private boolean secure;
+  private int rate;
+  private int burst;
+  private boolean delta;
+  private boolean hotReload;
 
   public void setHost(String hostName)
   {
@@ -96,20 +136,38 @@ public class Deploy extends Task
     this.secure = secure;
   }
 
-  private Log log;
+  public void setRate(int rate)
+  {
+    this.rate = rate;
+  }
+
+  public void setBurst(int burst)
+  {
+    this.burst = burst;
+  }
+
+  public void setDelta(boolean delta)
+  {
+    this.delta = delta;
+  }
+
+  public void setHotReload(boolean hotReload)
+  {
+    this.hotReload = hotReload;
+  }
 
   @Override
   public void execute() throws BuildException
   {
-    Project project = getProject();
-    log = new Log(project, Deploy.class);
-
     if(host == null) {
       Utils.badArgument(this, "Host name is missing. Please set <host> attribute.");
     }
     if(fileName == null) {
       Utils.badArgument(this, "File name is missing. Please set <file> attribute.");
     }
+    if(hotReload && !delta) {
+      Utils.badArgument(this, "Hot reload requires delta deploy. Please fix <hotReload> or <delta> attribute.");
+    }
 
     String webContextURL = Utils.URL(secure, host, port, agent);
     try {
@@ -122,23 +180,118 @@ public class Deploy extends Task
 
   private void execute(String webContextURL) throws Exception
   {
-    HttpRmi rmi = new HttpRmi(webContextURL, AppsManager.class);
-    rmi.setReturnType(boolean.class);
-    rmi.setExceptions(IOException.class);
-
-    if(rmi.invoke("deploy", Files.basename(fileName), false, new StreamHandler<OutputStream>(OutputStream.class)
-    {
-      @Override
-      protected void handle(OutputStream outputStream) throws IOException
+    Log log = new Log(getProject(), Deploy.class);
+    final TokenBucket bucket = TokenBucket.create(rate, burst);
+    Agent agent = Agent.getInstance(getProject(), webContextURL);
+    final Metrics metrics = Metrics.getInstance(getProject());
+    final File archiveFile = new File(getProject().getBaseDir(), fileName);
+    String appName = Files.basename(fileName);
+
+    Metrics.Span span = metrics.start("deploy.upload");
+    Boolean deployed = delta ? deployDelta(agent, appName, archiveFile, hotReload, bucket, metrics, log) : null;
+    if(deployed == null) {
+      deployed = agent.deploy(appName, new StreamHandler<OutputStream>(OutputStream.class)
       {
-        File archiveFile = new File(getProject().getBaseDir(), fileName);
-        Files.copy(archiveFile, outputStream);
+        @Override
+        protected void handle(OutputStream outputStream) throws IOException
+        {
+          Files.copy(archiveFile, bucket != null ? new ThrottledOutputStream(outputStream, bucket) : outputStream);
+        }
+      });
+      if(deployed) {
+        metrics.count("deploy.uploaded.bytes", archiveFile.length());
       }
-    })) {
+    }
+    span.end();
+    if(deployed) {
       log.debug("Deployment of application archive |%s| complete.", fileName);
     }
     else {
       log.error("Fail to deploy |%s| application archive.", fileName);
     }
   }
+
+  /**
+   * Deploy only archive entries changed from currently deployed archive. Returns null if delta deploy is not possible
+   * and full archive should be deployed.
+   */
+  private static Boolean deployDelta(Agent agent, String appName, File archiveFile, boolean hotReload, final TokenBucket bucket, final Metrics metrics, Log log) throws Exception
+  {
+    Map<String, long[]> deployedEntries;
+    try {
+      deployedEntries = agent.getArchiveEntries(appName);
+    }
+    catch(Exception e) {
+      log.warning("Cannot get deployed archive entries for |%s|: %s. Deploy full archive.", appName, e);
+      return null;
+    }
+    if(deployedEntries == null) {
+      log.debug("Application |%s| is not deployed. Deploy full archive.", appName);
+      return null;
+    }
+
+    final ZipReader archive;
+    try {
+      archive = new ZipReader(archiveFile);
+    }
+    catch(IOException e) {
+      log.warning("Cannot read archive |%s|: %s. Deploy full archive.", archiveFile, e.getMessage());
+      return null;
+    }
+    try {
+      final WarDelta delta = new WarDelta(archive, deployedEntries);
+      if(delta.isEmpty()) {
+        log.info("Application |%s| is up to date.", appName);
+        return true;
+      }
+      WarDelta.Change change = delta.getChange();
+      log.info("Deploy |%s| delta: |%d| changed and |%d| removed of |%d| entries, |%s| change.", appName, delta.getChangedEntries().size(), delta.getRemovedEntries().size(), archive.getEntries().size(), change);
+      metrics.count("deploy.changed.entries", delta.getChangedEntries().size());
+      // delta can be sent twice, on hot swap and on deploy; bytes are counted only for the call that succeeded
+      final AtomicLong deltaBytes = new AtomicLong();
+      StreamHandler<OutputStream> deltaHandler = new StreamHandler<OutputStream>(OutputStream.class)
+      {
+        @Override
+        protected void handle(OutputStream outputStream) throws IOException
+        {
+          deltaBytes.set(delta.write(bucket != null ? new ThrottledOutputStream(outputStream, bucket) : outputStream));
+        }
+      };
+
+      if(hotReload && change != WarDelta.Change.CLASSES) {
+        if(hotSwap(agent, appName, change == WarDelta.Change.CONFIG, deltaHandler, log)) {
+          metrics.count("deploy.uploaded.bytes", deltaBytes.get());
+          metrics.count("deploy.hot.swaps", 1);
+          return true;
+        }
+        log.info("Hot swap of |%s| not possible. Deploy delta with context restart.", appName);
+      }
+
+      boolean deployed = agent.deployDelta(appName, deltaHandler);
+      if(deployed) {
+        metrics.count("deploy.uploaded.bytes", deltaBytes.get());
+        return true;
+      }
+      log.warning("Delta deploy of |%s| rejected by agent. Deploy full archive.", appName);
+      return null;
+    }
+    finally {
+      archive.close();
+    }
+  }
+
+  /**
+   * Hot swap delta without web context restart. Returns false if agent does not support hot swap or cannot hot swap
+   * this delta.
+   */
+  private static boolean hotSwap(Agent agent, String appName, boolean reloadConfig, StreamHandler<OutputStream> delta, Log log)
+  {
+    try {
+      return agent.hotSwap(appName, reloadConfig, delta);
+    }
+    catch(Exception e) {
+      log.warning("Hot swap of |%s| fails: %s", appName, e);
+      return false;
+    }
+  }
 }
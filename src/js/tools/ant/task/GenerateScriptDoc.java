@@ -1,11 +1,25 @@
 package js.tools.ant.task;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Properties;
 import java.util.Vector;
 
+import js.tools.ant.util.Log;
+import js.tools.ant.util.Metrics;
 import js.tools.ant.util.Utils;
+import js.tools.commons.rmi.FilesIterator;
+import js.tools.commons.util.Files;
 import js.tools.commons.util.Strings;
 import js.tools.script.doc.Main;
 
@@ -42,6 +56,24 @@ import org.apache.tools.ant.Task;
  * <td><b>link</b>
  * <td>This is in fact a nested element with a single attribute <code>href</code> - the URL of linked API.
  * <td>No
+ * <tr>
+ * <td><b>incremental</b>
+ * <td>Update only changed API files, default to false. See incremental mode description below.
+ * <td>No
+ * <tr>
+ * <td><b>linkcache</b>
+ * <td>Directory where package lists of linked APIs are cached. If missing, package lists are resolved by documentation
+ * generator on every run.
+ * <td>No
+ * <tr>
+ * <td><b>offline</b>
+ * <td>Use only cached package lists; linked APIs not present into cache are ignored, with a warning. Default to
+ * false.
+ * <td>No
+ * <tr>
+ * <td><b>refreshlinks</b>
+ * <td>Download package lists of linked APIs even if already cached. Default to false.
+ * <td>No
  * </table>
  * 
  * <p>
@@ -59,16 +91,50 @@ import org.apache.tools.ant.Task;
  *  &lt;/target&gt;
  * </pre>
  * 
+ * <p>
+ * If <code>linkcache</code> directory is configured, package list of every linked API is downloaded once, from
+ * <code>href</code> URL with <code>package-list</code> appended, and stored into a cache sub-directory named after
+ * link URL and a hash of it, so that distinct URLs do not share the sub-directory. Cached package list is used
+ * afterward, generator being invoked with <code>-linkoffline</code> option. If package list download fails, previously
+ * cached package list is still used. Download has connect and read timeouts so that an unresponsive server does not
+ * block the build. <code>href</code> URL can be a local directory, using <code>file:</code> protocol.
+ * 
+ * <p>
+ * In incremental mode this task keeps a digest index of source files, stored into a hidden file located on destination
+ * directory parent, e.g. <em>build/.api.index</em>. If no source file is changed since previous run API generation is
+ * not performed at all. Otherwise API is generated into a temporary directory and only new and changed files are
+ * copied to destination directory; stale files are removed. Untouched files preserve their timestamps so that
+ * subsequent {@link Sync} have less files to process.
+ * 
  * @author Iulian Rotaru
  * @since 1.0
  */
 public class GenerateScriptDoc extends Task
 {
+  /** Name of the file listing packages of a linked API. */
+  private static final String PACKAGE_LIST = "package-list";
+
+  /** Maximum length of readable prefix of link cache sub-directory name. */
+  private static final int LINK_CACHE_PREFIX_LENGTH = 48;
+
+  /** Number of linked API URL digest bytes used by link cache sub-directory name. */
+  private static final int LINK_CACHE_HASH_LENGTH = 8;
+
+  /** Package list download connect timeout, in milliseconds. */
+  private static final int LINK_CONNECT_TIMEOUT = 10000;
+
+  /** Package list download read timeout, in milliseconds. */
+  private static final int LINK_READ_TIMEOUT = 30000;
+
   private File sourcePath;
   private File destinationDir;
   private String excludes;
   private String windowTitle;
   private Vector<Link> links = new Vector<Link>();
+  private boolean incremental;
+  private File linkCacheDir;
+  private boolean offline;
+  private boolean refreshLinks;
 
   public void setSourcePath(String sourcePath)
   {
@@ -102,10 +168,124 @@ public class GenerateScriptDoc extends Task
     return link;
   }
 
+  public void setIncremental(boolean incremental)
+  {
+    this.incremental = incremental;
+  }
+
+  public void setLinkCache(String linkCacheDir)
+  {
+    this.linkCacheDir = new File(linkCacheDir);
+  }
+
+  public void setOffline(boolean offline)
+  {
+    this.offline = offline;
+  }
+
+  public void setRefreshLinks(boolean refreshLinks)
+  {
+    this.refreshLinks = refreshLinks;
+  }
+
   @Override
   public void execute() throws BuildException
   {
-    Main.main(args());
+    String[] args = args();
+    Metrics.Span span = Metrics.getInstance(getProject()).start("doc.generate");
+    if(!incremental) {
+      generate(args);
+      span.end();
+      return;
+    }
+
+    try {
+      executeIncremental(args);
+      span.end();
+    }
+    catch(IOException e) {
+      throw new BuildException(e);
+    }
+  }
+
+  /**
+   * Run documentation generator. Generator keeps global state and is not known to be reentrant; concurrent tasks, e.g.
+   * from Ant <code>parallel</code> container, run it one at a time.
+   * 
+   * @param args documentation generator arguments.
+   */
+  private static void generate(String[] args)
+  {
+    synchronized(Main.class) {
+      Main.main(args);
+    }
+  }
+
+  /**
+   * Generate API documentation only if source files are changed and update destination directory with changed files.
+   * Given arguments are modified, destination directory being replaced by a temporary one.
+   * 
+   * @param args documentation generator arguments.
+   * @throws IOException if files processing fails.
+   */
+  private void executeIncremental(String[] args) throws IOException
+  {
+    Log log = new Log(getProject(), GenerateScriptDoc.class);
+    File indexFile = new File(destinationDir.getAbsoluteFile().getParentFile(), "." + destinationDir.getName() + ".index");
+
+    Properties index = digests(sourcePath);
+    // generator arguments are part of the index so that changed task attributes force API generation
+    index.setProperty("-args", Arrays.toString(args));
+    if(destinationDir.list().length > 0 && index.equals(loadIndex(indexFile))) {
+      log.info("API documentation |%s| is up to date.", destinationDir);
+      return;
+    }
+
+    File tempDir = new File(indexFile.getParentFile(), "." + destinationDir.getName() + ".tmp");
+    removeDirectory(tempDir);
+    if(!tempDir.mkdir()) {
+      throw new IOException(String.format("Cannot create temporary directory |%s|.", tempDir));
+    }
+
+    try {
+      for(int i = 0; i < args.length; ++i) {
+        if(args[i].equals("-d")) {
+          args[i + 1] = tempDir.getPath();
+          break;
+        }
+      }
+      generate(args);
+
+      Properties generatedFiles = digests(tempDir);
+      Properties existingFiles = digests(destinationDir);
+      int updatesCount = 0;
+      for(String file : generatedFiles.stringPropertyNames()) {
+        if(!generatedFiles.getProperty(file).equals(existingFiles.getProperty(file))) {
+          File targetFile = new File(destinationDir, file);
+          targetFile.getParentFile().mkdirs();
+          Files.copy(new File(tempDir, file), targetFile);
+          ++updatesCount;
+        }
+      }
+      for(String file : existingFiles.stringPropertyNames()) {
+        if(!generatedFiles.containsKey(file)) {
+          new File(destinationDir, file).delete();
+          ++updatesCount;
+        }
+      }
+      log.info("Update |%d| file(s) from API documentation |%s|.", updatesCount, destinationDir);
+    }
+    finally {
+      removeDirectory(tempDir);
+    }
+
+    OutputStream stream = new FileOutputStream(indexFile);
+    try {
+      index.store(stream, null);
+    }
+    finally {
+      Files.close(stream);
+    }
   }
 
   private String[] args()
@@ -164,13 +344,165 @@ public class GenerateScriptDoc extends Task
     }
 
     for(Link link : links) {
-      args.add("-link");
-      args.add(link.getHref());
+      if(linkCacheDir == null) {
+        args.add("-link");
+        args.add(link.getHref());
+        continue;
+      }
+      File packageListDir = cachePackageList(link.getHref());
+      if(packageListDir != null) {
+        args.add("-linkoffline");
+        args.add(link.getHref());
+        args.add(packageListDir.getPath());
+      }
+      else if(!offline) {
+        args.add("-link");
+        args.add(link.getHref());
+      }
     }
 
     return args.toArray(new String[args.size()]);
   }
 
+  /**
+   * Get link cache sub-directory name for linked API URL: a readable prefix made from URL characters safe for file
+   * names, followed by a hash of the full URL. Distinct URLs mapped to the same prefix, e.g. differing only by
+   * punctuation or on a truncated tail, still get distinct names.
+   * 
+   * @param href linked API URL.
+   * @return link cache sub-directory name.
+   */
+  private static String getLinkCacheName(String href)
+  {
+    String prefix = href.replaceAll("[^a-zA-Z0-9.-]+", "_");
+    if(prefix.length() > LINK_CACHE_PREFIX_LENGTH) {
+      prefix = prefix.substring(0, LINK_CACHE_PREFIX_LENGTH);
+    }
+    StringBuilder name = new StringBuilder(prefix);
+    name.append('-');
+    try {
+      byte[] digest = Utils.getDigest(new ByteArrayInputStream(href.getBytes("UTF-8")), "SHA-256");
+      for(int i = 0; i < LINK_CACHE_HASH_LENGTH; ++i) {
+        name.append(String.format("%02x", digest[i]));
+      }
+    }
+    catch(IOException e) {
+      // in memory stream and standard algorithm; there is no reason to fail
+      throw new BuildException(e);
+    }
+    return name.toString();
+  }
+
+  /**
+   * Get cache directory holding package list for linked API, downloading it if not already cached. Package list is
+   * downloaded also if {@link #refreshLinks} is true, but not in {@link #offline} mode. Returns null if package list is
+   * not cached and cannot be downloaded.
+   * 
+   * @param href linked API URL.
+   * @return package list cache directory or null.
+   */
+  private File cachePackageList(String href)
+  {
+    File packageListDir = new File(linkCacheDir, getLinkCacheName(href));
+    File packageListFile = new File(packageListDir, PACKAGE_LIST);
+    Log log = new Log(getProject(), GenerateScriptDoc.class);
+    if(offline || (!refreshLinks && packageListFile.exists())) {
+      if(!packageListFile.exists()) {
+        log.warning("Package list for link |%s| is not cached. Link ignored in offline mode.", href);
+        return null;
+      }
+      return packageListDir;
+    }
+
+    String url = href.endsWith("/") ? href + PACKAGE_LIST : href + "/" + PACKAGE_LIST;
+    File downloadFile = new File(packageListDir, PACKAGE_LIST + ".tmp");
+    InputStream inputStream = null;
+    OutputStream outputStream = null;
+    try {
+      packageListDir.mkdirs();
+      URLConnection connection = new URL(url).openConnection();
+      connection.setConnectTimeout(LINK_CONNECT_TIMEOUT);
+      connection.setReadTimeout(LINK_READ_TIMEOUT);
+      inputStream = connection.getInputStream();
+      outputStream = new FileOutputStream(downloadFile);
+      byte[] buffer = new byte[4096];
+      int length;
+      while((length = inputStream.read(buffer)) != -1) {
+        outputStream.write(buffer, 0, length);
+      }
+      outputStream.close();
+      outputStream = null;
+      // replace cached package list only after download completes so that a failed refresh keeps previous version
+      packageListFile.delete();
+      if(!downloadFile.renameTo(packageListFile)) {
+        throw new IOException(String.format("Cannot update cached package list |%s|.", packageListFile));
+      }
+      log.debug("Cache package list |%s|.", url);
+    }
+    catch(IOException e) {
+      log.warning("Fail to download package list |%s|: %s", url, e.getMessage());
+      downloadFile.delete();
+    }
+    finally {
+      Files.close(inputStream);
+      Files.close(outputStream);
+    }
+    return packageListFile.exists() ? packageListDir : null;
+  }
+
+  /**
+   * Compute message digest for all files from given directory. Returns properties with relative paths, in Unix
+   * format, as keys and hexadecimal digest as values.
+   * 
+   * @param dir directory to scan.
+   * @return files digest.
+   * @throws IOException if file reading fails.
+   */
+  private static Properties digests(File dir) throws IOException
+  {
+    Properties digests = new Properties();
+    for(String file : FilesIterator.getRelativeNamesIterator(dir)) {
+      StringBuilder digest = new StringBuilder();
+      for(byte b : Files.getFileDigest(new File(dir, file))) {
+        digest.append(String.format("%02x", b));
+      }
+      digests.setProperty(Files.path2unix(file), digest.toString());
+    }
+    return digests;
+  }
+
+  private static Properties loadIndex(File indexFile) throws IOException
+  {
+    Properties index = new Properties();
+    if(indexFile.exists()) {
+      InputStream stream = new FileInputStream(indexFile);
+      try {
+        index.load(stream);
+      }
+      finally {
+        Files.close(stream);
+      }
+    }
+    return index;
+  }
+
+  private static void removeDirectory(File dir)
+  {
+    File[] files = dir.listFiles();
+    if(files == null) {
+      return;
+    }
+    for(File file : files) {
+      if(file.isDirectory()) {
+        removeDirectory(file);
+      }
+      else {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+
   /**
    * Script API documentation nested element used for external references.
    * 
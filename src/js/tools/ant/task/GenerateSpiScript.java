@@ -1,14 +1,250 @@
 package js.tools.ant.task;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import js.tools.ant.util.Log;
+import js.tools.ant.util.Metrics;
+import js.tools.ant.util.SpiIndex;
+import js.tools.ant.util.Utils;
+import js.tools.commons.util.Files;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
 
 /**
- * Generate script classes for service providers. This task is under development.
+ * Generate service providers registration script. This task scans script sources for service provider declarations
+ * and generates a script assigning a registry object with service names as keys and provider class names as values, so
+ * that runtime does not need to discover providers at page load. A provider is declared by j(s)-lib
+ * <code>$implements(Provider, Service)</code> operator; declarations from comments are ignored.
+ * <p>
+ * Generation is incremental: parse results are cached per script file into an index file, see {@link SpiIndex}, and
+ * only changed files are parsed again. Registration script is rewritten only if its content is changed, so that tasks
+ * depending on its last modification time are not triggered needlessly.
+ * <table border="1" style="border-collapse:collapse;" summary="">
+ * <tr>
+ * <td>Attribute
+ * <td>Description
+ * <td>Required
+ * <tr>
+ * <td><b>sourcepath</b>
+ * <td>Scripts source directory, scanned recursively for <code>js</code> files.
+ * <td>Yes
+ * <tr>
+ * <td><b>file</b>
+ * <td>Generated registration script.
+ * <td>Yes
+ * <tr>
+ * <td><b>excludes</b>
+ * <td>Comma separated Ant patterns for script files to exclude, relative to source directory.
+ * <td>No
+ * <tr>
+ * <td><b>registry</b>
+ * <td>Qualified name of the generated registry object. Default to <code>js.lang.ServiceProviders</code>.
+ * <td>No
+ * <tr>
+ * <td><b>index</b>
+ * <td>Index file caching script files parse results. Default to hidden file <code>.file-name.index</code> on the same
+ * directory with generated script.
+ * <td>No
+ * </table>
+ * 
+ * <p>
+ * Standard usage of this task is as follow:
+ * 
+ * <pre>
+ *  &lt;taskdef name="js.GenerateSpiScript" className="js.tools.ant.task.GenerateSpiScript" /&gt;
+ *  . . .
+ *  &lt;target name="generate-spi"&gt;
+ *      &lt;js.GenerateSpiScript sourcepath="script" file="build/site/scripts/spi.js" excludes="**&#47;test/**" /&gt;
+ *  &lt;/target&gt;
+ * </pre>
  * 
  * @author Iulian Rotaru
  * @since 1.0
  */
 public class GenerateSpiScript extends Task
 {
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  private static final String DEFAULT_REGISTRY = "js.lang.ServiceProviders";
+
+  private File sourcePath;
+  private File file;
+  private String[] excludes;
+  private String registry = DEFAULT_REGISTRY;
+  private File indexFile;
+
+  public void setSourcePath(String sourcePath)
+  {
+    this.sourcePath = new File(sourcePath);
+  }
+
+  public void setFile(String file)
+  {
+    this.file = new File(file);
+  }
+
+  public void setExcludes(String excludes)
+  {
+    this.excludes = excludes.trim().split("\\s*,\\s*");
+  }
+
+  public void setRegistry(String registry)
+  {
+    this.registry = registry;
+  }
+
+  public void setIndex(String indexFile)
+  {
+    this.indexFile = new File(indexFile);
+  }
+
+  @Override
+  public void execute() throws BuildException
+  {
+    Project project = getProject();
+    // project can be null only on tests
+    File projectDir = project != null ? project.getBaseDir() : new File(".");
+
+    if(sourcePath == null) {
+      Utils.badArgument(this, "Source path is missing. Please set <sourcepath> attribute.");
+    }
+    File sourceDir = sourcePath.isAbsolute() ? sourcePath : new File(projectDir, sourcePath.getPath());
+    if(!sourceDir.isDirectory()) {
+      Utils.badArgument(this, "Source directory does not exist or is an ordinary file. Please fix <sourcepath> attribute.");
+    }
+    if(file == null) {
+      Utils.badArgument(this, "Script file is missing. Please set <file> attribute.");
+    }
+    File scriptFile = file.isAbsolute() ? file : new File(projectDir, file.getPath());
+    if(!scriptFile.getAbsoluteFile().getParentFile().isDirectory()) {
+      Utils.badArgument(this, "Script file location is not an existing directory. Please fix <file> attribute.");
+    }
+    if(!registry.matches("[\\w$]+(\\.[\\w$]+)*")) {
+      Utils.badArgument(this, "Registry is not a valid qualified name. Please fix <registry> attribute.");
+    }
+    File index = indexFile;
+    if(index == null) {
+      index = new File(scriptFile.getAbsoluteFile().getParentFile(), "." + scriptFile.getName() + ".index");
+    }
+    else if(!index.isAbsolute()) {
+      index = new File(projectDir, index.getPath());
+    }
+
+    try {
+      execute(sourceDir, scriptFile, index);
+    }
+    catch(IOException e) {
+      throw new BuildException(e);
+    }
+  }
+
+  private void execute(File sourceDir, File scriptFile, File indexFile) throws IOException
+  {
+    Log log = new Log(getProject(), GenerateSpiScript.class);
+    Metrics metrics = Metrics.getInstance(getProject());
+    Metrics.Span span = metrics.start("spi.scan");
+
+    DirectoryScanner scanner = new DirectoryScanner();
+    scanner.setBasedir(sourceDir);
+    scanner.setIncludes(new String[]
+    {
+      "**/*.js"
+    });
+    scanner.setExcludes(excludes);
+    scanner.scan();
+
+    List<File> files = new ArrayList<File>();
+    for(String path : scanner.getIncludedFiles()) {
+      File file = new File(sourceDir, path);
+      // generated script can reside into source directory; do not scan it
+      if(!file.getAbsoluteFile().equals(scriptFile.getAbsoluteFile())) {
+        files.add(file);
+      }
+    }
+
+    SpiIndex index = SpiIndex.load(indexFile);
+    Map<String, Set<String>> providers = new TreeMap<String, Set<String>>();
+    for(File file : files) {
+      for(SpiIndex.Declaration declaration : index.getDeclarations(file)) {
+        Set<String> serviceProviders = providers.get(declaration.getService());
+        if(serviceProviders == null) {
+          serviceProviders = new TreeSet<String>();
+          providers.put(declaration.getService(), serviceProviders);
+        }
+        serviceProviders.add(declaration.getProvider());
+      }
+    }
+    index.retain(files);
+    index.save(indexFile);
+    span.end();
+    metrics.count("spi.files", files.size());
+    metrics.count("spi.parsed.files", index.getParsedCount());
+    log.debug("Scan |%d| script file(s), |%d| parsed.", files.size(), index.getParsedCount());
+
+    byte[] script = script(providers).getBytes(CHARSET);
+    if(scriptFile.exists() && Arrays.equals(script, readBytes(scriptFile))) {
+      log.info("Service providers script |%s| is up to date.", scriptFile);
+      return;
+    }
+    OutputStream stream = new FileOutputStream(scriptFile);
+    try {
+      stream.write(script);
+    }
+    finally {
+      Files.close(stream);
+    }
+    log.info("Generate service providers script |%s| for |%d| service(s).", scriptFile, providers.size());
+  }
+
+  /**
+   * Create registration script source for given providers. Generated source is deterministic: services and providers
+   * are sorted by name.
+   * 
+   * @param providers service providers mapped to service name.
+   * @return registration script.
+   */
+  private String script(Map<String, Set<String>> providers)
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("// generated by js.tools.ant.task.GenerateSpiScript; do not edit\n");
+    int separator = registry.lastIndexOf('.');
+    if(separator != -1) {
+      sb.append("$package(\"").append(registry.substring(0, separator)).append("\");\n");
+    }
+    sb.append(registry).append(" = {");
+    String entrySeparator = "\n";
+    for(Map.Entry<String, Set<String>> entry : providers.entrySet()) {
+      sb.append(entrySeparator).append("  \"").append(entry.getKey()).append("\": [");
+      String providerSeparator = "";
+      for(String provider : entry.getValue()) {
+        sb.append(providerSeparator).append('"').append(provider).append('"');
+        providerSeparator = ", ";
+      }
+      sb.append(']');
+      entrySeparator = ",\n";
+    }
+    sb.append(providers.isEmpty() ? "};\n" : "\n};\n");
+    return sb.toString();
+  }
 
+  private static byte[] readBytes(File file) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Files.copy(file, bytes);
+    return bytes.toByteArray();
+  }
 }
@@ -1,10 +1,27 @@
 package js.tools.ant.task;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
 
+import js.tools.ant.util.Log;
+import js.tools.ant.util.Metrics;
 import js.tools.ant.util.Utils;
+import js.tools.commons.util.Files;
 import js.tools.commons.util.Strings;
 import js.tools.script.pack.Main;
 
@@ -46,19 +63,67 @@ import org.apache.tools.ant.Task;
  * <td><b>verbose</b>
  * <td>Print debug information about packing process. Default to false.
  * <td>No
+ * <tr>
+ * <td><b>force</b>
+ * <td>Pack archive even if it is up to date. Default to false.
+ * <td>No
+ * <tr>
+ * <td><b>hashed</b>
+ * <td>Copy archive to a file named with archive content hash, e.g. <code>js-lib-3f2a9c01d4.js</code>. Default to false.
+ * <td>No
+ * <tr>
+ * <td><b>manifest</b>
+ * <td>Properties file mapping archive name to its content hashed name, sorted by archive name and without time stamp
+ * comment. Used only if <code>hashed</code> is true.
+ * <td>No
  * </table>
+ * <p>
+ * Packing process is not executed if archive is up to date. After packing, task records archive inputs next to
+ * archive, on a file named as archive with <code>.inputs</code> suffix: packer arguments and, for every source file,
+ * its relative path, size and last modified time. Archive is up to date if it exists and recorded inputs are the same
+ * as current ones; a changed, added or removed source file or changed packing options trigger packing again, even if
+ * file timestamps were restored. Task outputs stored on source directory, that is, archive, inputs record, hashed
+ * archives and manifest, are not recorded as inputs. Set <code>force</code> attribute to pack archive regardless inputs
+ * record.
  * 
  * <pre>
  *  &lt;target name="production-pack"&gt;
  *      &lt;js.packScriptArchive sourcepath="${SRC}" filename="${CLIENT-JS}" omnideps="legacy,bootstrap" /&gt;
  *  &lt;/target&gt;
  * </pre>
+ * <p>
+ * Content hashed archives can be cached by clients for unlimited time since a changed archive has a different name.
+ * Code base can be split into modules using a task per module, every one with its own <code>excludes</code> list; if
+ * all tasks use the same <code>manifest</code> file it will contain entries for all modules and only changed modules
+ * will get new names. Manifest updates from concurrent tasks, e.g. from Ant <code>parallel</code> container, are
+ * serialized. Hashed files of previous archive versions, not referenced by manifest, are removed.
+ * 
+ * <pre>
+ *  &lt;target name="production-pack"&gt;
+ *      &lt;js.packScriptArchive sourcepath="${SRC}" filename="build/core.js" excludes="widget" hashed="yes" manifest="build/scripts.properties" /&gt;
+ *      &lt;js.packScriptArchive sourcepath="${SRC}" filename="build/widget.js" excludes="js" hashed="yes" manifest="build/scripts.properties" /&gt;
+ *  &lt;/target&gt;
+ * </pre>
  * 
  * @author Iulian Rotaru
  * @since 1.0
  */
 public class PackScriptArchive extends Task
 {
+  /** Number of content digest bytes used by hashed archive name. */
+  private static final int HASH_LENGTH = 5;
+
+  /** Suffix appended to archive file name for archive inputs record. */
+  private static final String INPUTS_SUFFIX = ".inputs";
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  /** Properties file charset; manifest characters outside printable ASCII are escaped. */
+  private static final Charset MANIFEST_CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Locks serializing manifest files read and write, mapped to manifest file absolute path. */
+  private static final Map<String, Object> locks = new HashMap<String, Object>();
+
   private File sourcePath;
   private File fileName;
   private String omnideps;
@@ -68,6 +133,9 @@ public class PackScriptArchive extends Task
   private boolean removeApiDoc;
   private boolean removeAssertions;
   private boolean verbose;
+  private boolean force;
+  private boolean hashed;
+  private File manifest;
 
   public void setSourcePath(String sourcePath)
   {
@@ -114,6 +182,21 @@ public class PackScriptArchive extends Task
     this.verbose = verbose;
   }
 
+  public void setForce(boolean force)
+  {
+    this.force = force;
+  }
+
+  public void setHashed(boolean hashed)
+  {
+    this.hashed = hashed;
+  }
+
+  public void setManifest(String manifest)
+  {
+    this.manifest = new File(manifest);
+  }
+
   @Override
   public void execute() throws BuildException
   {
@@ -134,6 +217,33 @@ public class PackScriptArchive extends Task
       Utils.badArgument(this, "Archive file location is not an existing directory. Please fix <filename> attribute.");
     }
 
+    try {
+      List<String> args = getPackerArgs();
+      File inputsFile = new File(fileName.getPath() + INPUTS_SUFFIX);
+      String inputs = getInputs(args);
+      if(!force && fileName.exists() && inputs.equals(readInputs(inputsFile))) {
+        new Log(getProject(), PackScriptArchive.class).info("Script archive |%s| is up to date.", fileName);
+      }
+      else {
+        // remove inputs record first so that a failed packing leaves archive out of date
+        inputsFile.delete();
+        Metrics.Span span = Metrics.getInstance(getProject()).start("pack.compress");
+        pack(args);
+        span.end();
+        writeInputs(inputsFile, inputs);
+      }
+
+      if(hashed) {
+        publishHashedArchive();
+      }
+    }
+    catch(IOException e) {
+      throw new BuildException(e);
+    }
+  }
+
+  private List<String> getPackerArgs()
+  {
     List<String> args = new ArrayList<String>();
     if(debug) {
       args.add("-debug");
@@ -166,7 +276,279 @@ public class PackScriptArchive extends Task
       args.add("-omnideps");
       args.addAll(Strings.split(omnideps, ','));
     }
+    return args;
+  }
+
+  private static void pack(List<String> args)
+  {
+    // script packer keeps global state and is not known to be reentrant; concurrent tasks run it one at a time
+    synchronized(Main.class) {
+      Main.main(args.toArray(new String[args.size()]));
+    }
+  }
+
+  /**
+   * Copy archive file to a sibling file with content hash appended to base name, update manifest, if configured, and
+   * remove hashed files of previous archive versions. Hashed file is not overwritten if already exists since its name
+   * guarantees the same content. Manifest update is serialized with other tasks from the same JVM using the same
+   * manifest file.
+   * 
+   * @throws IOException if file copy or manifest update fails.
+   */
+  private void publishHashedArchive() throws IOException
+  {
+    String name = fileName.getName();
+    String extension = Files.getExtension(fileName);
+    String basename = extension.isEmpty() ? name : name.substring(0, name.length() - extension.length() - 1);
+
+    StringBuilder hashedName = new StringBuilder(basename);
+    hashedName.append('-');
+    byte[] digest = Files.getFileDigest(fileName);
+    for(int i = 0; i < HASH_LENGTH; ++i) {
+      hashedName.append(String.format("%02x", digest[i]));
+    }
+    if(!extension.isEmpty()) {
+      hashedName.append('.');
+      hashedName.append(extension);
+    }
+
+    File hashedFile = new File(fileName.getParentFile(), hashedName.toString());
+    if(!hashedFile.exists()) {
+      Files.copy(fileName, hashedFile);
+    }
 
-    Main.main(args.toArray(new String[args.size()]));
+    Set<String> referencedFiles = new HashSet<String>();
+    referencedFiles.add(hashedFile.getName());
+    if(manifest == null) {
+      pruneHashedFiles(referencedFiles);
+      return;
+    }
+
+    synchronized(lock(manifest)) {
+      Map<String, String> entries = readManifest(manifest);
+      entries.put(name, hashedFile.getName());
+      writeManifest(manifest, entries);
+      referencedFiles.addAll(entries.values());
+      pruneHashedFiles(referencedFiles);
+    }
+  }
+
+  /**
+   * Remove hashed files of this archive, from archive directory, not present into referenced files.
+   * 
+   * @param referencedFiles hashed file names still in use.
+   */
+  private void pruneHashedFiles(Set<String> referencedFiles)
+  {
+    Pattern pattern = getHashedFilePattern();
+    File[] files = fileName.getParentFile().listFiles();
+    if(files == null) {
+      return;
+    }
+    Log log = new Log(getProject(), PackScriptArchive.class);
+    for(File file : files) {
+      if(pattern.matcher(file.getName()).matches() && !referencedFiles.contains(file.getName()) && file.delete()) {
+        log.info("Removed stale hashed archive |%s|.", file);
+      }
+    }
+  }
+
+  /**
+   * Get pattern matching names of this archive hashed files, that is, archive base name followed by dash, content hash
+   * and archive extension, if any.
+   * 
+   * @return hashed files name pattern.
+   */
+  private Pattern getHashedFilePattern()
+  {
+    String name = fileName.getName();
+    String extension = Files.getExtension(fileName);
+    String basename = extension.isEmpty() ? name : name.substring(0, name.length() - extension.length() - 1);
+    return Pattern.compile(Pattern.quote(basename) + "-[0-9a-f]{" + 2 * HASH_LENGTH + "}" + (extension.isEmpty() ? "" : Pattern.quote("." + extension)));
+  }
+
+  /**
+   * Read manifest entries, sorted by archive name. Returns empty entries if manifest file does not exist.
+   * 
+   * @param manifest manifest file.
+   * @return manifest entries.
+   * @throws IOException if manifest file reading fails.
+   */
+  private static Map<String, String> readManifest(File manifest) throws IOException
+  {
+    Map<String, String> entries = new TreeMap<String, String>();
+    if(!manifest.exists()) {
+      return entries;
+    }
+    Properties properties = new Properties();
+    InputStream stream = new FileInputStream(manifest);
+    try {
+      properties.load(stream);
+    }
+    finally {
+      Files.close(stream);
+    }
+    for(String key : properties.stringPropertyNames()) {
+      entries.put(key, properties.getProperty(key));
+    }
+    return entries;
+  }
+
+  /**
+   * Write manifest entries in properties file format, in entries order and without time stamp comment, so that
+   * manifest content depends only on entries.
+   * 
+   * @param manifest manifest file,
+   * @param entries manifest entries.
+   * @throws IOException if manifest file writing fails.
+   */
+  private static void writeManifest(File manifest, Map<String, String> entries) throws IOException
+  {
+    StringBuilder content = new StringBuilder();
+    for(Map.Entry<String, String> entry : entries.entrySet()) {
+      escape(content, entry.getKey());
+      content.append('=');
+      escape(content, entry.getValue());
+      content.append('\n');
+    }
+    OutputStream stream = new FileOutputStream(manifest);
+    try {
+      stream.write(content.toString().getBytes(MANIFEST_CHARSET));
+    }
+    finally {
+      Files.close(stream);
+    }
+  }
+
+  /**
+   * Append properties file escaped text to string builder. Escapes backslash, separators, comment characters and
+   * white spaces; characters outside printable ASCII are written as Unicode escapes.
+   * 
+   * @param builder string builder,
+   * @param text text to escape.
+   */
+  private static void escape(StringBuilder builder, String text)
+  {
+    for(int i = 0; i < text.length(); ++i) {
+      char c = text.charAt(i);
+      switch(c) {
+      case '\\':
+      case '=':
+      case ':':
+      case '#':
+      case '!':
+      case ' ':
+        builder.append('\\');
+        builder.append(c);
+        break;
+
+      default:
+        if(c < 0x20 || c > 0x7e) {
+          builder.append(String.format("\\u%04x", (int)c));
+        }
+        else {
+          builder.append(c);
+        }
+      }
+    }
+  }
+
+  private static Object lock(File manifest)
+  {
+    synchronized(locks) {
+      String key = manifest.getAbsolutePath();
+      Object lock = locks.get(key);
+      if(lock == null) {
+        lock = new Object();
+        locks.put(key, lock);
+      }
+      return lock;
+    }
+  }
+
+  /**
+   * Get archive inputs record: tab separated packer arguments on first line followed by a line per source file, in path order, with
+   * tab separated relative path, size and last modified time. If archive is stored on source directory, task outputs are
+   * not inputs: archive, its inputs record, hashed archives and manifest file.
+   * 
+   * @param args packer arguments.
+   * @return archive inputs record.
+   */
+  private String getInputs(List<String> args)
+  {
+    StringBuilder inputs = new StringBuilder();
+    for(String arg : args) {
+      inputs.append(arg);
+      inputs.append('\t');
+    }
+    inputs.append('\n');
+    appendInputs(inputs, sourcePath, "", getHashedFilePattern());
+    return inputs.toString();
+  }
+
+  private void appendInputs(StringBuilder inputs, File dir, String dirPath, Pattern hashedFilePattern)
+  {
+    File[] files = dir.listFiles();
+    if(files == null) {
+      return;
+    }
+    Arrays.sort(files);
+    for(File file : files) {
+      String path = dirPath + file.getName();
+      if(isOutput(file, hashedFilePattern)) {
+        continue;
+      }
+      if(file.isDirectory()) {
+        appendInputs(inputs, file, path + '/', hashedFilePattern);
+        continue;
+      }
+      inputs.append(path);
+      inputs.append('\t');
+      inputs.append(file.length());
+      inputs.append('\t');
+      inputs.append(file.lastModified());
+      inputs.append('\n');
+    }
+  }
+
+  /**
+   * Test if file is created by this task: archive, archive inputs record, hashed archive from archive directory or
+   * manifest file.
+   * 
+   * @param file source directory file,
+   * @param hashedFilePattern hashed archives name pattern.
+   * @return true if file is a task output.
+   */
+  private boolean isOutput(File file, Pattern hashedFilePattern)
+  {
+    File absoluteFile = file.getAbsoluteFile();
+    File archiveFile = fileName.getAbsoluteFile();
+    if(absoluteFile.equals(archiveFile) || absoluteFile.getPath().equals(archiveFile.getPath() + INPUTS_SUFFIX)) {
+      return true;
+    }
+    if(absoluteFile.getParentFile().equals(archiveFile.getParentFile()) && hashedFilePattern.matcher(file.getName()).matches()) {
+      return true;
+    }
+    return manifest != null && absoluteFile.equals(manifest.getAbsoluteFile());
+  }
+
+  /**
+   * Read archive inputs record. Returns null if inputs file does not exist.
+   * 
+   * @param inputsFile archive inputs file.
+   * @return archive inputs record or null.
+   * @throws IOException if inputs file reading fails.
+   */
+  private static String readInputs(File inputsFile) throws IOException
+  {
+    if(!inputsFile.exists()) {
+      return null;
+    }
+    return new String(java.nio.file.Files.readAllBytes(inputsFile.toPath()), CHARSET);
+  }
+
+  private static void writeInputs(File inputsFile, String inputs) throws IOException
+  {
+    java.nio.file.Files.write(inputsFile.toPath(), inputs.getBytes(CHARSET));
   }
 }
@@ -2,15 +2,22 @@ package js.tools.ant.task;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
-import js.server.client.AppsManager;
+import js.tools.ant.util.Agent;
+import js.tools.ant.util.Metrics;
+import js.tools.ant.util.TokenBucket;
+import js.tools.ant.util.UploadOrder;
 import js.tools.ant.util.Utils;
+import js.tools.commons.rmi.FilesIterator;
 import js.tools.commons.rmi.FilesOutputStream;
-import js.tools.commons.rmi.HttpRmi;
 import js.tools.commons.rmi.StreamHandler;
+import js.tools.commons.util.Files;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.ResourceCollection;
 
 public class PublishWidgets extends Task
 {
@@ -25,6 +32,18 @@ public class PublishWidgets extends Task
    */
   private File sourceDir;
 
+  /** Resource collections published along with source directory files, e.g. entries from a build archive. */
+  private final List<ResourceCollection> resources = new ArrayList<ResourceCollection>();
+
+  /** Upload bandwidth limit, in kilobytes per second. Zero for unlimited bandwidth. */
+  private int rate;
+
+  /** Upload burst size, in kilobytes. */
+  private int burst;
+
+  /** Files upload order. */
+  private UploadOrder order = UploadOrder.NONE;
+
   public void setHost(String hostName)
   {
     this.hostName = hostName;
@@ -51,12 +70,46 @@ public class PublishWidgets extends Task
     this.sourceDir = new File(sourceDir);
   }
 
+  /**
+   * Add nested resource collection.
+   * 
+   * @param resource resource collection.
+   * @see #resources
+   */
+  public void add(ResourceCollection resource)
+  {
+    resources.add(resource);
+  }
+
+  public void setRate(int rate)
+  {
+    this.rate = rate;
+  }
+
+  public void setBurst(int burst)
+  {
+    this.burst = burst;
+  }
+
+  public void setOrder(String order)
+  {
+    try {
+      this.order = UploadOrder.forValue(order);
+    }
+    catch(IllegalArgumentException unused) {
+      Utils.badArgument(this, "Invalid upload order. Please fix <order> attribute.");
+    }
+  }
+
   @Override
   public void execute() throws BuildException
   {
     if(hostName == null) {
       Utils.badArgument(this, "Host name is missing. Please set <host> attribute.");
     }
+    if(sourceDir == null && resources.isEmpty()) {
+      Utils.badArgument(this, "Source directory is missing. Please set <source> attribute.");
+    }
 
     String webContextURL = Utils.URL(secure, hostName, agent);
     try {
@@ -69,16 +122,45 @@ public class PublishWidgets extends Task
 
   private void execute(String webContextURL) throws Exception
   {
-    HttpRmi rmi = new HttpRmi(webContextURL, AppsManager.class);
-    rmi.setExceptions(IOException.class);
+    final TokenBucket bucket = TokenBucket.create(rate, burst);
+    Agent agent = Agent.getInstance(getProject(), webContextURL);
+    Metrics metrics = Metrics.getInstance(getProject());
+    if(sourceDir == null || (order == UploadOrder.NONE && bucket == null)) {
+      Metrics.Span span = metrics.start("publish.upload");
+      agent.publishWidgets(new StreamHandler<FilesOutputStream>(FilesOutputStream.class)
+      {
+        @Override
+        protected void handle(FilesOutputStream files) throws IOException
+        {
+          if(sourceDir != null) {
+            files.addFiles(sourceDir);
+          }
+          Utils.addResources(files, resources, null, false, bucket);
+        }
+      });
+      span.end();
+      return;
+    }
+
+    Metrics.Span span = metrics.start("publish.walk");
+    List<String> sourceFiles = new ArrayList<String>();
+    for(String file : FilesIterator.getRelativeNamesIterator(sourceDir)) {
+      sourceFiles.add(Files.path2unix(file));
+    }
+    final List<String> uploadedFiles = order.sort(sourceDir, sourceFiles);
+    span.end();
+    metrics.count("publish.files", uploadedFiles.size());
 
-    rmi.invoke("publishWidgets", new StreamHandler<FilesOutputStream>(FilesOutputStream.class)
+    span = metrics.start("publish.upload");
+    agent.publishWidgets(new StreamHandler<FilesOutputStream>(FilesOutputStream.class)
     {
       @Override
       protected void handle(FilesOutputStream files) throws IOException
       {
-        files.addFiles(sourceDir);
+        Utils.addFiles(files, sourceDir, uploadedFiles, bucket);
+        Utils.addResources(files, resources, null, false, bucket);
       }
     });
+    span.end();
   }
 }
@@ -0,0 +1,107 @@
+package js.tools.ant.task;
+
+import js.tools.ant.util.Agent;
+import js.tools.ant.util.Log;
+import js.tools.ant.util.Utils;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+
+/**
+ * Restore remote target directory replaced by last staged synchronization, see {@link Sync}. This task uses services
+ * provided by remote server manager, see js.admin.AppsManager class from j(s)-lib Manager. Restore is atomic: target
+ * directory is switched back to its previous content in a single step.
+ * <table border="1" style="border-collapse:collapse;" summary="">
+ * <tr>
+ * <td>Attribute
+ * <td>Description
+ * <td>Required
+ * <tr>
+ * <td><b>host</b>
+ * <td>Host name for the server where target directory resides.
+ * <td>Yes
+ * <tr>
+ * <td><b>agent</b>
+ * <td>The name of the web context where j(s)-lib management agent is deployed. Default to <code>server</code>.
+ * <td>No
+ * <tr>
+ * <td><b>target</b>
+ * <td>Target directory to restore, as used by staged synchronization. Default to <code>host</code> value.
+ * <td>No
+ * <tr>
+ * <td><b>secure</b>
+ * <td>Flag indicating that server connection is secure, that is, uses HTTPS protocol. Default to not secure HTTP.
+ * <td>No
+ * </table>
+ * 
+ * <p>
+ * Here is a sample code restoring site synchronized with staged flag:
+ * 
+ * <pre>
+ *  &lt;target name="rollback-site"&gt;
+ *      &lt;js.rollback host="services.bbnet.ro" target="services.bbnet.ro/site" /&gt;
+ *  &lt;/target&gt;
+ * </pre>
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class Rollback extends Task
+{
+  private static final String AGENT_NAME = "server";
+
+  private String hostName;
+  private String agent = AGENT_NAME;
+  private String targetDir;
+  private boolean secure;
+
+  public void setHost(String hostName)
+  {
+    this.hostName = hostName;
+  }
+
+  public void setAgent(String agent)
+  {
+    this.agent = agent;
+  }
+
+  public void setTarget(String targetDir)
+  {
+    this.targetDir = targetDir;
+  }
+
+  public void setSecure(boolean secure)
+  {
+    this.secure = secure;
+  }
+
+  @Override
+  public void execute() throws BuildException
+  {
+    if(hostName == null) {
+      Utils.badArgument(this, "Host name is missing. Please set <host> attribute.");
+    }
+
+    String webContextURL = Utils.URL(secure, hostName, agent);
+    try {
+      execute(webContextURL);
+    }
+    catch(Exception e) {
+      throw new BuildException(e);
+    }
+  }
+
+  private void execute(String webContextURL) throws Exception
+  {
+    Log log = new Log(getProject(), Rollback.class);
+    String targetDir = this.targetDir != null ? this.targetDir : hostName;
+
+    Agent agent = Agent.getInstance(getProject(), webContextURL);
+    if(agent.rollbackDirectory(targetDir)) {
+      log.debug("Rollback of target directory |%s| complete.", targetDir);
+    }
+    else {
+      log.error("No previous content to restore target directory |%s|.", targetDir);
+    }
+  }
+}
@@ -2,22 +2,51 @@ package js.tools.ant.task;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.ResourceCollection;
+import org.apache.tools.ant.types.resources.FileResource;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
 
-import js.server.client.AppsManager;
+import js.tools.ant.util.Agent;
+import js.tools.ant.util.DigestCache;
+import js.tools.ant.util.Log;
+import js.tools.ant.util.MethodNotFoundException;
+import js.tools.ant.util.Metrics;
+import js.tools.ant.util.SyncJournal;
+import js.tools.ant.util.SyncPlan;
+import js.tools.ant.util.ThrottledInputStream;
+import js.tools.ant.util.TokenBucket;
+import js.tools.ant.util.UploadOrder;
 import js.tools.ant.util.Utils;
-import js.tools.commons.rmi.FilesIterator;
 import js.tools.commons.rmi.FilesOutputStream;
-import js.tools.commons.rmi.HttpRmi;
 import js.tools.commons.rmi.StreamHandler;
 import js.tools.commons.util.Files;
-import js.tools.commons.util.GType;
 
 /**
  * Synchronize local source directory with a target directory from a remote repository. This task uses services provided
@@ -37,7 +66,10 @@ import js.tools.commons.util.GType;
  * <tr>
  * <td><b>source</b>
  * <td>Source directory containing files to be synchronized on server target directory. If is not absolute it should be
- * relative to Ant builder project path.
+ * relative to Ant builder project path. Source can also be a ZIP, WAR or JAR archive, in which case archive entries
+ * are synchronized without extracting archive to disk; archive source cannot be combined with nested
+ * <code>fileset</code> or resource collection elements. Not required if there are nested <code>target</code>,
+ * <code>fileset</code> or resource collection elements.
  * <td>Yes
  * <tr>
  * <td><b>host</b>
@@ -58,19 +90,95 @@ import js.tools.commons.util.GType;
  * <td>No
  * <tr>
  * <td><b>full</b>
- * <td>Flag indicating all files should be uploaded, no matter was changed or not. Default to false. This option is for
- * final production deployment; incremental synchronization uses message digest to determine if file is changed and
- * there is a very slight chance of collision, that is, two different files may have the same hash, resulting in files
- * failing to update. Please note that if <code>full</code> is active files not existing into uploaded archive are
- * <b>removed</b> from target directory.
+ * <td>Flag indicating all files should be uploaded, no matter was changed or not. Default to false. Incremental
+ * synchronization uses message digest to determine if file is changed; digest algorithm is negotiated with management
+ * agent, SHA-256 if agent supports it, so that collision risk is negligible. If agent supports it, files without a
+ * cached digest are first compared by length and CRC-32, a fast pass that finds changed files without computing their
+ * SHA-256; files it finds unchanged are confirmed by SHA-256. With older agents only MD5 is available
+ * and there is a very slight chance of collision, that is, two different files may have the same hash, resulting in
+ * files failing to update. Please note that if <code>full</code> is active files not existing into uploaded archive
+ * are <b>removed</b> from target directory.
  * <td>No
  * <tr>
  * <td><b>includes</b>
- * <td>Extension for files to be included into synchronization process.</td>
+ * <td>Comma or space separated patterns for files to be included into synchronization process. Patterns use Ant
+ * syntax, e.g. <code>**&#47;*.js</code>; a pattern without wildcards is a file name suffix, e.g. <code>.js</code>.</td>
  * <td>No</td>
  * <tr>
  * <td><b>excludes</b>
- * <td>Extension for files to be excluded into synchronization process.</td>
+ * <td>Comma or space separated patterns for files to be excluded from synchronization process. Directories excluded
+ * with a pattern like <code>**&#47;node_modules/**</code> are not traversed at all.</td>
+ * <td>No</td>
+ * <tr>
+ * <td><b>fileset</b>
+ * <td>Nested Ant file set with files synchronized on target directory, beside source directory files. File paths are
+ * relative to file set directory.</td>
+ * <td>No</td>
+ * <tr>
+ * <td><b>resources</b>
+ * <td>Nested Ant resource collections, e.g. <code>zipfileset</code> or <code>union</code>, synchronized on target
+ * directory. Resources are named by their resource name. Files from file based collections are processed like file set
+ * files; other resources, e.g. archive entries, are read directly, without extracting them to disk, and are not
+ * recorded into synchronization plan.</td>
+ * <td>No</td>
+ * <tr>
+ * <td><b>rate</b>
+ * <td>Upload bandwidth limit, in kilobytes per second. Default to unlimited.</td>
+ * <td>No</td>
+ * <tr>
+ * <td><b>burst</b>
+ * <td>Bytes count, in kilobytes, that can be sent at once without rate limit after an idle period. Default to one
+ * second of transfer at configured rate.</td>
+ * <td>No</td>
+ * <tr>
+ * <td><b>order</b>
+ * <td>Files upload order: <code>none</code>, <code>smallest-first</code> or <code>html-last</code>. Default to
+ * <code>none</code>, that is, source directory depth-first order.</td>
+ * <td>No</td>
+ * <tr>
+ * <td><b>dryRun</b>
+ * <td>Negotiate dirty files with server and report files to upload, stale files to remove, unchanged files and transfer
+ * size without changing target directory. Default to false.</td>
+ * <td>No</td>
+ * <tr>
+ * <td><b>plan</b>
+ * <td>Synchronization plan file. On dry run plan is written to this file; otherwise plan is executed, uploading
+ * planned files and removing planned stale files without hashing and negotiation. Planned files should not be changed
+ * after plan creation.</td>
+ * <td>No</td>
+ * <tr>
+ * <td><b>digestCache</b>
+ * <td>File caching source files digest between runs. A cached digest is reused while file length and change time
+ * are not changed, so that only changed files are hashed; files changed within file system time stamp resolution
+ * before being hashed are hashed again, see {@link DigestCache}. Default to no cache.</td>
+ * <td>No</td>
+ * <tr>
+ * <td><b>journal</b>
+ * <td>Synchronization journal file recording files synchronized on every target directory and files removed from
+ * target directories. Used with <code>removeStaleFiles</code>; see stale files removal below. Default to no journal.</td>
+ * <td>No</td>
+ * <tr>
+ * <td><b>journalRetention</b>
+ * <td>The number of days removed files are kept into synchronization journal. Default to 30 days.</td>
+ * <td>No</td>
+ * <tr>
+ * <td><b>scanInterval</b>
+ * <td>The number of days after which target directory is scanned again for stale files, even if journal has no stale
+ * files for it. Zero scans target directory on every run. Default to 7 days.</td>
+ * <td>No</td>
+ * <tr>
+ * <td><b>staged</b>
+ * <td>Synchronize into a staging directory and switch it with target directory after all files are uploaded. Default
+ * to false. See staged synchronization below.</td>
+ * <td>No</td>
+ * <tr>
+ * <td><b>threads</b>
+ * <td>The maximum number of mappings synchronized concurrently. Default to 4.</td>
+ * <td>No</td>
+ * <tr>
+ * <td><b>target</b>
+ * <td>Nested element with <code>source</code> and <code>target</code> attributes, both mandatory, mapping a local
+ * source directory to a remote target directory. There can be many nested targets.</td>
  * <td>No</td>
  * </table>
  * 
@@ -93,6 +201,42 @@ import js.tools.commons.util.GType;
  *  &lt;/target&gt;
  * </pre>
  * 
+ * Multiple source directories can be synchronized on the same host using nested <code>target</code> elements. All
+ * mappings, including the one defined by <code>source</code> attribute, if present, are processed concurrently, up to
+ * <code>threads</code> mappings at a time, so that network latency is paid once per task instead of once per mapping
+ * without flooding the agent when there are many mappings.
+ * 
+ * <pre>
+ *  &lt;target name="sync-all"&gt;
+ *      &lt;js.sync host="api.js-lib.com"&gt;
+ *          &lt;target source="build/site" target="js-lib.com" /&gt;
+ *          &lt;target source="build/api" target="api.js-lib.com/widget" /&gt;
+ *      &lt;/js.sync&gt;
+ *  &lt;/target&gt;
+ * </pre>
+ * 
+ * <p>
+ * On staged synchronization target directory is not changed while files are uploading. Management agent creates a
+ * staging directory with the same content as target directory, using hard links, and files are synchronized into
+ * staging directory. After synchronization completes staging directory atomically replaces target directory; replaced
+ * directory is kept by agent so that it can be restored using {@link Rollback} task. Staging directory is created only
+ * if there are files to upload or stale files to remove; if upload fails staging directory is removed and target
+ * directory is left unchanged. Staged synchronization requires management agent supporting staging directories.
+ * <p>
+ * If <code>removeStaleFiles</code> is set, target files not present into source files are removed by management agent
+ * in a single batch, as an explicit list of files. Stale files list is found by agent scanning the entire target
+ * directory. Synchronization journal records files synchronized by last run so that stale files are detected locally,
+ * as files synchronized by last run but missing from current source files; still, files not created by this task are
+ * not known by journal and agent scans target directory on first run and after every <code>scanInterval</code> days.
+ * Without journal agent scans target directory on every run. Only files agent confirms as removed are logged and
+ * recorded into journal, with removal timestamp, for the retention period. Removal is not reversible by this task; use
+ * staged synchronization in order to be able to restore removed files with {@link Rollback} task. A stale file agent
+ * does not confirm as removed is kept into journal and its removal is retried on next run.
+ * <p>
+ * Older management agents do not support stale files scan and removal by list. With these agents stale files are
+ * removed by agent while comparing source files digest, as before, and are not known by this task: they are not logged
+ * and are not evaluated on dry run.
+ * 
  * Synchronization process occurs in two steps:
  * <ol>
  * <li>client and server agree on dirty files list,
@@ -113,6 +257,12 @@ public class Sync extends Task
   /** Default management agent web context. */
   private static final String AGENT_NAME = "server";
 
+  /** Message digest algorithms used for incremental synchronization, if supported by agent, in preference order. */
+  private static final String[] DIGEST_ALGORITHMS = new String[]
+  {
+      "SHA-256"
+  };
+
   /** The host name of the server where synchronization target directory resides. */
   private String hostName;
 
@@ -122,17 +272,17 @@ public class Sync extends Task
   /** Local source directory from where files are uploaded. */
   private File sourceDir;
 
-  /** Synchronization target directory used internally, not initialized from Ant attribute. */
+  /** Synchronization target directory, default to {@link #hostName}. */
   private String targetDir;
 
   /** If secure flag is true uses secure HTTP, default to false. */
   private boolean secure;
 
   /**
-   * Full synchronization will copy all source files, no matter changed or not. This option is for final production
-   * deployment; incremental synchronization uses message digest to determine if file is changed and there is a very
-   * slight chance of collision, that is, two different files may have the same hash, resulting in files failing to
-   * update.
+   * Full synchronization will copy all source files, no matter changed or not. Incremental synchronization uses message
+   * digest, negotiated with management agent, to determine if file is changed; with agents supporting only MD5 there is
+   * a very slight chance of collision, that is, two different files may have the same hash, resulting in files failing
+   * to update.
    */
   private boolean full;
 
@@ -144,9 +294,53 @@ public class Sync extends Task
    */
   private boolean removeStaleFiles;
 
-  private String includes;
+  /** Patterns for files to include, null to include all files. */
+  private String[] includes;
+
+  /** Patterns for files to exclude, null if not excluding files. */
+  private String[] excludes;
+
+  /** File sets synchronized on target directory along with source directory files. */
+  private final List<FileSet> filesets = new ArrayList<FileSet>();
+
+  /** Resource collections synchronized on target directory along with source directory files. */
+  private final List<ResourceCollection> resources = new ArrayList<ResourceCollection>();
+
+  /** Synchronize into a staging directory and switch it atomically with target directory. */
+  private boolean staged;
+
+  /** Upload bandwidth limit, in kilobytes per second. Zero for unlimited bandwidth. */
+  private int rate;
+
+  /** Upload burst size, in kilobytes. */
+  private int burst;
+
+  /** Files upload order. */
+  private UploadOrder order = UploadOrder.NONE;
+
+  /** Dry run flag. On dry run files are negotiated with server but not uploaded. */
+  private boolean dryRun;
+
+  /** Synchronization plan file, written on dry run and executed otherwise. */
+  private File planFile;
 
-  private String excludes;
+  /** Optional file caching source files digest between runs. */
+  private File digestCacheFile;
+
+  /** Optional synchronization journal file, used to detect stale files locally. */
+  private File journalFile;
+
+  /** The number of days removed files are kept into synchronization journal. */
+  private int journalRetention = 30;
+
+  /** The number of days after which target directory is scanned again for stale files. */
+  private int scanInterval = 7;
+
+  /** The maximum number of mappings synchronized concurrently. */
+  private int threads = 4;
+
+  /** Optional source to target directory mappings, declared as nested target elements. */
+  private final List<Mapping> mappings = new ArrayList<Mapping>();
 
   /**
    * Set local source directory.
@@ -226,25 +420,186 @@ public class Sync extends Task
   }
 
   /**
-   * Set extension for files to include.
+   * Set patterns for files to include.
    * 
-   * @param includes extension for files to include.
+   * @param includes comma or space separated patterns for files to include.
    * @see #includes
    */
   public void setIncludes(String includes)
   {
-    this.includes = includes;
+    this.includes = parsePatterns(includes);
   }
 
   /**
-   * Set extension for files to exclude.
+   * Set patterns for files to exclude.
    * 
-   * @param excludes extension for files to exclude.
+   * @param excludes comma or space separated patterns for files to exclude.
    * @see #excludes
    */
   public void setExcludes(String excludes)
   {
-    this.excludes = excludes;
+    this.excludes = parsePatterns(excludes);
+  }
+
+  /**
+   * Add nested file set.
+   * 
+   * @param fileset file set.
+   * @see #filesets
+   */
+  public void addFileset(FileSet fileset)
+  {
+    filesets.add(fileset);
+  }
+
+  /**
+   * Add nested resource collection.
+   * 
+   * @param resource resource collection.
+   * @see #resources
+   */
+  public void add(ResourceCollection resource)
+  {
+    resources.add(resource);
+  }
+
+  /**
+   * Set staged synchronization flag.
+   * 
+   * @param staged staged synchronization flag.
+   * @see #staged
+   */
+  public void setStaged(boolean staged)
+  {
+    this.staged = staged;
+  }
+
+  /**
+   * Set upload bandwidth limit.
+   * 
+   * @param rate bandwidth limit, in kilobytes per second.
+   * @see #rate
+   */
+  public void setRate(int rate)
+  {
+    this.rate = rate;
+  }
+
+  /**
+   * Set upload burst size.
+   * 
+   * @param burst burst size, in kilobytes.
+   * @see #burst
+   */
+  public void setBurst(int burst)
+  {
+    this.burst = burst;
+  }
+
+  /**
+   * Set files upload order.
+   * 
+   * @param order upload order name.
+   * @see #order
+   */
+  public void setOrder(String order)
+  {
+    try {
+      this.order = UploadOrder.forValue(order);
+    }
+    catch(IllegalArgumentException unused) {
+      Utils.badArgument(this, "Invalid upload order. Please fix <order> attribute.");
+    }
+  }
+
+  /**
+   * Set dry run flag.
+   * 
+   * @param dryRun dry run flag.
+   * @see #dryRun
+   */
+  public void setDryRun(boolean dryRun)
+  {
+    this.dryRun = dryRun;
+  }
+
+  /**
+   * Set synchronization plan file.
+   * 
+   * @param planFile plan file.
+   * @see #planFile
+   */
+  public void setPlan(String planFile)
+  {
+    this.planFile = new File(planFile);
+  }
+
+  /**
+   * Set digest cache file.
+   * 
+   * @param digestCacheFile digest cache file.
+   * @see #digestCacheFile
+   */
+  public void setDigestCache(String digestCacheFile)
+  {
+    this.digestCacheFile = new File(digestCacheFile);
+  }
+
+  /**
+   * Set synchronization journal file.
+   * 
+   * @param journalFile journal file.
+   * @see #journalFile
+   */
+  public void setJournal(String journalFile)
+  {
+    this.journalFile = new File(journalFile);
+  }
+
+  /**
+   * Set removed files retention period into synchronization journal.
+   * 
+   * @param journalRetention retention period, in days.
+   * @see #journalRetention
+   */
+  public void setJournalRetention(int journalRetention)
+  {
+    this.journalRetention = journalRetention;
+  }
+
+  /**
+   * Set stale files scan interval.
+   * 
+   * @param scanInterval scan interval, in days.
+   * @see #scanInterval
+   */
+  public void setScanInterval(int scanInterval)
+  {
+    this.scanInterval = scanInterval;
+  }
+
+  /**
+   * Set the maximum number of mappings synchronized concurrently.
+   * 
+   * @param threads threads count.
+   * @see #threads
+   */
+  public void setThreads(int threads)
+  {
+    this.threads = threads;
+  }
+
+  /**
+   * Create nested target element.
+   * 
+   * @return target element.
+   * @see #mappings
+   */
+  public Mapping createTarget()
+  {
+    Mapping mapping = new Mapping();
+    mappings.add(mapping);
+    return mapping;
   }
 
   /**
@@ -254,9 +609,9 @@ public class Sync extends Task
   public void execute() throws BuildException
   {
     try {
-      preprocessAttributes();
+      Execution execution = preprocessAttributes();
       String webContextURL = Utils.URL(secure, hostName, agent);
-      execute(webContextURL);
+      execute(execution, webContextURL);
     }
     catch(Exception e) {
       e.printStackTrace();
@@ -265,9 +620,12 @@ public class Sync extends Task
   }
 
   /**
-   * Initialize this task internal state and check attributes integrity.
+   * Check attributes integrity and create execution state. Attributes are not changed so that the same task instance can
+   * be executed again and task instances can be executed concurrently.
+   * 
+   * @return execution state.
    */
-  private void preprocessAttributes()
+  private Execution preprocessAttributes()
   {
     Project project = getProject();
     // project can be null only on tests
@@ -277,80 +635,1236 @@ public class Sync extends Task
       Utils.badArgument(this, "Host name is missing. Please set <host> attribute.");
     }
 
-    if(sourceDir == null) {
+    Execution execution = new Execution();
+    execution.planFile = resolveFile(projectDir, planFile);
+    execution.digestCacheFile = resolveFile(projectDir, digestCacheFile);
+    execution.journalFile = resolveFile(projectDir, journalFile);
+    execution.bucket = TokenBucket.create(rate, burst);
+    if(journalRetention < 0) {
+      Utils.badArgument(this, "Journal retention cannot be negative. Please fix <journalRetention> attribute.");
+    }
+    if(scanInterval < 0) {
+      Utils.badArgument(this, "Scan interval cannot be negative. Please fix <scanInterval> attribute.");
+    }
+    if(threads < 1) {
+      Utils.badArgument(this, "Threads count should be positive. Please fix <threads> attribute.");
+    }
+    if(execution.planFile != null && !dryRun) {
+      if(!execution.planFile.exists()) {
+        Utils.badArgument(this, "Synchronization plan file does not exist. Please fix <plan> attribute.");
+      }
+      return execution;
+    }
+
+    if(sourceDir == null && filesets.isEmpty() && resources.isEmpty() && mappings.isEmpty()) {
       Utils.badArgument(this, "Source directory is mandatory. Please set <source> attribute.");
     }
+    File taskSourceDir = null;
+    if(sourceDir != null) {
+      taskSourceDir = preprocessSourceDir(projectDir, sourceDir);
+      if(isArchive(taskSourceDir) && (!filesets.isEmpty() || !resources.isEmpty())) {
+        Utils.badArgument(this, "Archive source cannot be combined with file sets or resources. Please fix <source> attribute.");
+      }
+    }
+    for(Mapping mapping : mappings) {
+      if(mapping.sourceDir == null && mapping.filesets.isEmpty() && mapping.resources.isEmpty()) {
+        Utils.badArgument(this, "Target source directory is mandatory. Please set <target source> attribute.");
+      }
+      if(mapping.targetDir == null) {
+        Utils.badArgument(this, "Target directory is mandatory. Please set <target target> attribute.");
+      }
+      Mapping resolvedMapping = new Mapping(mapping);
+      if(mapping.sourceDir != null) {
+        resolvedMapping.sourceDir = preprocessSourceDir(projectDir, mapping.sourceDir);
+        if(isArchive(resolvedMapping.sourceDir) && (!mapping.filesets.isEmpty() || !mapping.resources.isEmpty())) {
+          Utils.badArgument(this, "Archive source cannot be combined with file sets or resources. Please fix <target source> attribute.");
+        }
+      }
+      execution.mappings.add(resolvedMapping);
+    }
+
+    if(taskSourceDir != null || !filesets.isEmpty() || !resources.isEmpty()) {
+      execution.taskMapping = new Mapping();
+      execution.taskMapping.sourceDir = taskSourceDir;
+      execution.taskMapping.targetDir = targetDir != null ? targetDir : hostName;
+      execution.taskMapping.filesets.addAll(filesets);
+      execution.taskMapping.resources.addAll(resources);
+    }
+    return execution;
+  }
+
+  /**
+   * Resolve file against project directory, if not absolute.
+   * 
+   * @param projectDir project base directory,
+   * @param file file to resolve, possible null.
+   * @return absolute file or null if file parameter is null.
+   */
+  private static File resolveFile(File projectDir, File file)
+  {
+    if(file == null || file.isAbsolute()) {
+      return file;
+    }
+    return new File(projectDir, file.getPath());
+  }
+
+  /**
+   * Resolve source directory against project directory, if not absolute, and check it is an existing directory or an
+   * archive file, see {@link #isArchive(File)}.
+   * 
+   * @param projectDir project base directory,
+   * @param sourceDir source directory or archive.
+   * @return absolute source directory or archive.
+   */
+  private File preprocessSourceDir(File projectDir, File sourceDir)
+  {
     if(!sourceDir.isAbsolute()) {
       sourceDir = new File(projectDir, sourceDir.getPath());
     }
     if(!sourceDir.exists()) {
       Utils.badArgument(this, "Source directory does not exist. Please fix <source> attribute.");
     }
-    if(!sourceDir.isDirectory()) {
-      Utils.badArgument(this, "Source directory is in fact a file. Please fix <source> attribute.");
+    if(!sourceDir.isDirectory() && !isArchive(sourceDir)) {
+      Utils.badArgument(this, "Source directory is in fact a file and not a ZIP, WAR or JAR archive. Please fix <source> attribute.");
     }
+    return sourceDir;
+  }
 
-    if(targetDir == null) {
-      targetDir = hostName;
+  /**
+   * Test if source is an archive file, that is, an existing file with ZIP, WAR or JAR extension.
+   * 
+   * @param source source directory or archive.
+   * @return true if source is an archive file.
+   */
+  private static boolean isArchive(File source)
+  {
+    if(!source.isFile()) {
+      return false;
     }
+    String extension = Files.getExtension(source).toLowerCase();
+    return extension.equals("zip") || extension.equals("war") || extension.equals("jar");
   }
 
   /**
-   * Perform the actual synchronization between local source directory and remote target directory.
+   * Perform the actual synchronization between local source directories and remote target directories. If there are
+   * nested target elements all mappings, including the one defined by task attributes, if any, are processed
+   * concurrently using the same agent. If synchronization plan file is configured and this is not a dry run, execute
+   * the plan instead.
    * 
+   * @param execution execution state,
    * @param webContextURL the URL of application manager class.
-   * @throws IOException if HTTP-RMI request fails for some reason.
+   * @throws Exception if HTTP-RMI request fails for some reason.
    */
-  private void execute(String webContextURL) throws Exception
+  private void execute(Execution execution, String webContextURL) throws Exception
   {
-    // process incremental synchronization
+    execution.agent = Agent.getInstance(getProject(), webContextURL);
+    execution.metrics = Metrics.getInstance(getProject());
+    if(execution.planFile != null && !dryRun) {
+      executePlan(execution);
+      return;
+    }
+    execution.dryRunPlan = dryRun ? new SyncPlan() : null;
+    execution.digestAlgorithm = Agent.DEFAULT_DIGEST_ALGORITHM;
     if(!full) {
-      SortedMap<String, byte[]> sourceFiles = new TreeMap<String, byte[]>();
-      for(String file : FilesIterator.getRelativeNamesIterator(sourceDir)) {
-        if(excludes != null && file.endsWith(excludes)) {
-          continue;
-        }
-        if(includes != null && !file.endsWith(includes)) {
-          continue;
-        }
-        sourceFiles.put(Files.path2unix(file), Files.getFileDigest(new File(sourceDir, file)));
+      negotiateDigestAlgorithm(execution);
+    }
+
+    DigestCache digestCache = execution.digestCacheFile != null ? DigestCache.getInstance(getProject(), execution.digestCacheFile) : null;
+    execution.digestCache = digestCache;
+    long digestCacheHits = digestCache != null ? digestCache.getHits() : 0;
+    SyncJournal journal = execution.journalFile != null ? SyncJournal.load(execution.journalFile) : null;
+    execution.journal = journal;
+    try {
+      if(execution.mappings.isEmpty()) {
+        synchronize(execution, execution.taskMapping);
+      }
+      else {
+        synchronize(execution, execution.taskMapping, execution.mappings);
+      }
+    }
+    finally {
+      if(digestCache != null) {
+        execution.metrics.count("sync.cache.hits", digestCache.getHits() - digestCacheHits);
+        digestCache.save();
+      }
+      if(journal != null && execution.dryRunPlan == null) {
+        journal.save(execution.journalFile, journalRetention * 24L * 3600L * 1000L);
+      }
+    }
+    if(execution.dryRunPlan != null) {
+      report(execution.dryRunPlan, execution.planFile);
+    }
+  }
+
+  /**
+   * Negotiate message digest algorithms used for incremental synchronization and update execution state. Files digest
+   * algorithm is the first from {@link #DIGEST_ALGORITHMS} supported by agent; falls back to
+   * {@link Agent#DEFAULT_DIGEST_ALGORITHM} if agent does not support any of them. Fast digest first pass is enabled if
+   * agent supports {@link Agent#FAST_DIGEST_ALGORITHM}. If agent does not support digest negotiation uses default
+   * algorithm, without fast pass, and logs a warning since default algorithm is not collision safe; any other
+   * negotiation failure is fatal.
+   * 
+   * @param execution execution state.
+   * @throws Exception if HTTP-RMI request fails.
+   */
+  private void negotiateDigestAlgorithm(Execution execution) throws Exception
+  {
+    List<String> algorithms;
+    try {
+      algorithms = execution.agent.getDigestAlgorithms();
+    }
+    catch(MethodNotFoundException unused) {
+      Log log = new Log(getProject(), Sync.class);
+      log.warning("Agent does not support digest negotiation. Downgrade files comparison to %s digest.", Agent.DEFAULT_DIGEST_ALGORITHM);
+      return;
+    }
+    if(algorithms == null) {
+      return;
+    }
+    for(String algorithm : DIGEST_ALGORITHMS) {
+      if(algorithms.contains(algorithm)) {
+        execution.digestAlgorithm = algorithm;
+        break;
       }
+    }
+    execution.fastDigest = algorithms.contains(Agent.FAST_DIGEST_ALGORITHM);
+  }
 
-      HttpRmi rmi = new HttpRmi(webContextURL, AppsManager.class);
-      rmi.setReturnType(new GType(List.class, String.class));
-      rmi.setExceptions(IOException.class);
+  /**
+   * Synchronize nested target mappings and task mapping, if present, concurrently, using at most {@link #threads}
+   * threads.
+   * 
+   * @param execution execution state,
+   * @param taskMapping mapping defined by task attributes, possible null,
+   * @param mappings nested target mappings.
+   * @throws Exception if HTTP-RMI request fails for some reason.
+   */
+  private void synchronize(final Execution execution, Mapping taskMapping, List<Mapping> mappings) throws Exception
+  {
+    List<Mapping> allMappings = new ArrayList<Mapping>(mappings);
+    if(taskMapping != null) {
+      allMappings.add(taskMapping);
+    }
 
-      final List<String> dirtyFiles = rmi.invoke("getDirtyFiles", targetDir, sourceFiles, removeStaleFiles);
-      if(dirtyFiles.isEmpty()) {
-        return;
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, allMappings.size()));
+    try {
+      List<Future<Object>> futures = new ArrayList<Future<Object>>();
+      for(final Mapping mapping : allMappings) {
+        futures.add(executor.submit(new Callable<Object>()
+        {
+          @Override
+          public Object call() throws Exception
+          {
+            synchronize(execution, mapping);
+            return null;
+          }
+        }));
       }
+      for(Future<Object> future : futures) {
+        try {
+          future.get();
+        }
+        catch(ExecutionException e) {
+          if(e.getCause() instanceof Error) {
+            throw (Error)e.getCause();
+          }
+          throw (Exception)e.getCause();
+        }
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Synchronize local source files with remote target directory. On dry run only records synchronization plan.
+   * 
+   * @param execution execution state,
+   * @param mapping source files and remote target directory.
+   * @throws Exception if HTTP-RMI request fails for some reason.
+   */
+  private void synchronize(Execution execution, Mapping mapping) throws Exception
+  {
+    if(mapping.sourceDir != null && isArchive(mapping.sourceDir)) {
+      synchronizeArchive(execution, mapping);
+      return;
+    }
+    synchronizeDirectory(execution, mapping);
+  }
 
-      rmi = new HttpRmi(webContextURL, AppsManager.class);
-      rmi.setExceptions(IOException.class);
+  /**
+   * Synchronize local source files with mapping target directory and update synchronization journal. On dry run dirty
+   * files and stale files are recorded to synchronization plan instead of being uploaded and removed.
+   * 
+   * @param execution execution state,
+   * @param mapping source files and remote target directory.
+   * @throws Exception if HTTP-RMI request fails for some reason.
+   */
+  private void synchronizeDirectory(final Execution execution, final Mapping mapping) throws Exception
+  {
+    final Agent agent = execution.agent;
+    DigestCache digestCache = execution.digestCache;
+    SyncPlan dryRunPlan = execution.dryRunPlan;
+    Metrics metrics = execution.metrics;
+    String targetDir = mapping.targetDir;
 
-      rmi.invoke("synchronize", targetDir, new StreamHandler<FilesOutputStream>(FilesOutputStream.class)
+    // if there are no patterns and no file sets uses optimized upload of entire source directory
+    final File sourceDir = mapping.sourceDir;
+    if(full && includes == null && excludes == null && mapping.filesets.isEmpty() && mapping.resources.isEmpty() && order == UploadOrder.NONE && execution.bucket == null && dryRunPlan == null && execution.journal == null) {
+      apply(execution, targetDir, true, new Upload()
       {
         @Override
-        protected void handle(FilesOutputStream files) throws IOException
+        public void upload(String dir) throws Exception
         {
-          files.addFiles(sourceDir, dirtyFiles);
+          agent.synchronize(dir, new StreamHandler<FilesOutputStream>(FilesOutputStream.class)
+          {
+            @Override
+            protected void handle(FilesOutputStream files) throws IOException
+            {
+              files.addFiles(sourceDir);
+            }
+          });
         }
       });
+      return;
+    }
+
+    Metrics.Span span = metrics.start("sync.walk");
+    final Map<String, File> baseDirs = scan(mapping);
+    span.end();
+    metrics.count("sync.files", baseDirs.size());
+    List<String> uploadedFiles;
+    // names of streamed resources to upload, null to upload all
+    Set<String> uploadedResources = null;
+    Set<String> allFiles = new HashSet<String>(baseDirs.keySet());
+    // stale files to remove, null if stale files are not removed
+    Set<String> staleFiles = null;
+    boolean scanned = false;
+
+    // process incremental synchronization
+    if(!full) {
+      Map<String, Content> sourceFiles = new HashMap<String, Content>();
+      for(Map.Entry<String, File> entry : baseDirs.entrySet()) {
+        sourceFiles.put(entry.getKey(), new FileContent(new File(entry.getValue(), entry.getKey()), digestCache));
+      }
+      for(ResourceCollection collection : mapping.resources) {
+        for(Resource resource : collection) {
+          if(!resource.isDirectory() && resource.isExists() && !Utils.isBaseDirFile(resource)) {
+            String name = Files.path2unix(resource.getName());
+            sourceFiles.put(name, new ResourceContent(resource));
+            allFiles.add(name);
+          }
+        }
+      }
+
+      span = metrics.start("sync.negotiate");
+      if(removeStaleFiles) {
+        staleFiles = getJournalStaleFiles(execution, mapping, allFiles);
+        if(staleFiles == null) {
+          staleFiles = scanStaleFiles(execution, mapping, allFiles);
+          scanned = staleFiles != null;
+        }
+      }
+      span.end();
+      // agent not supporting stale files scan removes stale files while comparing files, except on dry run
+      boolean legacyRemoval = removeStaleFiles && staleFiles == null && dryRunPlan == null;
+      List<String> dirtyFiles = getDirtyFiles(execution, targetDir, sourceFiles, legacyRemoval);
+      if(legacyRemoval) {
+        staleFiles = Collections.emptySet();
+      }
+
+      uploadedFiles = new ArrayList<String>();
+      uploadedResources = new HashSet<String>();
+      for(String dirtyFile : dirtyFiles) {
+        if(baseDirs.containsKey(dirtyFile)) {
+          uploadedFiles.add(dirtyFile);
+        }
+        else {
+          uploadedResources.add(dirtyFile);
+        }
+      }
     }
 
     // process full synchronization
     else {
-      HttpRmi rmi = new HttpRmi(webContextURL, AppsManager.class);
-      rmi.setExceptions(IOException.class);
+      uploadedFiles = new ArrayList<String>(baseDirs.keySet());
+    }
 
-      rmi.invoke("synchronize", targetDir, new StreamHandler<FilesOutputStream>(FilesOutputStream.class)
+    final List<String> orderedFiles = order.sort(baseDirs, uploadedFiles);
+    if(dryRunPlan != null) {
+      dryRunPlan.addTarget(targetDir, baseDirs, orderedFiles, staleFiles != null ? staleFiles : Collections.<String> emptySet(), baseDirs.size() - orderedFiles.size());
+      if(uploadedResources != null && !uploadedResources.isEmpty()) {
+        Log log = new Log(getProject(), Sync.class);
+        log.warning("Target |%s|: %d resource(s) to upload, not recorded into synchronization plan.", targetDir, uploadedResources.size());
+      }
+      return;
+    }
+    span = metrics.start("sync.upload");
+    final Set<String> resourceNames = uploadedResources;
+    final Set<String> removedFiles = staleFiles != null ? new TreeSet<String>() : null;
+    final Set<String> removingFiles = staleFiles;
+    boolean changed = !orderedFiles.isEmpty() || (staleFiles != null && !staleFiles.isEmpty()) || (resourceNames == null ? !mapping.resources.isEmpty() : !resourceNames.isEmpty());
+    apply(execution, targetDir, changed, new Upload()
+    {
+      @Override
+      public void upload(String dir) throws Exception
       {
-        @Override
-        protected void handle(FilesOutputStream files) throws IOException
-        {
-          files.addFiles(sourceDir);
-        }
-      });
+        removeFiles(execution, dir, removingFiles, removedFiles);
+        Sync.this.upload(execution, dir, baseDirs, orderedFiles, mapping.resources, resourceNames);
+      }
+    });
+    span.end();
+    logRemovedFiles(targetDir, removedFiles);
+    metrics.count("sync.uploaded.files", orderedFiles.size());
+    if(metrics.isEnabled()) {
+      long bytes = 0;
+      for(String file : orderedFiles) {
+        bytes += new File(baseDirs.get(file), file).length();
+      }
+      metrics.count("sync.uploaded.bytes", bytes);
     }
+    if(full && !mapping.resources.isEmpty()) {
+      // on full synchronization streamed resources names are not known
+      return;
+    }
+    updateJournal(execution, mapping, allFiles, staleFiles, removedFiles, scanned);
+  }
+
+  /**
+   * Synchronize archive entries with remote directory. Archive entries are filtered by include and exclude patterns,
+   * digested and uploaded directly from archive, without extracting archive to disk. Digest cache, if present, uses
+   * entry size, compressed size, time and CRC from archive directory as validity key so that unchanged entries are not
+   * inflated for hashing.
+   * Synchronization journal is updated, except on dry run.
+   * 
+   * @param execution execution state,
+   * @param mapping source archive and remote target directory.
+   * @throws Exception if archive reading or HTTP-RMI request fails.
+   */
+  private void synchronizeArchive(final Execution execution, Mapping mapping) throws Exception
+  {
+    final Agent agent = execution.agent;
+    String targetDir = mapping.targetDir;
+    Metrics metrics = execution.metrics;
+    final TokenBucket bucket = execution.bucket;
+    File archiveFile = mapping.sourceDir;
+    final ZipFile archive = new ZipFile(archiveFile);
+    try {
+      final Map<String, ZipEntry> entries = new LinkedHashMap<String, ZipEntry>();
+      Map<String, Long> lengths = new HashMap<String, Long>();
+      Metrics.Span span = metrics.start("sync.walk");
+      Enumeration<? extends ZipEntry> enumeration = archive.entries();
+      while(enumeration.hasMoreElements()) {
+        ZipEntry entry = enumeration.nextElement();
+        String name = Files.path2unix(entry.getName());
+        if(!entry.isDirectory() && isIncluded(name)) {
+          entries.put(name, entry);
+          lengths.put(name, entry.getSize());
+        }
+      }
+      span.end();
+      metrics.count("sync.files", entries.size());
+
+      List<String> uploadedFiles;
+      // stale files to remove, null if stale files are not removed
+      Set<String> staleFiles = null;
+      boolean scanned = false;
+      if(!full) {
+        Map<String, Content> sourceFiles = new HashMap<String, Content>();
+        for(Map.Entry<String, ZipEntry> entry : entries.entrySet()) {
+          sourceFiles.put(entry.getKey(), new EntryContent(archive, archiveFile, entry.getValue(), execution.digestCache));
+        }
+
+        span = metrics.start("sync.negotiate");
+        if(removeStaleFiles) {
+          staleFiles = getJournalStaleFiles(execution, mapping, entries.keySet());
+          if(staleFiles == null) {
+            staleFiles = scanStaleFiles(execution, mapping, entries.keySet());
+            scanned = staleFiles != null;
+          }
+        }
+        span.end();
+        // agent not supporting stale files scan removes stale files while comparing files, except on dry run
+        boolean legacyRemoval = removeStaleFiles && staleFiles == null && execution.dryRunPlan == null;
+        uploadedFiles = getDirtyFiles(execution, targetDir, sourceFiles, legacyRemoval);
+        if(legacyRemoval) {
+          staleFiles = Collections.emptySet();
+        }
+      }
+      else {
+        uploadedFiles = new ArrayList<String>(entries.keySet());
+      }
+
+      final List<String> orderedFiles = order.sort(uploadedFiles, lengths);
+      if(execution.dryRunPlan != null) {
+        Log log = new Log(getProject(), Sync.class);
+        log.warning("Target |%s|: %d archive entries to upload and %d stale file(s) to remove, not recorded into synchronization plan.", targetDir, orderedFiles.size(), staleFiles != null ? staleFiles.size() : 0);
+        return;
+      }
+      final Set<String> removedFiles = staleFiles != null ? new TreeSet<String>() : null;
+      final Set<String> removingFiles = staleFiles;
+      if(!orderedFiles.isEmpty() || (staleFiles != null && !staleFiles.isEmpty())) {
+        span = metrics.start("sync.upload");
+        apply(execution, targetDir, true, new Upload()
+        {
+          @Override
+          public void upload(String dir) throws Exception
+          {
+            removeFiles(execution, dir, removingFiles, removedFiles);
+            if(orderedFiles.isEmpty()) {
+              return;
+            }
+            agent.synchronize(dir, new StreamHandler<FilesOutputStream>(FilesOutputStream.class)
+            {
+              @Override
+              protected void handle(FilesOutputStream files) throws IOException
+              {
+                for(String name : orderedFiles) {
+                  InputStream inputStream = archive.getInputStream(entries.get(name));
+                  if(bucket != null) {
+                    inputStream = new ThrottledInputStream(inputStream, bucket);
+                  }
+                  try {
+                    files.addFileEntry(name, inputStream);
+                  }
+                  finally {
+                    Files.close(inputStream);
+                  }
+                }
+              }
+            });
+          }
+        });
+        span.end();
+        metrics.count("sync.uploaded.files", orderedFiles.size());
+        long bytes = 0;
+        for(String name : orderedFiles) {
+          bytes += lengths.get(name);
+        }
+        metrics.count("sync.uploaded.bytes", bytes);
+        logRemovedFiles(targetDir, removedFiles);
+      }
+      updateJournal(execution, mapping, new HashSet<String>(entries.keySet()), staleFiles, removedFiles, scanned);
+    }
+    finally {
+      archive.close();
+    }
+  }
+
+  /**
+   * Get archive entry digest from digest cache, if present and valid, or compute it from entry content. Cache entry key
+   * is entry name, followed by entry compressed size and time; entry size and CRC are used to validate
+   * cached digest. CRC is only 32 bits and distinct contents can share it; an entry rewritten with the same size and
+   * CRC is still detected if its compressed size or time changed. An entry changed with the same size, compressed size,
+   * time and CRC reuses stale digest.
+   * 
+   * @param archive opened archive,
+   * @param archiveFile archive file,
+   * @param entry archive entry,
+   * @param algorithm message digest algorithm,
+   * @param digestCache digest cache, possible null.
+   * @return entry digest.
+   * @throws IOException if archive reading fails.
+   */
+  private static byte[] getEntryDigest(ZipFile archive, File archiveFile, ZipEntry entry, String algorithm, DigestCache digestCache) throws IOException
+  {
+    if(digestCache == null || entry.getCrc() == -1) {
+      return Utils.getDigest(archive.getInputStream(entry), algorithm);
+    }
+    String key = getEntryKey(entry);
+    byte[] digest = digestCache.getDigest(archiveFile, key, entry.getSize(), entry.getCrc(), algorithm);
+    if(digest == null) {
+      digest = Utils.getDigest(archive.getInputStream(entry), algorithm);
+      digestCache.putDigest(archiveFile, key, entry.getSize(), entry.getCrc(), algorithm, digest);
+    }
+    return digest;
+  }
+
+  /**
+   * Get digest cache key for archive entry: entry name followed by entry compressed size and time. Entry attributes not
+   * fitting cache entry version are part of the key; previous keys are pruned as not used.
+   * 
+   * @param entry archive entry.
+   * @return entry cache key.
+   */
+  private static String getEntryKey(ZipEntry entry)
+  {
+    return String.format("%s:%d:%d", entry.getName(), entry.getCompressedSize(), entry.getTime());
+  }
+
+  /**
+   * Compare source files with target directory files and return dirty files, sorted by path. If agent supports fast
+   * digest, see {@link Agent#FAST_DIGEST_ALGORITHM}, comparison has two passes. Files without a trusted cached digest
+   * are compared first by fast digest; files with different fast digest are dirty and their negotiated digest is not
+   * computed. Files with equal fast digest are confirmed by negotiated digest, together with files having a cached
+   * digest, so that a dirty file is never missed on a fast digest collision.
+   * <p>
+   * Fast pass is not used if agent removes stale files while comparing files, since stale files are all target files not
+   * present into compared source files.
+   * 
+   * @param execution execution state,
+   * @param targetDir target directory,
+   * @param sourceFiles source files content mapped to file path,
+   * @param removeStaleFiles if true agent removes stale files while comparing files.
+   * @return dirty files, possible empty.
+   * @throws Exception if source reading or HTTP-RMI request fails.
+   */
+  private static List<String> getDirtyFiles(Execution execution, String targetDir, Map<String, Content> sourceFiles, boolean removeStaleFiles) throws Exception
+  {
+    Agent agent = execution.agent;
+    Metrics metrics = execution.metrics;
+    String algorithm = execution.digestAlgorithm;
+    boolean fastPass = execution.fastDigest && !removeStaleFiles;
+
+    Metrics.Span span = metrics.start("sync.hash");
+    SortedMap<String, byte[]> digests = new TreeMap<String, byte[]>();
+    SortedMap<String, byte[]> fastDigests = new TreeMap<String, byte[]>();
+    for(Map.Entry<String, Content> entry : sourceFiles.entrySet()) {
+      byte[] digest = fastPass ? entry.getValue().getCachedDigest(algorithm) : entry.getValue().getDigest(algorithm);
+      if(digest != null) {
+        digests.put(entry.getKey(), digest);
+      }
+      else {
+        fastDigests.put(entry.getKey(), entry.getValue().getFastDigest());
+      }
+    }
+    span.end();
+
+    List<String> dirtyFiles = new ArrayList<String>();
+    if(!fastDigests.isEmpty()) {
+      span = metrics.start("sync.negotiate");
+      Set<String> changedFiles = new HashSet<String>(agent.getDirtyFiles(targetDir, Agent.FAST_DIGEST_ALGORITHM, fastDigests, false));
+      span.end();
+      metrics.count("sync.fast.dirty", changedFiles.size());
+
+      span = metrics.start("sync.hash");
+      for(String file : fastDigests.keySet()) {
+        if(changedFiles.contains(file)) {
+          dirtyFiles.add(file);
+        }
+        else {
+          digests.put(file, sourceFiles.get(file).getDigest(algorithm));
+        }
+      }
+      span.end();
+    }
+
+    if(!digests.isEmpty() || removeStaleFiles) {
+      span = metrics.start("sync.negotiate");
+      dirtyFiles.addAll(agent.getDirtyFiles(targetDir, algorithm, digests, removeStaleFiles));
+      span.end();
+    }
+    Collections.sort(dirtyFiles);
+    return dirtyFiles;
+  }
+
+  /**
+   * Test if file path is selected by include and exclude patterns. Used for archive entries; source directory files
+   * are selected by directory scanner.
+   * 
+   * @param path file path, in Unix format.
+   * @return true if file is included and not excluded.
+   */
+  private boolean isIncluded(String path)
+  {
+    if(includes != null && !matchPath(includes, path)) {
+      return false;
+    }
+    return excludes == null || !matchPath(excludes, path);
+  }
+
+  private static boolean matchPath(String[] patterns, String path)
+  {
+    for(String pattern : patterns) {
+      if(pattern.endsWith("/")) {
+        pattern += "**";
+      }
+      if(SelectorUtils.matchPath(pattern, path)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get stale files on mapping target directory from synchronization journal, that is, files synchronized by last run
+   * and missing from current source files. Returns null if journal cannot be trusted and target directory should be
+   * scanned by agent: there is no synchronization journal, target directory was not yet recorded into journal or it was
+   * not scanned for the last {@link #scanInterval} days.
+   * 
+   * @param execution execution state,
+   * @param mapping source files mapping,
+   * @param sourceFiles current source files.
+   * @return stale files, possible empty, or null if target directory should be scanned.
+   */
+  private Set<String> getJournalStaleFiles(Execution execution, Mapping mapping, Set<String> sourceFiles)
+  {
+    SyncJournal journal = execution.journal;
+    if(journal == null) {
+      return null;
+    }
+    String key = journalKey(mapping);
+    if(System.currentTimeMillis() - journal.getScanTime(key) >= scanInterval * 24L * 3600L * 1000L) {
+      return null;
+    }
+    return journal.getStaleFiles(key, sourceFiles);
+  }
+
+  /**
+   * Ask agent to scan mapping target directory for stale files, that is, target files not present into source files.
+   * Returns null if agent does not support stale files scan; in that case stale files are removed by agent while
+   * comparing files, see {@link Agent#getDirtyFiles(String, String, SortedMap, boolean)}, and are not known by this
+   * task.
+   * 
+   * @param execution execution state,
+   * @param mapping source files mapping,
+   * @param sourceFiles current source files.
+   * @return stale files, possible empty, or null if agent does not support stale files scan.
+   * @throws Exception if HTTP-RMI request fails.
+   */
+  private Set<String> scanStaleFiles(Execution execution, Mapping mapping, Set<String> sourceFiles) throws Exception
+  {
+    try {
+      return new TreeSet<String>(execution.agent.getStaleFiles(mapping.targetDir, new ArrayList<String>(new TreeSet<String>(sourceFiles))));
+    }
+    catch(MethodNotFoundException e) {
+      Log log = new Log(getProject(), Sync.class);
+      if(execution.dryRunPlan != null) {
+        log.warning("Agent does not support stale files scan. Stale files from |%s| are not evaluated on dry run.", mapping.targetDir);
+      }
+      else {
+        log.warning("Agent does not support stale files scan. Stale files from |%s| are removed while comparing files and are not logged.", mapping.targetDir);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Ask agent to remove stale files from remote directory, target or staging directory, and collect files agent
+   * confirms as removed. Does nothing if stale files are null or empty.
+   * 
+   * @param execution execution state,
+   * @param dir remote directory,
+   * @param staleFiles stale files to remove, possible null,
+   * @param removedFiles files removed by agent, updated by this method.
+   * @throws Exception if HTTP-RMI request fails.
+   */
+  private static void removeFiles(Execution execution, String dir, Set<String> staleFiles, Set<String> removedFiles) throws Exception
+  {
+    if(staleFiles == null || staleFiles.isEmpty()) {
+      return;
+    }
+    removedFiles.addAll(execution.agent.removeFiles(dir, new ArrayList<String>(staleFiles)));
+  }
+
+  /**
+   * Log stale files removed from target directory, as confirmed by agent.
+   * 
+   * @param targetDir target directory,
+   * @param removedFiles removed files, possible null.
+   */
+  private void logRemovedFiles(String targetDir, Set<String> removedFiles)
+  {
+    if(removedFiles == null || removedFiles.isEmpty()) {
+      return;
+    }
+    Log log = new Log(getProject(), Sync.class);
+    log.info("Removed %d stale file(s) from |%s|.", removedFiles.size(), targetDir);
+    for(String file : removedFiles) {
+      log.debug("Removed stale file |%s|.", file);
+    }
+  }
+
+  /**
+   * Record synchronized source files and removed stale files into synchronization journal, if configured. Does nothing
+   * on dry run.
+   * 
+   * @param execution execution state,
+   * @param mapping source files mapping,
+   * @param sourceFiles synchronized source files,
+   * @param staleFiles stale files requested for removal,
+   * @param removedFiles files removed by agent, null if stale files removal was not requested,
+   * @param scanned true if target directory was scanned for stale files.
+   */
+  private void updateJournal(Execution execution, Mapping mapping, Set<String> sourceFiles, Set<String> staleFiles, Set<String> removedFiles, boolean scanned)
+  {
+    SyncJournal journal = execution.journal;
+    if(journal == null || execution.dryRunPlan != null) {
+      return;
+    }
+    String key = journalKey(mapping);
+    if(removedFiles == null) {
+      journal.merge(key, sourceFiles);
+      return;
+    }
+    journal.update(key, sourceFiles, staleFiles, removedFiles);
+    if(scanned) {
+      journal.setScanTime(key, System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Get synchronization journal key for mapping target directory. Key includes host name since the same journal file
+   * may be used for many hosts.
+   * 
+   * @param mapping source files mapping.
+   * @return journal key.
+   */
+  private String journalKey(Mapping mapping)
+  {
+    return hostName + ":" + mapping.targetDir;
+  }
+
+  /**
+   * Apply upload to target directory. On staged synchronization upload goes to a staging directory that replaces target
+   * directory after upload completes. Staging directory is created only if there are changes to apply; if upload or
+   * switch fails staging directory is removed so that target directory is left unchanged and next staged
+   * synchronization starts from a fresh copy of target directory.
+   * 
+   * @param execution execution state,
+   * @param targetDir target directory,
+   * @param changed true if upload changes target directory,
+   * @param upload upload to apply.
+   * @throws Exception if upload or HTTP-RMI request fails.
+   */
+  private void apply(Execution execution, String targetDir, boolean changed, Upload upload) throws Exception
+  {
+    if(!staged) {
+      upload.upload(targetDir);
+      return;
+    }
+    if(!changed) {
+      Log log = new Log(getProject(), Sync.class);
+      log.debug("Target |%s| is up to date. Staging directory not created.", targetDir);
+      return;
+    }
+
+    Agent agent = execution.agent;
+    String stagingDir = agent.createStagingDirectory(targetDir);
+    try {
+      upload.upload(stagingDir);
+      agent.switchStagingDirectory(targetDir);
+    }
+    catch(Exception e) {
+      try {
+        agent.removeStagingDirectory(targetDir);
+      }
+      catch(Exception removeException) {
+        Log log = new Log(getProject(), Sync.class);
+        log.warning("Fail to remove staging directory for target |%s|: %s", targetDir, removeException.getMessage());
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Upload files to remote directory, in given order. Does nothing if files list is empty.
+   * 
+   * @param execution execution state,
+   * @param targetDir remote directory,
+   * @param baseDirs base directories mapped to file paths,
+   * @param files file paths relative to base directories.
+   * @throws Exception if HTTP-RMI request fails for some reason.
+   */
+  private void upload(Execution execution, String targetDir, Map<String, File> baseDirs, List<String> files) throws Exception
+  {
+    upload(execution, targetDir, baseDirs, files, Collections.<ResourceCollection> emptyList(), Collections.<String> emptySet());
+  }
+
+  /**
+   * Upload files, in given order, followed by streamed resources to remote directory. Resource collections are iterated
+   * lazily, while uploading. Does nothing if there are no files and no resources to upload.
+   * 
+   * @param execution execution state,
+   * @param targetDir remote directory,
+   * @param baseDirs base directories mapped to file paths,
+   * @param files file paths relative to base directories,
+   * @param resources resource collections,
+   * @param resourceNames names of resources to upload, null to upload all resources.
+   * @throws Exception if HTTP-RMI request fails for some reason.
+   */
+  private void upload(Execution execution, String targetDir, final Map<String, File> baseDirs, final List<String> files, final List<ResourceCollection> resources, final Set<String> resourceNames) throws Exception
+  {
+    if(files.isEmpty() && (resources.isEmpty() || (resourceNames != null && resourceNames.isEmpty()))) {
+      return;
+    }
+    final TokenBucket bucket = execution.bucket;
+    execution.agent.synchronize(targetDir, new StreamHandler<FilesOutputStream>(FilesOutputStream.class)
+    {
+      @Override
+      protected void handle(FilesOutputStream filesStream) throws IOException
+      {
+        Utils.addFiles(filesStream, baseDirs, files, bucket);
+        Utils.addResources(filesStream, resources, resourceNames, true, bucket);
+      }
+    });
+  }
+
+  /**
+   * Execute synchronization plan created by a previous dry run. Files hashing and negotiation with server are not
+   * performed; planned stale files are removed, if still present on target directory.
+   * 
+   * @param execution execution state.
+   * @throws Exception if a planned file was changed or HTTP-RMI request fails.
+   */
+  private void executePlan(final Execution execution) throws Exception
+  {
+    SyncPlan plan = SyncPlan.load(execution.planFile);
+    for(String targetDir : plan.getTargetDirs()) {
+      final Map<String, File> baseDirs = plan.getUploadFiles(targetDir);
+      final List<String> files = new ArrayList<String>(baseDirs.keySet());
+      final Set<String> staleFiles = new TreeSet<String>(plan.getRemoveFiles(targetDir));
+      final Set<String> removedFiles = new TreeSet<String>();
+      apply(execution, targetDir, !files.isEmpty() || !staleFiles.isEmpty(), new Upload()
+      {
+        @Override
+        public void upload(String dir) throws Exception
+        {
+          removeFiles(execution, dir, staleFiles, removedFiles);
+          Sync.this.upload(execution, dir, baseDirs, files);
+        }
+      });
+      logRemovedFiles(targetDir, removedFiles);
+    }
+  }
+
+  /**
+   * Log dry run report and save synchronization plan, if plan file is configured. Transfer time is estimated only if
+   * bandwidth is limited, see {@link #rate}.
+   * 
+   * @param plan synchronization plan,
+   * @param planFile absolute plan file, possible null.
+   * @throws IOException if plan file write fails.
+   */
+  private void report(SyncPlan plan, File planFile) throws IOException
+  {
+    Log log = new Log(getProject(), Sync.class);
+    long totalBytes = 0;
+    for(String targetDir : plan.getTargetDirs()) {
+      long bytes = plan.getUploadBytes(targetDir);
+      totalBytes += bytes;
+      List<String> removeFiles = plan.getRemoveFiles(targetDir);
+      log.info("Target |%s|: %d file(s) to upload, %d file(s) to remove, %d file(s) unchanged, %d bytes.", targetDir, plan.getUploadCount(targetDir), removeFiles.size(), plan.getUnchangedCount(targetDir), bytes);
+      for(String file : removeFiles) {
+        log.info("Stale file |%s| to remove.", file);
+      }
+    }
+    if(rate > 0) {
+      log.info("Total upload %d bytes, estimated time %d seconds.", totalBytes, totalBytes / (rate * 1024L));
+    }
+    else {
+      log.info("Total upload %d bytes.", totalBytes);
+    }
+    if(planFile != null) {
+      plan.save(planFile);
+    }
+  }
+
+  /**
+   * Scan mapping source directory, file sets and file based resources. Source directory scanning uses include and
+   * exclude patterns; excluded directories are not traversed. Returns base directories mapped to file paths, relative
+   * to base directory and in Unix format. If a file path is present in more than one base directory last one wins.
+   * Resources that are not files with base directory are not included; they are streamed on upload.
+   * 
+   * @param mapping source files mapping.
+   * @return base directories mapped to file paths.
+   */
+  private Map<String, File> scan(Mapping mapping)
+  {
+    Map<String, File> baseDirs = new LinkedHashMap<String, File>();
+    if(mapping.sourceDir != null) {
+      DirectoryScanner scanner = new DirectoryScanner();
+      scanner.setBasedir(mapping.sourceDir);
+      scanner.setIncludes(includes);
+      scanner.setExcludes(excludes);
+      scanner.scan();
+      for(String file : scanner.getIncludedFiles()) {
+        baseDirs.put(Files.path2unix(file), mapping.sourceDir);
+      }
+    }
+    for(FileSet fileset : mapping.filesets) {
+      File dir = fileset.getDir(getProject());
+      for(String file : fileset.getDirectoryScanner(getProject()).getIncludedFiles()) {
+        baseDirs.put(Files.path2unix(file), dir);
+      }
+    }
+    for(ResourceCollection collection : mapping.resources) {
+      for(Resource resource : collection) {
+        if(!resource.isDirectory() && resource.isExists() && Utils.isBaseDirFile(resource)) {
+          FileResource file = (FileResource)resource;
+          baseDirs.put(Files.path2unix(file.getName()), file.getBaseDir());
+        }
+      }
+    }
+    return baseDirs;
+  }
+
+  /**
+   * Parse include or exclude patterns. Patterns are separated by comma or spaces and use Ant pattern syntax. For
+   * backward compatibility, a pattern without wildcards and path separator is a file name suffix, e.g.
+   * <code>.js</code>, and is converted to <code>**&#47;*.js</code>.
+   * 
+   * @param patterns patterns list.
+   * @return patterns array.
+   */
+  private static String[] parsePatterns(String patterns)
+  {
+    List<String> result = new ArrayList<String>();
+    for(String pattern : patterns.split("[,\\s]+")) {
+      if(pattern.isEmpty()) {
+        continue;
+      }
+      if(pattern.indexOf('*') == -1 && pattern.indexOf('?') == -1 && pattern.indexOf('/') == -1) {
+        pattern = "**/*" + pattern;
+      }
+      result.add(pattern);
+    }
+    return result.toArray(new String[result.size()]);
+  }
+
+  /**
+   * Source file content compared with target directory file, see
+   * {@link Sync#getDirtyFiles(Execution, String, Map, boolean)}.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  private interface Content
+  {
+    /**
+     * Get content digest from digest cache, without computing it.
+     * 
+     * @param algorithm message digest algorithm.
+     * @return cached digest or null if digest is not cached or cached digest is not trusted.
+     * @throws IOException if content reading fails.
+     */
+    byte[] getCachedDigest(String algorithm) throws IOException;
+
+    byte[] getDigest(String algorithm) throws IOException;
+
+    /**
+     * Get content fast digest, see {@link Agent#FAST_DIGEST_ALGORITHM}. Fast digest is not cached.
+     * 
+     * @return fast digest.
+     * @throws IOException if content reading fails.
+     */
+    byte[] getFastDigest() throws IOException;
+  }
+
+  /**
+   * File system file content, digested through digest cache if configured.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  private static class FileContent implements Content
+  {
+    private final File file;
+    private final DigestCache digestCache;
+
+    FileContent(File file, DigestCache digestCache)
+    {
+      this.file = file;
+      this.digestCache = digestCache;
+    }
+
+    @Override
+    public byte[] getCachedDigest(String algorithm)
+    {
+      return digestCache != null ? digestCache.getCachedDigest(file, algorithm) : null;
+    }
+
+    @Override
+    public byte[] getDigest(String algorithm) throws IOException
+    {
+      return digestCache != null ? digestCache.getDigest(file, algorithm) : Utils.getFileDigest(file, algorithm);
+    }
+
+    @Override
+    public byte[] getFastDigest() throws IOException
+    {
+      return Utils.getFileDigest(file, Agent.FAST_DIGEST_ALGORITHM);
+    }
+  }
+
+  /**
+   * Streamed resource content. Resource digest is not cached.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  private static class ResourceContent implements Content
+  {
+    private final Resource resource;
+
+    ResourceContent(Resource resource)
+    {
+      this.resource = resource;
+    }
+
+    @Override
+    public byte[] getCachedDigest(String algorithm)
+    {
+      return null;
+    }
+
+    @Override
+    public byte[] getDigest(String algorithm) throws IOException
+    {
+      return Utils.getResourceDigest(resource, algorithm);
+    }
+
+    @Override
+    public byte[] getFastDigest() throws IOException
+    {
+      return Utils.getResourceDigest(resource, Agent.FAST_DIGEST_ALGORITHM);
+    }
+  }
+
+  /**
+   * Archive entry content. Fast digest is taken from entry size and CRC recorded into archive directory, so that entry
+   * is not inflated, unless archive does not record CRC.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  private static class EntryContent implements Content
+  {
+    private final ZipFile archive;
+    private final File archiveFile;
+    private final ZipEntry entry;
+    private final DigestCache digestCache;
+
+    EntryContent(ZipFile archive, File archiveFile, ZipEntry entry, DigestCache digestCache)
+    {
+      this.archive = archive;
+      this.archiveFile = archiveFile;
+      this.entry = entry;
+      this.digestCache = digestCache;
+    }
+
+    @Override
+    public byte[] getCachedDigest(String algorithm)
+    {
+      if(digestCache == null || entry.getCrc() == -1) {
+        return null;
+      }
+      return digestCache.getDigest(archiveFile, getEntryKey(entry), entry.getSize(), entry.getCrc(), algorithm);
+    }
+
+    @Override
+    public byte[] getDigest(String algorithm) throws IOException
+    {
+      return getEntryDigest(archive, archiveFile, entry, algorithm, digestCache);
+    }
+
+    @Override
+    public byte[] getFastDigest() throws IOException
+    {
+      if(entry.getCrc() == -1 || entry.getSize() == -1) {
+        return Utils.getDigest(archive.getInputStream(entry), Agent.FAST_DIGEST_ALGORITHM);
+      }
+      return Utils.getFastDigest(entry.getSize(), entry.getCrc());
+    }
+  }
+
+  /**
+   * Upload of synchronized files to a remote directory, either target directory or its staging directory.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  private interface Upload
+  {
+    void upload(String dir) throws Exception;
+  }
+
+  /**
+   * Synchronization nested element mapping a local source directory to a remote target directory. Target directory is
+   * mandatory; source directory is mandatory only if there are no nested file sets or resource collections.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  public static class Mapping
+  {
+    File sourceDir;
+    String targetDir;
+    final List<FileSet> filesets = new ArrayList<FileSet>();
+    final List<ResourceCollection> resources = new ArrayList<ResourceCollection>();
+
+    public Mapping()
+    {
+    }
+
+    /**
+     * Create a copy of given mapping. File sets and resource collections are shared.
+     * 
+     * @param mapping mapping to copy.
+     */
+    Mapping(Mapping mapping)
+    {
+      this.sourceDir = mapping.sourceDir;
+      this.targetDir = mapping.targetDir;
+      this.filesets.addAll(mapping.filesets);
+      this.resources.addAll(mapping.resources);
+    }
+
+    public void setSource(String sourceDir)
+    {
+      this.sourceDir = new File(sourceDir);
+    }
+
+    public void setTarget(String targetDir)
+    {
+      this.targetDir = targetDir;
+    }
+
+    public void addFileset(FileSet fileset)
+    {
+      filesets.add(fileset);
+    }
+
+    public void add(ResourceCollection resource)
+    {
+      resources.add(resource);
+    }
+  }
+
+  /**
+   * State of a task execution. Task attributes are not changed while executing; values derived from attributes, e.g.
+   * absolute files and source mappings, and services used while executing are kept by execution state.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  private static class Execution
+  {
+    /** Absolute synchronization plan file, null if not configured. */
+    File planFile;
+    /** Absolute digest cache file, null if not configured. */
+    File digestCacheFile;
+    /** Absolute synchronization journal file, null if not configured. */
+    File journalFile;
+    /** Mapping defined by task attributes, null if task has no source. */
+    Mapping taskMapping;
+    /** Nested target mappings with absolute source directories. */
+    final List<Mapping> mappings = new ArrayList<Mapping>();
+
+    Agent agent;
+    Metrics metrics;
+    /** Message digest algorithm negotiated with agent for incremental synchronization. */
+    String digestAlgorithm;
+    /** Agent supports fast digest first pass, see {@link Agent#FAST_DIGEST_ALGORITHM}. */
+    boolean fastDigest;
+    /** Files digest cache, null if not configured. */
+    DigestCache digestCache;
+    /** Bandwidth limiter, null if bandwidth is not limited. */
+    TokenBucket bucket;
+    /** Synchronization plan collected on dry run, null if not dry run. */
+    SyncPlan dryRunPlan;
+    /** Synchronization journal, null if not configured. */
+    SyncJournal journal;
   }
 }
@@ -1,10 +1,7 @@
 package js.tools.ant.task;
 
-import java.io.IOException;
-
-import js.server.client.AppsManager;
+import js.tools.ant.util.Agent;
 import js.tools.ant.util.Utils;
-import js.tools.commons.rmi.HttpRmi;
 import js.tools.commons.util.Files;
 
 import org.apache.tools.ant.BuildException;
@@ -100,9 +97,7 @@ public class Undeploy extends Task
 
   private void execute(String webContextURL) throws Exception
   {
-    HttpRmi rmi = new HttpRmi(webContextURL, AppsManager.class);
-    rmi.setReturnType(boolean.class);
-    rmi.setExceptions(IOException.class);
-    rmi.invoke("undeploy", Files.basename(fileName), false);
+    Agent agent = Agent.getInstance(getProject(), webContextURL);
+    agent.undeploy(Files.basename(fileName));
   }
 }
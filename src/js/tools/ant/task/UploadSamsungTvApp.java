@@ -4,15 +4,13 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 
-import js.server.client.AppsManager;
+import js.tools.ant.util.Agent;
 import js.tools.ant.util.Log;
 import js.tools.ant.util.Utils;
-import js.tools.commons.rmi.HttpRmi;
 import js.tools.commons.rmi.StreamHandler;
 import js.tools.commons.util.Files;
 
 import org.apache.tools.ant.BuildException;
-import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
 
 /**
@@ -72,14 +70,9 @@ public class UploadSamsungTvApp extends Task
     this.fileName = fileName;
   }
 
-  private Log log;
-
   @Override
   public void execute() throws BuildException
   {
-    Project project = getProject();
-    log = new Log(project, getClass());
-
     if(hostName == null) {
       Utils.badArgument(this, "Host name is missing. Please set <host> attribute.");
     }
@@ -98,12 +91,10 @@ public class UploadSamsungTvApp extends Task
 
   private void execute(String webContextURL) throws Exception
   {
-    HttpRmi rmi = new HttpRmi(webContextURL, AppsManager.class);
-    rmi.setReturnType(boolean.class);
-    rmi.setExceptions(IOException.class);
-
+    Log log = new Log(getProject(), getClass());
+    Agent agent = Agent.getInstance(getProject(), webContextURL);
     final File archiveFile = new File(getProject().getBaseDir(), fileName);
-    boolean success = rmi.invoke("uploadSamsungTvApp", archiveFile.getName(), new StreamHandler<OutputStream>(OutputStream.class)
+    boolean success = agent.uploadSamsungTvApp(archiveFile.getName(), new StreamHandler<OutputStream>(OutputStream.class)
     {
       @Override
       protected void handle(OutputStream outputStream) throws IOException
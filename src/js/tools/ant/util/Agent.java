@@ -0,0 +1,318 @@
+package js.tools.ant.util;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import js.server.client.AppsManager;
+import js.tools.commons.rmi.FilesOutputStream;
+import js.tools.commons.rmi.HttpRmi;
+import js.tools.commons.rmi.StreamHandler;
+import js.tools.commons.util.GType;
+
+import org.apache.tools.ant.Project;
+
+/**
+ * Client for remote applications manager agent, see js.server.client.AppsManager. Agent instance is shared by all
+ * tasks from a build that use the same agent URL, as created by {@link Utils#URL(boolean, String, int, String)}. It is
+ * stored as Ant project reference and retrieved with {@link #getInstance(Project, String)}.
+ * <p>
+ * Every remote invocation uses its own HTTP-RMI client since client keeps per call state; clients are cheap to create.
+ * All invocations from a build target the same host so that underlying HTTP connections are kept alive by JVM
+ * connection cache and secure sessions are resumed, instead of paying a new handshake for every task.
+ * <p>
+ * Remote methods added after first agent release are not implemented by older agents; invoking them fails with
+ * {@link MethodNotFoundException} so that callers can fall back to methods supported by all agents.
+ * <p>
+ * Agent methods can be overridden by subclasses, for example by an in-process stand-in used for tests and load tests,
+ * registered for an agent URL with {@link #register(Project, String, Agent)} before tasks execution.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class Agent
+{
+  /** Message digest algorithm supported by all agents, used when agent does not support digest negotiation. */
+  public static final String DEFAULT_DIGEST_ALGORITHM = "MD5";
+
+  /**
+   * Fast, non cryptographic, digest used for a first files comparison pass, if agent supports it: content length, as 8
+   * bytes big endian, followed by content CRC-32, as 4 bytes big endian. Different fast digests prove content changed;
+   * equal fast digests should be confirmed by a collision safe digest. See {@link Utils#getFastDigest(long, long)}.
+   */
+  public static final String FAST_DIGEST_ALGORITHM = "CRC32";
+
+  /** Prefix for Ant project reference storing agent instance; agent URL is appended. */
+  private static final String REFERENCE_PREFIX = "js.tools.ant.agent:";
+
+  /**
+   * Get agent instance for requested URL, creating it if not already present on given project. If project is null,
+   * that happens only on tests, returns a new agent instance.
+   * 
+   * @param project Ant project, possible null,
+   * @param url agent web context URL.
+   * @return agent instance.
+   */
+  public static Agent getInstance(Project project, String url)
+  {
+    if(project == null) {
+      return new Agent(url);
+    }
+    synchronized(project) {
+      String reference = REFERENCE_PREFIX + url;
+      Agent agent = (Agent)project.getReference(reference);
+      if(agent == null) {
+        agent = new Agent(url);
+        project.addReference(reference, agent);
+      }
+      return agent;
+    }
+  }
+
+  /**
+   * Register agent instance for requested URL on given project, replacing existing instance, if any. Tasks from given
+   * project using agent URL will use registered instance.
+   * 
+   * @param project Ant project,
+   * @param url agent web context URL,
+   * @param agent agent instance.
+   */
+  public static void register(Project project, String url, Agent agent)
+  {
+    synchronized(project) {
+      project.addReference(REFERENCE_PREFIX + url, agent);
+    }
+  }
+
+  /** Agent web context URL. */
+  private final String url;
+
+  protected Agent(String url)
+  {
+    this.url = url;
+  }
+
+  public String getURL()
+  {
+    return url;
+  }
+
+  /**
+   * Get message digest algorithms supported by agent for files comparison, see
+   * {@link #getDirtyFiles(String, String, SortedMap, boolean)}, in agent preference order. List may include
+   * {@link #FAST_DIGEST_ALGORITHM}. Agents not supporting digest negotiation fail this method with
+   * {@link MethodNotFoundException}; they support only {@link #DEFAULT_DIGEST_ALGORITHM}.
+   * 
+   * @return supported digest algorithms.
+   * @throws MethodNotFoundException if agent does not support digest negotiation.
+   * @throws Exception if remote invocation fails.
+   */
+  public List<String> getDigestAlgorithms() throws Exception
+  {
+    return invoke("getDigestAlgorithms", new GType(List.class, String.class));
+  }
+
+  /**
+   * Send source files digest and get back the list of files that are not present on target directory or have different
+   * digest. Digest algorithm should be {@link #DEFAULT_DIGEST_ALGORITHM} or one returned by
+   * {@link #getDigestAlgorithms()}. Default algorithm uses original <code>getDirtyFiles</code> remote method, supported
+   * by all agents; negotiated algorithms use <code>getDirtyFilesByDigest</code>, that has algorithm name as extra
+   * argument and is implemented only by agents supporting digest negotiation.
+   * 
+   * @param targetDir target directory, relative to server document root,
+   * @param algorithm message digest algorithm used for source files digest,
+   * @param sourceFiles source files digest mapped to path relative to source directory,
+   * @param removeStaleFiles if true remove target files not present into source files.
+   * @return dirty files list, possible empty.
+   * @throws Exception if remote invocation fails.
+   */
+  public List<String> getDirtyFiles(String targetDir, String algorithm, SortedMap<String, byte[]> sourceFiles, boolean removeStaleFiles) throws Exception
+  {
+    if(DEFAULT_DIGEST_ALGORITHM.equals(algorithm)) {
+      return invoke("getDirtyFiles", new GType(List.class, String.class), targetDir, sourceFiles, removeStaleFiles);
+    }
+    return invoke("getDirtyFilesByDigest", new GType(List.class, String.class), targetDir, algorithm, sourceFiles, removeStaleFiles);
+  }
+
+  /**
+   * Get target directory files not present into source files, without removing them. Older agents do not support
+   * this method; they remove stale files only from {@link #getDirtyFiles(String, String, SortedMap, boolean)}.
+   * 
+   * @param targetDir target directory, relative to server document root,
+   * @param sourceFiles source files path, relative to source directory.
+   * @return stale files list, possible empty.
+   * @throws MethodNotFoundException if agent does not support this method.
+   * @throws Exception if remote invocation fails.
+   */
+  public List<String> getStaleFiles(String targetDir, List<String> sourceFiles) throws Exception
+  {
+    return invoke("getStaleFiles", new GType(List.class, String.class), targetDir, sourceFiles);
+  }
+
+  /**
+   * Remove listed files from target directory and return the files actually removed. Files not existing on target
+   * directory are not included into returned list.
+   * 
+   * @param targetDir target directory, relative to server document root,
+   * @param files files to remove, path relative to target directory.
+   * @return removed files list, possible empty.
+   * @throws MethodNotFoundException if agent does not support this method.
+   * @throws Exception if remote invocation fails.
+   */
+  public List<String> removeFiles(String targetDir, List<String> files) throws Exception
+  {
+    return invoke("removeFiles", new GType(List.class, String.class), targetDir, files);
+  }
+
+  public void synchronize(String targetDir, StreamHandler<FilesOutputStream> files) throws Exception
+  {
+    invoke("synchronize", null, targetDir, files);
+  }
+
+  /**
+   * Create staging directory for target directory, initialized with target directory files. Staging directory is
+   * created by hard linking target files so that its creation is cheap. Returns staging directory path, relative to
+   * server document root.
+   * 
+   * @param targetDir target directory, relative to server document root.
+   * @return staging directory.
+   * @throws Exception if remote invocation fails.
+   */
+  public String createStagingDirectory(String targetDir) throws Exception
+  {
+    return invoke("createStagingDirectory", String.class, targetDir);
+  }
+
+  /**
+   * Atomically replace target directory with its staging directory. Replaced target directory is kept for rollback.
+   * 
+   * @param targetDir target directory, relative to server document root.
+   * @throws Exception if remote invocation fails.
+   */
+  public void switchStagingDirectory(String targetDir) throws Exception
+  {
+    invoke("switchStagingDirectory", null, targetDir);
+  }
+
+  /**
+   * Remove staging directory of target directory, discarding files synchronized into it. Target directory is not
+   * changed. Returns false if there is no staging directory for target directory.
+   * 
+   * @param targetDir target directory, relative to server document root.
+   * @return true if staging directory was removed.
+   * @throws Exception if remote invocation fails.
+   */
+  public boolean removeStagingDirectory(String targetDir) throws Exception
+  {
+    return this.<Boolean> invoke("removeStagingDirectory", boolean.class, targetDir);
+  }
+
+  /**
+   * Atomically restore target directory replaced by last {@link #switchStagingDirectory(String)}. Returns false if
+   * there is no replaced directory to restore.
+   * 
+   * @param targetDir target directory, relative to server document root.
+   * @return true if target directory was restored.
+   * @throws Exception if remote invocation fails.
+   */
+  public boolean rollbackDirectory(String targetDir) throws Exception
+  {
+    return this.<Boolean> invoke("rollbackDirectory", boolean.class, targetDir);
+  }
+
+  public boolean deploy(String appName, StreamHandler<OutputStream> archive) throws Exception
+  {
+    return this.<Boolean> invoke("deploy", boolean.class, appName, false, archive);
+  }
+
+  /**
+   * Get entries of deployed web archive, as entry CRC and uncompressed size, in this order, mapped to entry name. Returns
+   * null if application is not deployed.
+   * 
+   * @param appName application name.
+   * @return deployed archive entries or null.
+   * @throws Exception if remote invocation fails, including agents not supporting this method.
+   */
+  public Map<String, long[]> getArchiveEntries(String appName) throws Exception
+  {
+    return invoke("getArchiveEntries", new GType(Map.class, String.class, long[].class), appName);
+  }
+
+  /**
+   * Deploy application from delta against currently deployed archive, see {@link WarDelta}. Agent rebuilds web archive
+   * from deployed archive and delta then deploys it. Returns false if deployment fails.
+   * 
+   * @param appName application name,
+   * @param delta delta archive.
+   * @return true if application was deployed.
+   * @throws Exception if remote invocation fails.
+   */
+  public boolean deployDelta(String appName, StreamHandler<OutputStream> delta) throws Exception
+  {
+    return this.<Boolean> invoke("deployDelta", boolean.class, appName, false, delta);
+  }
+
+  /**
+   * Apply delta to deployed application without web context restart, see {@link WarDelta}. Agent updates deployed
+   * archive and replaces changed files on running context; if requested, agent reloads application configuration.
+   * Returns false if agent cannot hot swap delta, in which case application is not changed.
+   * 
+   * @param appName application name,
+   * @param reloadConfig reload application configuration after files replaced,
+   * @param delta delta archive.
+   * @return true if delta was hot swapped.
+   * @throws Exception if remote invocation fails.
+   */
+  public boolean hotSwap(String appName, boolean reloadConfig, StreamHandler<OutputStream> delta) throws Exception
+  {
+    return this.<Boolean> invoke("hotSwap", boolean.class, appName, reloadConfig, delta);
+  }
+
+  public boolean undeploy(String appName) throws Exception
+  {
+    return this.<Boolean> invoke("undeploy", boolean.class, appName, false);
+  }
+
+  public void publishWidgets(StreamHandler<FilesOutputStream> files) throws Exception
+  {
+    invoke("publishWidgets", null, files);
+  }
+
+  public boolean uploadSamsungTvApp(String archiveName, StreamHandler<OutputStream> archive) throws Exception
+  {
+    return this.<Boolean> invoke("uploadSamsungTvApp", boolean.class, archiveName, archive);
+  }
+
+  /**
+   * Invoke remote method using a new HTTP-RMI client. HTTP-RMI client keeps per call state and is not shared between
+   * invocations, that can run concurrently, e.g. from concurrent synchronization targets.
+   * <p>
+   * Server answers a missing remote method with HTTP not found status, reported by HTTP connection as
+   * {@link FileNotFoundException}; it is converted to {@link MethodNotFoundException}.
+   * 
+   * @param methodName remote method name,
+   * @param returnType remote method return type, null for void,
+   * @param arguments remote method arguments.
+   * @return remote method value.
+   * @throws MethodNotFoundException if agent does not implement remote method.
+   * @throws Exception if remote invocation fails.
+   */
+  private <T> T invoke(String methodName, Type returnType, Object... arguments) throws Exception
+  {
+    HttpRmi client = new HttpRmi(url, AppsManager.class);
+    if(returnType != null) {
+      client.setReturnType(returnType);
+    }
+    client.setExceptions(IOException.class);
+    try {
+      return client.invoke(methodName, arguments);
+    }
+    catch(FileNotFoundException e) {
+      throw new MethodNotFoundException(methodName, e);
+    }
+  }
+}
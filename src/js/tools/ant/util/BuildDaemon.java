@@ -0,0 +1,640 @@
+package js.tools.ant.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import js.tools.commons.util.Files;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildLogger;
+import org.apache.tools.ant.IntrospectionHelper;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * Long-lived local build daemon executing tasks on a warm JVM. Every Ant invocation starts a new JVM that loads task
+ * classes, WOOD builder, script packer and documentation generator, and starts with empty JVM caches, e.g. digest caches
+ * and HTTP keep-alive connections. Daemon keeps them loaded and JIT compiled across builds; tasks are forwarded by a thin
+ * client task, see js.tools.ant.task.Daemon.
+ * <p>
+ * Daemon listens on loopback interface only. On start it writes a state file, <code>.js-build-daemon</code> from user
+ * home, readable only by owner, with listening port and a random token; clients read state file and send token with
+ * every request. State file is removed when daemon stops. State file path can be changed by
+ * <code>js.build.daemon.state</code> system property, set on both daemon and client JVM. Until a request is
+ * authenticated daemon reads it with a timeout and accepts only a token sized frame, so that a local process cannot
+ * hold a daemon thread or force a large allocation without knowing the token.
+ * <p>
+ * Client sends its build identifier, see {@link #getBuildId()}, after token. If daemon runs a different build, e.g. a
+ * daemon started before tasks library was rebuilt, it rejects the request and client falls back to current JVM, as if
+ * daemon was not running; stop requests are accepted from any build.
+ * <p>
+ * Only tasks from {@link #TASKS} are accepted. A request carries task name, project base directory, project properties
+ * and task attributes; daemon creates a new Ant project for every request and sets attributes with Ant introspection,
+ * as Ant does for tasks declared on build file. Nested elements are not supported. Log messages are streamed back to
+ * client, up to client message output level; on task failure, stack trace is sent at debug level. Daemon is started
+ * with:
+ * 
+ * <pre>
+ *  java -cp ant.jar:js-ant-task.jar:... js.tools.ant.util.BuildDaemon [port]
+ * </pre>
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class BuildDaemon
+{
+  /** Tasks accepted by daemon, task simple name mapped to task class name. */
+  public static final Map<String, String> TASKS = new LinkedHashMap<String, String>();
+  static {
+    TASKS.put("BuildResources", "js.tools.ant.task.BuildResources");
+    TASKS.put("PackScriptArchive", "js.tools.ant.task.PackScriptArchive");
+    TASKS.put("GenerateScriptDoc", "js.tools.ant.task.GenerateScriptDoc");
+    TASKS.put("BuildConfig", "js.tools.ant.task.BuildConfig");
+    TASKS.put("Sync", "js.tools.ant.task.Sync");
+  }
+
+  /** Daemon state file name, stored on user home. */
+  private static final String STATE_FILE = ".js-build-daemon";
+
+  /** System property for state file path, overriding default state file from user home. */
+  private static final String STATE_FILE_PROPERTY = "js.build.daemon.state";
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  /** Request for daemon stop; it is not a task name. */
+  private static final String STOP_REQUEST = "-stop";
+
+  /** Response frame with a log message. */
+  private static final int LOG_FRAME = 'L';
+  /** Response frame ending response, with status and error message, if failed. */
+  private static final int END_FRAME = 'E';
+  /** Response frame rejecting request from a different build, with daemon build identifier. */
+  private static final int BUILD_MISMATCH_FRAME = 'B';
+
+  /** Maximum length of token frame, read before request authentication. */
+  private static final int MAX_TOKEN_LENGTH = 64;
+  /** Maximum length of frames from authenticated requests. */
+  private static final int MAX_FRAME_LENGTH = 0x1000000;
+  /** Timeout for reading a request, in milliseconds. */
+  private static final int REQUEST_TIMEOUT = 10000;
+  /** Timeout for client connecting to daemon, in milliseconds. */
+  private static final int CONNECT_TIMEOUT = 2000;
+  /** Interval for reporting requests in progress while daemon stops, in milliseconds. */
+  private static final int TERMINATION_TIMEOUT = 10000;
+
+  /** Build identifier of current JVM, lazily computed by {@link #getBuildId()}. */
+  private static String buildId;
+
+  public static void main(String... args) throws IOException
+  {
+    BuildDaemon daemon = new BuildDaemon(args.length > 0 ? Integer.parseInt(args[0]) : 0, getStateFile());
+    System.out.printf("Build daemon |%s| listening on port %d.%n", daemon.daemonBuildId, daemon.getPort());
+    daemon.run();
+  }
+
+  /**
+   * Get identifier of tasks library build loaded by current JVM. If tasks are loaded from a JAR archive, identifier is
+   * archive SHA-256 digest so that any rebuild is detected; otherwise, e.g. for classes directory used while developing,
+   * identifier is package implementation version, if any, and classes location.
+   * 
+   * @return build identifier.
+   */
+  public static synchronized String getBuildId()
+  {
+    if(buildId == null) {
+      String version = BuildDaemon.class.getPackage().getImplementationVersion();
+      File location;
+      try {
+        location = new File(BuildDaemon.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+      }
+      catch(Exception e) {
+        throw new BuildException(e);
+      }
+      if(location.isFile()) {
+        StringBuilder digest = new StringBuilder("sha-256:");
+        try {
+          for(byte b : Utils.getFileDigest(location, "SHA-256")) {
+            digest.append(String.format("%02x", b));
+          }
+        }
+        catch(IOException e) {
+          throw new BuildException(e);
+        }
+        buildId = digest.toString();
+      }
+      else {
+        buildId = (version != null ? version : "development") + ":" + location.getAbsolutePath();
+      }
+    }
+    return buildId;
+  }
+
+  /**
+   * Execute named task on current JVM. Task is created and configured with given attributes as for build file task
+   * declaration.
+   * 
+   * @param project Ant project,
+   * @param taskName task simple name, from {@link #TASKS},
+   * @param attributes task attributes.
+   * @throws BuildException if task name is not supported, attributes are not valid or task execution fails.
+   */
+  public static void execute(Project project, String taskName, Map<String, String> attributes) throws BuildException
+  {
+    String className = TASKS.get(taskName);
+    if(className == null) {
+      throw new BuildException(String.format("Task |%s| is not supported by build daemon.", taskName));
+    }
+    Task task;
+    try {
+      task = (Task)Class.forName(className).newInstance();
+    }
+    catch(Exception e) {
+      throw new BuildException(e);
+    }
+    task.setProject(project);
+    task.setTaskName(taskName);
+    task.init();
+    IntrospectionHelper helper = IntrospectionHelper.getHelper(project, task.getClass());
+    for(Map.Entry<String, String> attribute : attributes.entrySet()) {
+      helper.setAttribute(project, task, attribute.getKey(), attribute.getValue());
+    }
+    task.execute();
+  }
+
+  /**
+   * Forward named task to running daemon. Returns false if there is no daemon running or daemon runs a different build,
+   * see {@link #getBuildId()}; build mismatch is logged as warning. Task execution failure is reported as build
+   * exception.
+   * 
+   * @param project client Ant project,
+   * @param taskName task simple name, from {@link #TASKS},
+   * @param attributes task attributes,
+   * @param logLevel the most verbose level for log messages sent back by daemon,
+   * @param logger task used to log messages sent back by daemon.
+   * @return true if task was executed by daemon.
+   * @throws BuildException if communication with daemon or task execution fails.
+   */
+  public static boolean forward(Project project, String taskName, Map<String, String> attributes, int logLevel, Task logger) throws BuildException
+  {
+    String[] state = readState(getStateFile());
+    if(state == null) {
+      return false;
+    }
+    Socket socket = new Socket();
+    try {
+      try {
+        socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(state[0])), CONNECT_TIMEOUT);
+      }
+      catch(ConnectException unused) {
+        // state file left by a daemon not properly stopped
+        return false;
+      }
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      writeString(output, state[1]);
+      writeString(output, getBuildId());
+      writeString(output, taskName);
+      writeString(output, project.getBaseDir().getAbsolutePath());
+      output.writeInt(logLevel);
+      Hashtable<String, Object> properties = project.getProperties();
+      output.writeInt(properties.size());
+      for(Map.Entry<String, Object> property : properties.entrySet()) {
+        writeString(output, property.getKey());
+        writeString(output, String.valueOf(property.getValue()));
+      }
+      output.writeInt(attributes.size());
+      for(Map.Entry<String, String> attribute : attributes.entrySet()) {
+        writeString(output, attribute.getKey());
+        writeString(output, attribute.getValue());
+      }
+      output.flush();
+
+      DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      for(;;) {
+        int frame = input.read();
+        if(frame == LOG_FRAME) {
+          int level = input.readInt();
+          logger.log(readString(input), level);
+          continue;
+        }
+        if(frame == END_FRAME) {
+          String error = readString(input);
+          if(!error.isEmpty()) {
+            throw new BuildException(error);
+          }
+          return true;
+        }
+        if(frame == BUILD_MISMATCH_FRAME) {
+          logger.log(String.format("Build daemon runs a different build |%s|. Please restart build daemon.", readString(input)), Project.MSG_WARN);
+          return false;
+        }
+        throw new BuildException("Build daemon closed connection unexpectedly.");
+      }
+    }
+    catch(IOException e) {
+      throw new BuildException(e);
+    }
+    finally {
+      Files.close(socket);
+    }
+  }
+
+  /**
+   * Request running daemon to stop. Returns false if there is no daemon running.
+   * 
+   * @return true if stop request was sent.
+   * @throws IOException if communication with daemon fails.
+   */
+  public static boolean stop() throws IOException
+  {
+    String[] state = readState(getStateFile());
+    if(state == null) {
+      return false;
+    }
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(state[0])), CONNECT_TIMEOUT);
+      DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+      writeString(output, state[1]);
+      writeString(output, getBuildId());
+      writeString(output, STOP_REQUEST);
+      output.flush();
+      socket.getInputStream().read();
+      return true;
+    }
+    catch(ConnectException unused) {
+      return false;
+    }
+    finally {
+      Files.close(socket);
+    }
+  }
+
+  private final ServerSocket serverSocket;
+  private final File stateFile;
+  private final String token;
+  private final String daemonBuildId;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private volatile boolean running = true;
+
+  /**
+   * Create daemon listening on loopback interface and write state file.
+   * 
+   * @param port listening port, 0 for a system allocated port,
+   * @param stateFile daemon state file.
+   * @throws IOException if server socket creation or state file writing fails.
+   */
+  public BuildDaemon(int port, File stateFile) throws IOException
+  {
+    this(port, stateFile, getBuildId());
+  }
+
+  /**
+   * Create daemon with given build identifier, accepting only requests from clients with the same build identifier.
+   * 
+   * @param port listening port, 0 for a system allocated port,
+   * @param stateFile daemon state file,
+   * @param buildId daemon build identifier.
+   * @throws IOException if server socket creation or state file writing fails.
+   */
+  public BuildDaemon(int port, File stateFile, String buildId) throws IOException
+  {
+    this.serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+    this.stateFile = stateFile;
+    this.daemonBuildId = buildId;
+
+    byte[] random = new byte[16];
+    new SecureRandom().nextBytes(random);
+    StringBuilder token = new StringBuilder();
+    for(byte b : random) {
+      token.append(String.format("%02x", b));
+    }
+    this.token = token.toString();
+
+    stateFile.delete();
+    stateFile.createNewFile();
+    stateFile.setReadable(false, false);
+    stateFile.setWritable(false, false);
+    stateFile.setReadable(true, true);
+    stateFile.setWritable(true, true);
+    OutputStream stream = new FileOutputStream(stateFile);
+    try {
+      stream.write(String.format("%d\t%s\n", serverSocket.getLocalPort(), this.token).getBytes(CHARSET));
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  public int getPort()
+  {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Accept requests until daemon is stopped. Every request is handled on its own thread.
+   */
+  public void run()
+  {
+    try {
+      while(running) {
+        final Socket socket;
+        try {
+          socket = serverSocket.accept();
+        }
+        catch(IOException e) {
+          if(running) {
+            System.err.printf("Build daemon accept failure: %s%n", e);
+          }
+          continue;
+        }
+        executor.execute(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            try {
+              handle(socket);
+            }
+            catch(IOException e) {
+              System.err.printf("Build daemon request failure: %s%n", e);
+            }
+            finally {
+              Files.close(socket);
+            }
+          }
+        });
+      }
+    }
+    finally {
+      close();
+    }
+  }
+
+  /**
+   * Stop accepting requests, release server socket and remove state file. Wait for requests in progress to complete so
+   * that daemon JVM does not exit while tasks are running; state file is removed first so that new clients fall back to
+   * their own JVM meanwhile.
+   */
+  public void close()
+  {
+    running = false;
+    Files.close(serverSocket);
+    stateFile.delete();
+    executor.shutdown();
+    try {
+      while(!executor.awaitTermination(TERMINATION_TIMEOUT, TimeUnit.MILLISECONDS)) {
+        System.out.println("Build daemon waits for requests in progress to complete.");
+      }
+    }
+    catch(InterruptedException unused) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void handle(Socket socket) throws IOException
+  {
+    // request is read with timeout; task execution does not read from socket
+    socket.setSoTimeout(REQUEST_TIMEOUT);
+    DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+    if(!MessageDigest.isEqual(token.getBytes(CHARSET), readString(input, MAX_TOKEN_LENGTH).getBytes(CHARSET))) {
+      return;
+    }
+    String clientBuildId = readString(input);
+    String taskName = readString(input);
+    if(STOP_REQUEST.equals(taskName)) {
+      running = false;
+      Files.close(serverSocket);
+      output.write(END_FRAME);
+      output.flush();
+      return;
+    }
+    if(!daemonBuildId.equals(clientBuildId)) {
+      output.write(BUILD_MISMATCH_FRAME);
+      writeString(output, daemonBuildId);
+      output.flush();
+      return;
+    }
+
+    Project project = new Project();
+    project.setBaseDir(new File(readString(input)));
+    final int logLevel = input.readInt();
+    for(int i = 0, count = input.readInt(); i < count; ++i) {
+      String name = readString(input);
+      String value = readString(input);
+      if(project.getProperty(name) == null) {
+        project.setProperty(name, value);
+      }
+    }
+    Map<String, String> attributes = new HashMap<String, String>();
+    for(int i = 0, count = input.readInt(); i < count; ++i) {
+      attributes.put(readString(input), readString(input));
+    }
+
+    project.addBuildListener(new ForwardingLogger(output, logLevel));
+    String error = "";
+    project.fireBuildStarted();
+    try {
+      execute(project, taskName, attributes);
+      project.fireBuildFinished(null);
+    }
+    catch(Throwable t) {
+      project.fireBuildFinished(t);
+      error = t.getMessage() != null ? t.getMessage() : t.toString();
+      if(logLevel >= Project.MSG_DEBUG) {
+        StringWriter stackTrace = new StringWriter();
+        t.printStackTrace(new PrintWriter(stackTrace));
+        synchronized(output) {
+          output.write(LOG_FRAME);
+          output.writeInt(Project.MSG_DEBUG);
+          writeString(output, stackTrace.toString());
+        }
+      }
+    }
+    synchronized(output) {
+      output.write(END_FRAME);
+      writeString(output, error);
+      output.flush();
+    }
+  }
+
+  private static File getStateFile()
+  {
+    String stateFile = System.getProperty(STATE_FILE_PROPERTY);
+    return stateFile != null ? new File(stateFile) : new File(System.getProperty("user.home"), STATE_FILE);
+  }
+
+  /** Read daemon state file and return port and token, or null if daemon is not running. */
+  private static String[] readState(File stateFile) throws BuildException
+  {
+    if(!stateFile.exists()) {
+      return null;
+    }
+    InputStream stream = null;
+    try {
+      stream = new FileInputStream(stateFile);
+      byte[] buffer = new byte[256];
+      int length = 0;
+      int count;
+      while(length < buffer.length && (count = stream.read(buffer, length, buffer.length - length)) > 0) {
+        length += count;
+      }
+      String[] state = new String(buffer, 0, length, CHARSET).trim().split("\t");
+      if(state.length != 2) {
+        return null;
+      }
+      return state;
+    }
+    catch(IOException e) {
+      throw new BuildException(e);
+    }
+    finally {
+      Files.close(stream);
+    }
+  }
+
+  private static void writeString(DataOutputStream output, String value) throws IOException
+  {
+    byte[] bytes = value.getBytes(CHARSET);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  private static String readString(DataInputStream input) throws IOException
+  {
+    return readString(input, MAX_FRAME_LENGTH);
+  }
+
+  private static String readString(DataInputStream input, int maxLength) throws IOException
+  {
+    int length = input.readInt();
+    if(length < 0 || length > maxLength) {
+      throw new SocketException("Invalid build daemon frame.");
+    }
+    byte[] bytes = new byte[length];
+    input.readFully(bytes);
+    return new String(bytes, CHARSET);
+  }
+
+  /**
+   * Build logger sending log messages to daemon client, up to client message output level.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  private static class ForwardingLogger implements BuildLogger
+  {
+    private final DataOutputStream output;
+    private int level;
+
+    public ForwardingLogger(DataOutputStream output, int level)
+    {
+      this.output = output;
+      this.level = level;
+    }
+
+    @Override
+    public void messageLogged(BuildEvent event)
+    {
+      if(event.getPriority() > level) {
+        return;
+      }
+      synchronized(output) {
+        try {
+          output.write(LOG_FRAME);
+          output.writeInt(event.getPriority());
+          writeString(output, event.getMessage());
+          output.flush();
+        }
+        catch(IOException unused) {
+          // client is gone; task completes anyway
+        }
+      }
+    }
+
+    @Override
+    public int getMessageOutputLevel()
+    {
+      return level;
+    }
+
+    @Override
+    public void setMessageOutputLevel(int level)
+    {
+      this.level = level;
+    }
+
+    @Override
+    public void setOutputPrintStream(PrintStream output)
+    {
+    }
+
+    @Override
+    public void setEmacsMode(boolean emacsMode)
+    {
+    }
+
+    @Override
+    public void setErrorPrintStream(PrintStream err)
+    {
+    }
+
+    @Override
+    public void buildStarted(BuildEvent event)
+    {
+    }
+
+    @Override
+    public void buildFinished(BuildEvent event)
+    {
+    }
+
+    @Override
+    public void targetStarted(BuildEvent event)
+    {
+    }
+
+    @Override
+    public void targetFinished(BuildEvent event)
+    {
+    }
+
+    @Override
+    public void taskStarted(BuildEvent event)
+    {
+    }
+
+    @Override
+    public void taskFinished(BuildEvent event)
+    {
+    }
+  }
+}
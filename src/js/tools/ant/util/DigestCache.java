@@ -0,0 +1,402 @@
+package js.tools.ant.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import js.tools.commons.util.Files;
+
+import org.apache.tools.ant.Project;
+
+/**
+ * Persistent cache for files message digest. Stat data is the first, cheap, pass: a cached digest is candidate while
+ * file length and change time are not changed and digest algorithm is the same; otherwise file content is digested
+ * again and cache updated. Change time is the inode change time, where file system exposes it, so that tools restoring
+ * modification time after changing file content, e.g. <code>tar x</code>, <code>cp -p</code> or
+ * <code>rsync -t</code>, still invalidate cached digest; on other file systems last modification time is used.
+ * <p>
+ * File time stamps have limited resolution and a file can be changed again, with the same length, on the same time
+ * stamp. For this reason a cached digest is trusted only if file time stamp was older than
+ * {@link #TIME_GRANULARITY} when digest was computed; a digest computed for a younger file is confirmed by digesting
+ * file content again.
+ * <p>
+ * Cache can store digests for archive entries, not stored on file system, using a caller defined entry key and
+ * version, see {@link #getDigest(File, String, long, long, String)}. Archive entries are kept apart from files, per
+ * archive, so that neither file paths nor entry keys need a reserved separator character. Entries of archives not
+ * existing anymore are pruned and so are entries not used on a run that used the same archive.
+ * <p>
+ * Cache is stored on a UTF-8 text file with a line per file or archive entry and tab separated fields. A file line has
+ * absolute file path, length, change time, digest computation time, digest algorithm and hexadecimal digest. An archive
+ * entry line has archive absolute path and entry key, followed by entry length, version and the same digest fields.
+ * Files no longer existing are pruned when cache is saved.
+ * <p>
+ * Cache instances are retrieved with {@link #getInstance(Project, File)} and are shared by all tasks of the same build
+ * using the same cache file; every build loads cache file again. Cache is thread safe.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class DigestCache
+{
+  /**
+   * Coarsest file time stamp resolution handled by cache, in milliseconds. This is the resolution of FAT file systems
+   * and ZIP archives; most file systems have a finer one.
+   */
+  public static final long TIME_GRANULARITY = 2000;
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  /** Prefix for Ant project reference storing cache instance; cache file absolute path is appended. */
+  private static final String REFERENCE_PREFIX = "js.tools.ant.digestCache:";
+
+  /**
+   * Get digest cache instance for given cache file, loading it from file if not already loaded by current build. If
+   * project is null, that happens only on tests and benchmarks, returns a new cache instance.
+   * 
+   * @param project Ant project, possible null,
+   * @param cacheFile cache file, not necessarily existing.
+   * @return digest cache instance.
+   * @throws IOException if cache file reading fails.
+   */
+  public static DigestCache getInstance(Project project, File cacheFile) throws IOException
+  {
+    if(project == null) {
+      return new DigestCache(cacheFile);
+    }
+    synchronized(project) {
+      String reference = REFERENCE_PREFIX + cacheFile.getAbsolutePath();
+      DigestCache cache = (DigestCache)project.getReference(reference);
+      if(cache == null) {
+        cache = new DigestCache(cacheFile);
+        project.addReference(reference, cache);
+      }
+      return cache;
+    }
+  }
+
+  /** Cache file. */
+  private final File cacheFile;
+
+  /** Cache entries mapped to file absolute path. */
+  private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+  /** Cache entries mapped to entry key, mapped in turn to archive absolute path. */
+  private final Map<String, Map<String, Entry>> archiveEntries = new ConcurrentHashMap<String, Map<String, Entry>>();
+
+  /** Keys of archive entries used since this cache instance creation, mapped to archive path; used for pruning. */
+  private final Map<String, Set<String>> usedEntries = new ConcurrentHashMap<String, Set<String>>();
+
+  /** The number of digests found valid into cache, for telemetry. */
+  private final AtomicLong hits = new AtomicLong();
+
+  /** Flag true if cache was updated since last save. */
+  private volatile boolean dirty;
+
+  private DigestCache(File cacheFile) throws IOException
+  {
+    this.cacheFile = cacheFile;
+    if(!cacheFile.exists()) {
+      return;
+    }
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), CHARSET));
+    try {
+      String line;
+      while((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t");
+        try {
+          if(fields.length == 6) {
+            entries.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4], fields[5]));
+          }
+          else if(fields.length == 7) {
+            archiveEntries(fields[0]).put(fields[1], new Entry(Long.parseLong(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4]), fields[5], fields[6]));
+          }
+          // ignore corrupted or old format line; related digest will be computed again
+        }
+        catch(NumberFormatException unused) {}
+      }
+    }
+    finally {
+      Files.close(reader);
+    }
+  }
+
+  /**
+   * Get file digest from cache or compute it, if not cached, file was changed or cached digest is not trusted, see
+   * class description.
+   * 
+   * @param file file to get digest for,
+   * @param algorithm message digest algorithm.
+   * @return file digest.
+   * @throws IOException if file reading fails.
+   */
+  public byte[] getDigest(File file, String algorithm) throws IOException
+  {
+    String path = file.getAbsolutePath();
+    long length = file.length();
+    long changeTime = getChangeTime(file);
+    byte[] digest = getCachedDigest(path, length, changeTime, algorithm);
+    if(digest != null) {
+      return digest;
+    }
+
+    // take digest time before reading file so that a change while reading leaves digest untrusted
+    long digestTime = System.currentTimeMillis();
+    digest = Utils.getFileDigest(file, algorithm);
+    entries.put(path, new Entry(length, changeTime, digestTime, algorithm, digest));
+    dirty = true;
+    return digest;
+  }
+
+  /**
+   * Get file digest from cache, without computing it. Returns null if file digest is not cached, file was changed or
+   * cached digest is not trusted, see class description.
+   * 
+   * @param file file to get digest for,
+   * @param algorithm message digest algorithm.
+   * @return cached file digest or null.
+   */
+  public byte[] getCachedDigest(File file, String algorithm)
+  {
+    return getCachedDigest(file.getAbsolutePath(), file.length(), getChangeTime(file), algorithm);
+  }
+
+  private byte[] getCachedDigest(String path, long length, long changeTime, String algorithm)
+  {
+    Entry entry = entries.get(path);
+    if(entry != null && entry.matches(length, changeTime, algorithm) && changeTime + TIME_GRANULARITY < entry.digestTime) {
+      hits.incrementAndGet();
+      return entry.getDigest();
+    }
+    return null;
+  }
+
+  /**
+   * Get cached digest for archive entry, if entry length, version and digest algorithm are not changed. Returns null if
+   * there is no digest cached for entry or cached digest is stale.
+   * 
+   * @param archive archive file,
+   * @param key entry key, caller defined,
+   * @param length entry content length,
+   * @param version entry version, e.g. CRC,
+   * @param algorithm message digest algorithm.
+   * @return cached digest or null.
+   */
+  public byte[] getDigest(File archive, String key, long length, long version, String algorithm)
+  {
+    String path = archive.getAbsolutePath();
+    useEntry(path, key);
+    Entry entry = archiveEntries(path).get(key);
+    if(entry != null && entry.matches(length, version, algorithm)) {
+      hits.incrementAndGet();
+      return entry.getDigest();
+    }
+    return null;
+  }
+
+  /**
+   * Store digest for archive entry, entry content length and version.
+   * 
+   * @param archive archive file,
+   * @param key entry key, caller defined,
+   * @param length entry content length,
+   * @param version entry version, e.g. CRC,
+   * @param algorithm message digest algorithm,
+   * @param digest entry content digest.
+   */
+  public void putDigest(File archive, String key, long length, long version, String algorithm, byte[] digest)
+  {
+    String path = archive.getAbsolutePath();
+    useEntry(path, key);
+    archiveEntries(path).put(key, new Entry(length, version, System.currentTimeMillis(), algorithm, digest));
+    dirty = true;
+  }
+
+  /**
+   * Get the number of digests found valid into cache since this cache instance creation.
+   * 
+   * @return cache hits count.
+   */
+  public long getHits()
+  {
+    return hits.get();
+  }
+
+  /**
+   * Prune stale entries and save cache to file, if it was updated since last save. Pruned entries are those for files
+   * and archives no longer existing and those for archive entries not used by current build from an archive that was
+   * used.
+   * 
+   * @throws IOException if cache file writing fails.
+   */
+  public synchronized void save() throws IOException
+  {
+    prune();
+    if(!dirty) {
+      return;
+    }
+    dirty = false;
+
+    PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(cacheFile), CHARSET));
+    try {
+      for(Map.Entry<String, Entry> entry : entries.entrySet()) {
+        Entry value = entry.getValue();
+        writer.printf("%s\t%d\t%d\t%d\t%s\t%s\n", entry.getKey(), value.length, value.version, value.digestTime, value.algorithm, value.hexDigest);
+      }
+      for(Map.Entry<String, Map<String, Entry>> archive : archiveEntries.entrySet()) {
+        for(Map.Entry<String, Entry> entry : archive.getValue().entrySet()) {
+          Entry value = entry.getValue();
+          writer.printf("%s\t%s\t%d\t%d\t%d\t%s\t%s\n", archive.getKey(), entry.getKey(), value.length, value.version, value.digestTime, value.algorithm, value.hexDigest);
+        }
+      }
+      if(writer.checkError()) {
+        throw new IOException(String.format("Fail to write digest cache |%s|.", cacheFile));
+      }
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+  private void prune()
+  {
+    Iterator<String> paths = entries.keySet().iterator();
+    while(paths.hasNext()) {
+      if(!new File(paths.next()).exists()) {
+        paths.remove();
+        dirty = true;
+      }
+    }
+
+    Iterator<Map.Entry<String, Map<String, Entry>>> archives = archiveEntries.entrySet().iterator();
+    while(archives.hasNext()) {
+      Map.Entry<String, Map<String, Entry>> archive = archives.next();
+      if(!new File(archive.getKey()).exists()) {
+        archives.remove();
+        dirty = true;
+        continue;
+      }
+      Set<String> usedKeys = usedEntries.get(archive.getKey());
+      if(usedKeys != null && archive.getValue().keySet().retainAll(usedKeys)) {
+        dirty = true;
+      }
+    }
+  }
+
+  /** Get cache entries of archive, creating entries map if missing. */
+  private Map<String, Entry> archiveEntries(String archivePath)
+  {
+    Map<String, Entry> entries = archiveEntries.get(archivePath);
+    if(entries == null) {
+      synchronized(archiveEntries) {
+        entries = archiveEntries.get(archivePath);
+        if(entries == null) {
+          entries = new ConcurrentHashMap<String, Entry>();
+          archiveEntries.put(archivePath, entries);
+        }
+      }
+    }
+    return entries;
+  }
+
+  /** Record archive entry as used by current run. */
+  private void useEntry(String archivePath, String key)
+  {
+    Set<String> keys = usedEntries.get(archivePath);
+    if(keys == null) {
+      synchronized(usedEntries) {
+        keys = usedEntries.get(archivePath);
+        if(keys == null) {
+          keys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+          usedEntries.put(archivePath, keys);
+        }
+      }
+    }
+    keys.add(key);
+  }
+
+  /**
+   * Get file change time, that is, inode change time if file system supports it or last modification time otherwise.
+   * Inode change time cannot be set by applications and is updated on every file content or time stamps change.
+   * 
+   * @param file file.
+   * @return file change time, in milliseconds.
+   */
+  private static long getChangeTime(File file)
+  {
+    try {
+      FileTime changeTime = (FileTime)java.nio.file.Files.getAttribute(file.toPath(), "unix:ctime");
+      return changeTime.toMillis();
+    }
+    catch(UnsupportedOperationException unused) {}
+    catch(IllegalArgumentException unused) {}
+    catch(IOException unused) {}
+    return file.lastModified();
+  }
+
+  /**
+   * Cache entry.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  private static class Entry
+  {
+    final long length;
+    /** File change time or caller defined content version. */
+    final long version;
+    /** Time when digest was computed. */
+    final long digestTime;
+    final String algorithm;
+    final String hexDigest;
+
+    Entry(long length, long version, long digestTime, String algorithm, String hexDigest)
+    {
+      this.length = length;
+      this.version = version;
+      this.digestTime = digestTime;
+      this.algorithm = algorithm;
+      this.hexDigest = hexDigest;
+    }
+
+    Entry(long length, long version, long digestTime, String algorithm, byte[] digest)
+    {
+      this.length = length;
+      this.version = version;
+      this.digestTime = digestTime;
+      this.algorithm = algorithm;
+      StringBuilder hexDigest = new StringBuilder();
+      for(byte b : digest) {
+        hexDigest.append(String.format("%02x", b));
+      }
+      this.hexDigest = hexDigest.toString();
+    }
+
+    boolean matches(long length, long version, String algorithm)
+    {
+      return this.length == length && this.version == version && this.algorithm.equals(algorithm);
+    }
+
+    byte[] getDigest()
+    {
+      byte[] digest = new byte[hexDigest.length() / 2];
+      for(int i = 0; i < digest.length; ++i) {
+        digest[i] = (byte)Integer.parseInt(hexDigest.substring(2 * i, 2 * i + 2), 16);
+      }
+      return digest;
+    }
+  }
+}
@@ -1,12 +1,45 @@
 package js.tools.ant.util;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.BuildLogger;
 import org.apache.tools.ant.Project;
 
+/**
+ * Task logger prefixing messages with logged class name. Before formatting, message level is checked against project
+ * listeners so that messages no listener would print, e.g. debug messages on a normal build, are not formatted. A
+ * {@link BuildLogger} accepts messages up to its message output level; any other build listener accepts all levels.
+ * Build loggers not implementing <code>getMessageOutputLevel()</code>, that is, compiled against Ant versions without
+ * it or relying on interface default, are considered accepting all levels too. Build {@link Metrics} listener ignores
+ * messages and is not considered.
+ * <p>
+ * Project listeners are scanned once per logger instance, on first level check, and the most verbose accepted level is
+ * cached; {@link Project#getBuildListeners()} copies listeners list on every call and is not suitable for every logged
+ * message. Since tasks create logger on execution, listeners added or output level changed while build runs are honored
+ * by loggers created after change.
+ * <p>
+ * Beside format based methods, logger supports messages built by a {@link Message} supplier, invoked only if level is
+ * accepted, and structured events with key / value fields, see {@link #event(int, String, Object...)}.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
 public class Log
 {
+  /** Build logger classes mapped to flag true if class implements <code>getMessageOutputLevel()</code>. */
+  private static final Map<Class<?>, Boolean> levelLoggers = new ConcurrentHashMap<Class<?>, Boolean>();
+
+  /** Output level value used while project listeners are not yet scanned. */
+  private static final int UNKNOWN_LEVEL = Integer.MIN_VALUE;
+
   private Project project;
   private String className;
 
+  /** Most verbose level accepted by project listeners, lazily scanned; {@link #UNKNOWN_LEVEL} if not yet scanned. */
+  private volatile int outputLevel = UNKNOWN_LEVEL;
+
   public Log(Project project, Class<?> loggedClass)
   {
     this.project = project;
@@ -35,20 +68,158 @@ public class Log
 
   public void fatal(String message, Object... args)
   {
-    log(Project.MSG_VERBOSE, message, args);
+    log(Project.MSG_ERR, message, args);
+  }
+
+  public void info(Message message)
+  {
+    log(Project.MSG_INFO, message);
+  }
+
+  public void warning(Message message)
+  {
+    log(Project.MSG_WARN, message);
+  }
+
+  public void debug(Message message)
+  {
+    log(Project.MSG_DEBUG, message);
+  }
+
+  public void error(Message message)
+  {
+    log(Project.MSG_ERR, message);
+  }
+
+  /**
+   * Log structured event with key / value fields. Fields are given as alternating key and value arguments and are
+   * printed after event name as <code>key=value</code> pairs, separated by space, e.g.
+   * <code>log.event(Project.MSG_DEBUG, "upload", "file", name, "bytes", length)</code> prints
+   * <code>upload file=index.htm bytes=2318</code>. A trailing key without value is ignored.
+   * 
+   * @param level Ant message level,
+   * @param event event name,
+   * @param fields alternating field keys and values.
+   */
+  public void event(int level, String event, Object... fields)
+  {
+    if(!isEnabled(level)) {
+      return;
+    }
+    StringBuilder sb = new StringBuilder(event);
+    for(int i = 0; i + 1 < fields.length; i += 2) {
+      sb.append(' ');
+      sb.append(fields[i]);
+      sb.append('=');
+      sb.append(fields[i + 1]);
+    }
+    write(level, sb.toString());
+  }
+
+  public boolean isDebugEnabled()
+  {
+    return isEnabled(Project.MSG_DEBUG);
+  }
+
+  /**
+   * Test if there is a project listener accepting messages of requested level. Always returns true if project is null,
+   * that happens only on tests. Compares against output level cached on first call, see {@link #getOutputLevel()}.
+   * 
+   * @param level Ant message level.
+   * @return true if message of requested level would be printed.
+   */
+  public boolean isEnabled(int level)
+  {
+    if(this.project == null) {
+      return true;
+    }
+    return level <= getOutputLevel();
+  }
+
+  /**
+   * Get the most verbose level accepted by project listeners, scanning listeners on first call. Returns
+   * {@link Integer#MAX_VALUE} if there is a listener accepting all levels and -1 if no listener accepts messages.
+   * Concurrent first calls may scan listeners more than once, with the same result.
+   * 
+   * @return most verbose accepted level.
+   */
+  private int getOutputLevel()
+  {
+    int level = this.outputLevel;
+    if(level != UNKNOWN_LEVEL) {
+      return level;
+    }
+    level = -1;
+    for(BuildListener listener : this.project.getBuildListeners()) {
+      if(listener instanceof Metrics) {
+        continue;
+      }
+      if(!(listener instanceof BuildLogger) || !hasOutputLevel(listener.getClass())) {
+        level = Integer.MAX_VALUE;
+        break;
+      }
+      level = Math.max(level, ((BuildLogger)listener).getMessageOutputLevel());
+    }
+    this.outputLevel = level;
+    return level;
+  }
+
+  /**
+   * Test if build logger class implements <code>getMessageOutputLevel()</code>. Returns false if method is missing, as
+   * on Ant versions before 1.10, or is inherited from {@link BuildLogger} interface default.
+   * 
+   * @param loggerClass build logger class.
+   * @return true if logger class provides its message output level.
+   */
+  private static boolean hasOutputLevel(Class<?> loggerClass)
+  {
+    Boolean value = levelLoggers.get(loggerClass);
+    if(value == null) {
+      try {
+        value = !loggerClass.getMethod("getMessageOutputLevel").getDeclaringClass().isInterface();
+      }
+      catch(NoSuchMethodException unused) {
+        value = false;
+      }
+      levelLoggers.put(loggerClass, value);
+    }
+    return value;
   }
 
   private void log(int level, String message, Object... args)
   {
-    StringBuilder sb = new StringBuilder(this.className);
-    sb.append(": ");
-    sb.append(String.format(message, args));
+    if(isEnabled(level)) {
+      write(level, String.format(message, args));
+    }
+  }
+
+  private void log(int level, Message message)
+  {
+    if(isEnabled(level)) {
+      write(level, message.get());
+    }
+  }
+
+  private void write(int level, String message)
+  {
+    String text = this.className + ": " + message;
     if(this.project == null) {
       // project can be null on debugging
-      System.out.println(sb.toString());
+      System.out.println(text);
     }
     else {
-      this.project.log(sb.toString(), level);
+      this.project.log(text, level);
     }
   }
+
+  /**
+   * Message supplier invoked only if message level is accepted, for messages expensive to build.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  public interface Message
+  {
+    String get();
+  }
 }
@@ -0,0 +1,26 @@
+package js.tools.ant.util;
+
+import java.io.IOException;
+
+/**
+ * Remote method is not implemented by management agent, usually because agent was deployed before method was added.
+ * Thrown by {@link Agent} so that callers can fall back to methods supported by older agents; any other remote failure
+ * is reported as is.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class MethodNotFoundException extends IOException
+{
+  private static final long serialVersionUID = 1L;
+
+  public MethodNotFoundException(String methodName, Throwable cause)
+  {
+    super(String.format("Agent method |%s| not found.", methodName), cause);
+  }
+
+  public MethodNotFoundException(String methodName)
+  {
+    this(methodName, null);
+  }
+}
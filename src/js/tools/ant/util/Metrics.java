@@ -0,0 +1,343 @@
+package js.tools.ant.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import js.tools.commons.util.Files;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+
+/**
+ * Build telemetry shared by all tasks from a build. Tasks record spans, that is, timed operations like files walk,
+ * hashing or upload, and counters like processed files, uploaded bytes or cache hits. Metric names use task name as
+ * prefix, e.g. <code>sync.hash</code> or <code>sync.files</code>. For every span name metrics keep invocations count,
+ * total and maximum duration.
+ * <p>
+ * Telemetry is enabled by Ant properties. <code>METRICS-FILE</code> is the file where metrics are written when build
+ * finishes: if file extension is <code>json</code> metrics are written as JSON object, otherwise OpenMetrics text format
+ * is used. <code>METRICS-PUSH</code> is the URL of a local collector where metrics are posted, also in OpenMetrics
+ * format. If none is set metrics are disabled and recording is a no-operation.
+ * <p>
+ * Metrics instance is stored as Ant project reference and retrieved with {@link #getInstance(Project)}. Metrics are
+ * thread safe.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class Metrics implements BuildListener
+{
+  /** Ant property for metrics output file. */
+  public static final String FILE_ANT_PROPERTY = "METRICS-FILE";
+
+  /** Ant property for metrics collector URL. */
+  public static final String PUSH_ANT_PROPERTY = "METRICS-PUSH";
+
+  private static final String REFERENCE = "js.tools.ant.metrics";
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  /** Disabled metrics used when there is no project, that happens only on tests. */
+  private static final Metrics DISABLED = new Metrics(null, null, null);
+
+  /**
+   * Get metrics instance for given project, creating it on first use. If metrics are enabled, created instance is
+   * registered as project build listener in order to write metrics when build finishes.
+   * 
+   * @param project Ant project, possible null.
+   * @return metrics instance.
+   */
+  public static Metrics getInstance(Project project)
+  {
+    if(project == null) {
+      return DISABLED;
+    }
+    synchronized(project) {
+      Metrics metrics = (Metrics)project.getReference(REFERENCE);
+      if(metrics == null) {
+        String file = project.getProperty(FILE_ANT_PROPERTY);
+        String push = project.getProperty(PUSH_ANT_PROPERTY);
+        metrics = new Metrics(project, file != null ? project.resolveFile(file) : null, push);
+        if(metrics.enabled) {
+          project.addBuildListener(metrics);
+        }
+        project.addReference(REFERENCE, metrics);
+      }
+      return metrics;
+    }
+  }
+
+  private final Project project;
+  private final File file;
+  private final String pushURL;
+  private final boolean enabled;
+
+  /** Span statistics mapped to span name. */
+  private final ConcurrentMap<String, SpanStats> spans = new ConcurrentHashMap<String, SpanStats>();
+
+  /** Counters mapped to counter name. */
+  private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+  private Metrics(Project project, File file, String pushURL)
+  {
+    this.project = project;
+    this.file = file;
+    this.pushURL = pushURL;
+    this.enabled = file != null || pushURL != null;
+  }
+
+  public boolean isEnabled()
+  {
+    return enabled;
+  }
+
+  /**
+   * Start a timed span. Span duration is recorded when span is ended; a span not ended, e.g. because of an exception,
+   * is not recorded.
+   * 
+   * @param name span name.
+   * @return started span.
+   */
+  public Span start(String name)
+  {
+    return new Span(name, enabled ? System.nanoTime() : 0);
+  }
+
+  /**
+   * Add value to named counter.
+   * 
+   * @param name counter name,
+   * @param value value to add.
+   */
+  public void count(String name, long value)
+  {
+    if(!enabled) {
+      return;
+    }
+    AtomicLong counter = counters.get(name);
+    if(counter == null) {
+      AtomicLong newCounter = new AtomicLong();
+      counter = counters.putIfAbsent(name, newCounter);
+      if(counter == null) {
+        counter = newCounter;
+      }
+    }
+    counter.addAndGet(value);
+  }
+
+  private void record(String name, long nanos)
+  {
+    SpanStats stats = spans.get(name);
+    if(stats == null) {
+      SpanStats newStats = new SpanStats();
+      stats = spans.putIfAbsent(name, newStats);
+      if(stats == null) {
+        stats = newStats;
+      }
+    }
+    stats.add(nanos);
+  }
+
+  /**
+   * Write metrics as JSON object with <code>spans</code> and <code>counters</code> properties. Span durations are in
+   * milliseconds.
+   * 
+   * @param stream output stream, not closed by this method.
+   */
+  public void writeJSON(OutputStream stream)
+  {
+    PrintWriter writer = new PrintWriter(new OutputStreamWriter(stream, CHARSET));
+    writer.print("{\"spans\":{");
+    String separator = "";
+    for(Map.Entry<String, SpanStats> entry : new TreeMap<String, SpanStats>(spans).entrySet()) {
+      SpanStats stats = entry.getValue();
+      writer.printf("%s\"%s\":{\"count\":%d,\"totalMillis\":%d,\"maxMillis\":%d}", separator, entry.getKey(), stats.count.get(), stats.totalNanos.get() / 1000000, stats.maxNanos.get() / 1000000);
+      separator = ",";
+    }
+    writer.print("},\"counters\":{");
+    separator = "";
+    for(Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(counters).entrySet()) {
+      writer.printf("%s\"%s\":%d", separator, entry.getKey(), entry.getValue().get());
+      separator = ",";
+    }
+    writer.print("}}\n");
+    writer.flush();
+  }
+
+  /**
+   * Write metrics using OpenMetrics text format. Spans are written as summary <code>js_ant_span_seconds</code> and
+   * counters as counter <code>js_ant</code>, with metric name as label.
+   * 
+   * @param stream output stream, not closed by this method.
+   */
+  public void writeOpenMetrics(OutputStream stream)
+  {
+    PrintWriter writer = new PrintWriter(new OutputStreamWriter(stream, CHARSET));
+    writer.print("# TYPE js_ant_span_seconds summary\n");
+    for(Map.Entry<String, SpanStats> entry : new TreeMap<String, SpanStats>(spans).entrySet()) {
+      SpanStats stats = entry.getValue();
+      writer.printf("js_ant_span_seconds_count{span=\"%s\"} %d\n", entry.getKey(), stats.count.get());
+      writer.printf(Locale.ROOT, "js_ant_span_seconds_sum{span=\"%s\"} %.6f\n", entry.getKey(), stats.totalNanos.get() / 1e9);
+    }
+    writer.print("# TYPE js_ant counter\n");
+    for(Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(counters).entrySet()) {
+      writer.printf("js_ant_total{counter=\"%s\"} %d\n", entry.getKey(), entry.getValue().get());
+    }
+    writer.print("# EOF\n");
+    writer.flush();
+  }
+
+  /**
+   * Write metrics file and push metrics to collector, if configured. Failures are logged and do not fail the build.
+   */
+  @Override
+  public void buildFinished(BuildEvent event)
+  {
+    Log log = new Log(project, Metrics.class);
+    if(file != null) {
+      OutputStream stream = null;
+      try {
+        stream = new FileOutputStream(file);
+        if(Files.getExtension(file).equals("json")) {
+          writeJSON(stream);
+        }
+        else {
+          writeOpenMetrics(stream);
+        }
+      }
+      catch(IOException e) {
+        log.warning("Fail to write metrics file |%s|: %s", file, e);
+      }
+      finally {
+        Files.close(stream);
+      }
+    }
+    if(pushURL != null) {
+      try {
+        push();
+      }
+      catch(IOException e) {
+        log.warning("Fail to push metrics to |%s|: %s", pushURL, e);
+      }
+    }
+  }
+
+  private void push() throws IOException
+  {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    writeOpenMetrics(body);
+
+    HttpURLConnection connection = (HttpURLConnection)new URL(pushURL).openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setConnectTimeout(5000);
+    connection.setReadTimeout(5000);
+    connection.setRequestProperty("Content-Type", "application/openmetrics-text; version=1.0.0; charset=utf-8");
+    OutputStream stream = connection.getOutputStream();
+    try {
+      body.writeTo(stream);
+    }
+    finally {
+      stream.close();
+    }
+    int responseCode = connection.getResponseCode();
+    connection.disconnect();
+    if(responseCode / 100 != 2) {
+      throw new IOException(String.format("Collector response code |%d|.", responseCode));
+    }
+  }
+
+  @Override
+  public void buildStarted(BuildEvent event)
+  {
+  }
+
+  @Override
+  public void targetStarted(BuildEvent event)
+  {
+  }
+
+  @Override
+  public void targetFinished(BuildEvent event)
+  {
+  }
+
+  @Override
+  public void taskStarted(BuildEvent event)
+  {
+  }
+
+  @Override
+  public void taskFinished(BuildEvent event)
+  {
+  }
+
+  @Override
+  public void messageLogged(BuildEvent event)
+  {
+  }
+
+  /**
+   * Timed operation, started by {@link Metrics#start(String)}.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  public class Span
+  {
+    private final String name;
+    private final long startNanos;
+
+    private Span(String name, long startNanos)
+    {
+      this.name = name;
+      this.startNanos = startNanos;
+    }
+
+    /**
+     * End this span and record its duration.
+     */
+    public void end()
+    {
+      if(enabled) {
+        record(name, System.nanoTime() - startNanos);
+      }
+    }
+  }
+
+  /**
+   * Statistics for spans with the same name.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  private static class SpanStats
+  {
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong totalNanos = new AtomicLong();
+    final AtomicLong maxNanos = new AtomicLong();
+
+    void add(long nanos)
+    {
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      long max;
+      while(nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+      }
+    }
+  }
+}
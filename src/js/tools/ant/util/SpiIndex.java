@@ -0,0 +1,392 @@
+package js.tools.ant.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import js.tools.commons.util.Files;
+
+/**
+ * Cached index of service provider declarations from script files. A provider is declared by j(s)-lib
+ * <code>$implements(Provider, Service)</code> operator, where <code>Service</code> is the implemented interface. Parse
+ * results are cached per file, together with file length, last modification time and digest. A file is parsed again
+ * only if its digest is changed; if only length or last modification time changed, digest is computed but cached
+ * declarations are reused when digest is the same. As for {@link DigestCache}, length and last modification time are
+ * trusted only if file was older than {@link DigestCache#TIME_GRANULARITY} when indexed; for a younger file digest is
+ * always compared, since file could be changed again on the same time stamp.
+ * <p>
+ * Index is stored on a UTF-8 text file with a line per script file and tab separated fields: normalized absolute file
+ * path, length, last modification time, hexadecimal digest, indexing time and, if any, declarations as
+ * <code>Service=Provider</code> pairs.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class SpiIndex
+{
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  /** Pattern for <code>$implements</code> operator invocation, capturing provider and service class names. */
+  private static final Pattern IMPLEMENTS = Pattern.compile("\\$implements\\s*\\(\\s*([\\w$.]+)\\s*,\\s*([\\w$.]+)\\s*\\)");
+
+  /** Characters after which a slash starts a regular expression literal, not a division. */
+  private static final String REGEX_PRECEDING_CHARS = "(,=:[!&|?{};+-*%<>~^";
+
+  /** Keywords after which a slash starts a regular expression literal. */
+  private static final List<String> REGEX_PRECEDING_KEYWORDS = Arrays.asList("return", "typeof", "instanceof", "in", "of", "new", "delete", "void", "throw", "case", "do", "else");
+
+  /** Cache entries mapped to file absolute path. */
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+  /** The number of files parsed since index loading. */
+  private int parsedCount;
+
+  /** Flag true if index was updated since loading. */
+  private boolean dirty;
+
+  /**
+   * Get service provider declarations from script file, from cache if file content is not changed.
+   * 
+   * @param file script file.
+   * @return file declarations, possible empty.
+   * @throws IOException if file reading fails.
+   */
+  public synchronized List<Declaration> getDeclarations(File file) throws IOException
+  {
+    String path = path(file);
+    long length = file.length();
+    long lastModified = file.lastModified();
+
+    Entry entry = entries.get(path);
+    if(entry != null && entry.length == length && entry.lastModified == lastModified && lastModified + DigestCache.TIME_GRANULARITY < entry.indexTime) {
+      return entry.declarations;
+    }
+
+    // take indexing time before reading file so that a change while reading leaves entry untrusted
+    long indexTime = System.currentTimeMillis();
+    String digest = hex(Files.getFileDigest(file));
+    List<Declaration> declarations;
+    if(entry != null && entry.digest.equals(digest)) {
+      declarations = entry.declarations;
+    }
+    else {
+      declarations = parse(readFile(file));
+      ++parsedCount;
+    }
+    entries.put(path, new Entry(length, lastModified, digest, indexTime, declarations));
+    dirty = true;
+    return declarations;
+  }
+
+  /**
+   * Get the number of files parsed since index loading, that is, files not found valid into cache.
+   * 
+   * @return parsed files count.
+   */
+  public synchronized int getParsedCount()
+  {
+    return parsedCount;
+  }
+
+  /**
+   * Remove cache entries for files not present into given files list, e.g. deleted script files.
+   * 
+   * @param files current script files.
+   */
+  public synchronized void retain(List<File> files)
+  {
+    List<String> paths = new ArrayList<String>();
+    for(File file : files) {
+      paths.add(path(file));
+    }
+    if(entries.keySet().retainAll(paths)) {
+      dirty = true;
+    }
+  }
+
+  /**
+   * Parse script source and return service provider declarations. Comments are ignored.
+   * 
+   * @param script script source.
+   * @return declarations list, possible empty.
+   */
+  public static List<Declaration> parse(String script)
+  {
+    List<Declaration> declarations = new ArrayList<Declaration>();
+    Matcher matcher = IMPLEMENTS.matcher(stripComments(script));
+    while(matcher.find()) {
+      declarations.add(new Declaration(matcher.group(2), matcher.group(1)));
+    }
+    return declarations;
+  }
+
+  /**
+   * Replace script comments with spaces. String and regular expression literals are preserved so that comment markers
+   * or quotes inside literals, e.g. URLs or <code>/"/</code>, do not start a comment or a string.
+   * 
+   * @param script script source.
+   * @return script without comments.
+   */
+  private static String stripComments(String script)
+  {
+    StringBuilder sb = new StringBuilder(script.length());
+    int length = script.length();
+    for(int i = 0; i < length; ++i) {
+      char c = script.charAt(i);
+      if(c == '/' && i + 1 < length && script.charAt(i + 1) == '/') {
+        while(i < length && script.charAt(i) != '\n') {
+          ++i;
+        }
+        sb.append('\n');
+        continue;
+      }
+      if(c == '/' && i + 1 < length && script.charAt(i + 1) == '*') {
+        int end = script.indexOf("*/", i + 2);
+        i = end == -1 ? length : end + 1;
+        sb.append(' ');
+        continue;
+      }
+      if(c == '/' && isRegexStart(sb)) {
+        sb.append(c);
+        boolean characterClass = false;
+        for(++i; i < length; ++i) {
+          char r = script.charAt(i);
+          sb.append(r);
+          if(r == '\\' && i + 1 < length) {
+            sb.append(script.charAt(++i));
+            continue;
+          }
+          if(r == '[') {
+            characterClass = true;
+          }
+          else if(r == ']') {
+            characterClass = false;
+          }
+          else if((r == '/' && !characterClass) || r == '\n') {
+            break;
+          }
+        }
+        continue;
+      }
+      sb.append(c);
+      if(c == '"' || c == '\'') {
+        for(++i; i < length; ++i) {
+          char s = script.charAt(i);
+          sb.append(s);
+          if(s == '\\' && i + 1 < length) {
+            sb.append(script.charAt(++i));
+            continue;
+          }
+          if(s == c || s == '\n') {
+            break;
+          }
+        }
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Test if a slash following already processed script starts a regular expression literal, considering the last not
+   * white space token. A slash following an operand, e.g. identifier, number or closing parenthesis, is a division.
+   * 
+   * @param sb processed script, with comments stripped.
+   * @return true if slash starts a regular expression literal.
+   */
+  private static boolean isRegexStart(StringBuilder sb)
+  {
+    int i = sb.length() - 1;
+    while(i >= 0 && Character.isWhitespace(sb.charAt(i))) {
+      --i;
+    }
+    if(i < 0) {
+      return true;
+    }
+    char c = sb.charAt(i);
+    if(REGEX_PRECEDING_CHARS.indexOf(c) != -1) {
+      return true;
+    }
+    if(!Character.isJavaIdentifierPart(c)) {
+      return false;
+    }
+    int end = i + 1;
+    while(i >= 0 && Character.isJavaIdentifierPart(sb.charAt(i))) {
+      --i;
+    }
+    return REGEX_PRECEDING_KEYWORDS.contains(sb.substring(i + 1, end));
+  }
+
+  /**
+   * Load index from file. Returns empty index if file does not exist. Corrupted lines are ignored; related files are
+   * parsed again.
+   * 
+   * @param indexFile index file.
+   * @return loaded index.
+   * @throws IOException if file reading fails.
+   */
+  public static SpiIndex load(File indexFile) throws IOException
+  {
+    SpiIndex index = new SpiIndex();
+    if(!indexFile.exists()) {
+      return index;
+    }
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), CHARSET));
+    try {
+      String line;
+      while((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t");
+        if(fields.length < 5) {
+          continue;
+        }
+        try {
+          List<Declaration> declarations = new ArrayList<Declaration>();
+          for(int i = 5; i < fields.length; ++i) {
+            int separator = fields[i].indexOf('=');
+            if(separator == -1) {
+              throw new NumberFormatException();
+            }
+            declarations.add(new Declaration(fields[i].substring(0, separator), fields[i].substring(separator + 1)));
+          }
+          index.entries.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3], Long.parseLong(fields[4]), declarations));
+        }
+        catch(NumberFormatException unused) {}
+      }
+    }
+    finally {
+      Files.close(reader);
+    }
+    return index;
+  }
+
+  /**
+   * Save index to file, if it was updated since loading.
+   * 
+   * @param indexFile index file.
+   * @throws IOException if file writing fails.
+   */
+  public synchronized void save(File indexFile) throws IOException
+  {
+    if(!dirty) {
+      return;
+    }
+    PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(indexFile), CHARSET));
+    try {
+      for(Map.Entry<String, Entry> entry : entries.entrySet()) {
+        Entry value = entry.getValue();
+        writer.printf("%s\t%d\t%d\t%s\t%d", entry.getKey(), value.length, value.lastModified, value.digest, value.indexTime);
+        for(Declaration declaration : value.declarations) {
+          writer.printf("\t%s=%s", declaration.getService(), declaration.getProvider());
+        }
+        writer.print('\n');
+      }
+      if(writer.checkError()) {
+        throw new IOException(String.format("Fail to write SPI index |%s|.", indexFile));
+      }
+    }
+    finally {
+      writer.close();
+    }
+    dirty = false;
+  }
+
+  private static String readFile(File file) throws IOException
+  {
+    Reader reader = new InputStreamReader(new FileInputStream(file), CHARSET);
+    try {
+      StringBuilder sb = new StringBuilder();
+      char[] buffer = new char[8192];
+      int length;
+      while((length = reader.read(buffer)) != -1) {
+        sb.append(buffer, 0, length);
+      }
+      return sb.toString();
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /** Get file normalized absolute path, used as cache key. */
+  private static String path(File file)
+  {
+    return file.getAbsoluteFile().toPath().normalize().toString();
+  }
+
+  private static String hex(byte[] digest)
+  {
+    StringBuilder sb = new StringBuilder();
+    for(byte b : digest) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Service provider declaration.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  public static class Declaration
+  {
+    private final String service;
+    private final String provider;
+
+    public Declaration(String service, String provider)
+    {
+      this.service = service;
+      this.provider = provider;
+    }
+
+    public String getService()
+    {
+      return service;
+    }
+
+    public String getProvider()
+    {
+      return provider;
+    }
+  }
+
+  /**
+   * Index entry for a script file.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  private static class Entry
+  {
+    final long length;
+    final long lastModified;
+    final String digest;
+    /** Time when file was indexed. */
+    final long indexTime;
+    final List<Declaration> declarations;
+
+    Entry(long length, long lastModified, String digest, long indexTime, List<Declaration> declarations)
+    {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.digest = digest;
+      this.indexTime = indexTime;
+      this.declarations = Collections.unmodifiableList(declarations);
+    }
+  }
+}
@@ -0,0 +1,316 @@
+package js.tools.ant.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import js.tools.commons.util.Files;
+
+/**
+ * Synchronization journal keeps, for every target directory, the files synchronized by last run and tombstones for
+ * files removed from target directory. Journal allows for incremental stale files detection: stale files are the ones
+ * present into last synchronized files but missing from current source files. Files not synchronized by this journal
+ * are not known, so journal also records, per target directory, the time server last scanned target directory for
+ * stale files; caller decides when journal stale files are not trusted anymore and target directory should be scanned.
+ * <p>
+ * Journal is stored on a UTF-8 text file with tab separated fields. A <code>file</code> record has target directory
+ * and file path fields. A <code>tombstone</code> record has target directory, file path and removal timestamp fields.
+ * A <code>scan</code> record has target directory and scan timestamp fields.
+ * Tombstones older than retention period are discarded when journal is saved.
+ * <p>
+ * The same journal file can be used by concurrent synchronizations, e.g. from Ant <code>parallel</code> container,
+ * each one with its own journal instance. On save, journal file is read again and only target directories updated by
+ * saving instance are replaced, so that updates from concurrent instances on distinct target directories are not lost.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class SyncJournal
+{
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  private static final String FILE_RECORD = "file";
+  private static final String TOMBSTONE_RECORD = "tombstone";
+  private static final String SCAN_RECORD = "scan";
+
+  /** Last synchronized files mapped to target directory. */
+  private final Map<String, Set<String>> files = new HashMap<String, Set<String>>();
+
+  /** Tombstones for removed files, in removal order. */
+  private final List<Tombstone> tombstones = new ArrayList<Tombstone>();
+
+  /** Last stale files scan timestamp mapped to target directory. */
+  private final Map<String, Long> scanTimes = new HashMap<String, Long>();
+
+  /** Target directories updated by this journal instance since loaded. */
+  private final Set<String> updatedTargets = new HashSet<String>();
+
+  /** Locks serializing journal files read and write, mapped to journal file absolute path. */
+  private static final Map<String, Object> locks = new HashMap<String, Object>();
+
+  /**
+   * Get stale files for target directory, that is, files synchronized by last run but not present into current source
+   * files. Returns null if target directory was never synchronized using this journal.
+   * 
+   * @param targetDir target directory,
+   * @param sourceFiles current source files.
+   * @return stale files, possible empty, or null.
+   */
+  public synchronized Set<String> getStaleFiles(String targetDir, Set<String> sourceFiles)
+  {
+    Set<String> lastFiles = files.get(targetDir);
+    if(lastFiles == null) {
+      return null;
+    }
+    Set<String> staleFiles = new TreeSet<String>(lastFiles);
+    staleFiles.removeAll(sourceFiles);
+    return staleFiles;
+  }
+
+  /**
+   * Record synchronized files and tombstones for removed files. Stale files not confirmed as removed are kept into last
+   * synchronized files so that they are stale files again on next run and their removal is retried. This method can be
+   * invoked concurrently.
+   * 
+   * @param targetDir target directory,
+   * @param sourceFiles synchronized source files,
+   * @param staleFiles stale files requested for removal,
+   * @param removedFiles files removed from target directory.
+   */
+  public synchronized void update(String targetDir, Set<String> sourceFiles, Set<String> staleFiles, Set<String> removedFiles)
+  {
+    Set<String> lastFiles = new HashSet<String>(sourceFiles);
+    for(String file : staleFiles) {
+      if(!removedFiles.contains(file)) {
+        lastFiles.add(file);
+      }
+    }
+    files.put(targetDir, lastFiles);
+    updatedTargets.add(targetDir);
+    long timestamp = System.currentTimeMillis();
+    for(String file : removedFiles) {
+      tombstones.add(new Tombstone(targetDir, file, timestamp));
+    }
+  }
+
+  /**
+   * Add synchronized files to last synchronized files, for a synchronization that does not remove stale files. Target
+   * directory still contains previously synchronized files so they are retained for later stale files detection.
+   * 
+   * @param targetDir target directory,
+   * @param sourceFiles synchronized source files.
+   */
+  public synchronized void merge(String targetDir, Set<String> sourceFiles)
+  {
+    Set<String> lastFiles = files.get(targetDir);
+    if(lastFiles == null) {
+      lastFiles = new HashSet<String>();
+      files.put(targetDir, lastFiles);
+    }
+    lastFiles.addAll(sourceFiles);
+    updatedTargets.add(targetDir);
+  }
+
+  /**
+   * Get the time target directory was last scanned for stale files, see {@link #setScanTime(String, long)}.
+   * 
+   * @param targetDir target directory.
+   * @return last scan timestamp, or zero if target directory was never scanned.
+   */
+  public synchronized long getScanTime(String targetDir)
+  {
+    Long scanTime = scanTimes.get(targetDir);
+    return scanTime != null ? scanTime : 0;
+  }
+
+  /**
+   * Record the time target directory was scanned for stale files.
+   * 
+   * @param targetDir target directory,
+   * @param scanTime scan timestamp.
+   */
+  public synchronized void setScanTime(String targetDir, long scanTime)
+  {
+    scanTimes.put(targetDir, scanTime);
+    updatedTargets.add(targetDir);
+  }
+
+  /**
+   * Get tombstones for files removed from target directory, in removal order.
+   * 
+   * @param targetDir target directory.
+   * @return removed files, possible empty.
+   */
+  public synchronized List<String> getRemovedFiles(String targetDir)
+  {
+    List<String> removedFiles = new ArrayList<String>();
+    for(Tombstone tombstone : tombstones) {
+      if(tombstone.targetDir.equals(targetDir)) {
+        removedFiles.add(tombstone.file);
+      }
+    }
+    return removedFiles;
+  }
+
+  /**
+   * Load journal from file. Returns empty journal if file does not exist.
+   * 
+   * @param journalFile journal file.
+   * @return loaded journal.
+   * @throws IOException if file reading fails or file is not a valid journal.
+   */
+  public static SyncJournal load(File journalFile) throws IOException
+  {
+    synchronized(lock(journalFile)) {
+      return read(journalFile);
+    }
+  }
+
+  private static SyncJournal read(File journalFile) throws IOException
+  {
+    SyncJournal journal = new SyncJournal();
+    if(!journalFile.exists()) {
+      return journal;
+    }
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), CHARSET));
+    try {
+      String line;
+      while((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t");
+        if(fields[0].equals(FILE_RECORD) && fields.length == 3) {
+          Set<String> targetFiles = journal.files.get(fields[1]);
+          if(targetFiles == null) {
+            targetFiles = new HashSet<String>();
+            journal.files.put(fields[1], targetFiles);
+          }
+          targetFiles.add(fields[2]);
+        }
+        else if(fields[0].equals(TOMBSTONE_RECORD) && fields.length == 4) {
+          journal.tombstones.add(new Tombstone(fields[1], fields[2], Long.parseLong(fields[3])));
+        }
+        else if(fields[0].equals(SCAN_RECORD) && fields.length == 3) {
+          journal.scanTimes.put(fields[1], Long.parseLong(fields[2]));
+        }
+        else {
+          throw new IOException(String.format("Invalid synchronization journal |%s|. Bad record |%s|.", journalFile, line));
+        }
+      }
+    }
+    catch(NumberFormatException e) {
+      throw new IOException(String.format("Invalid synchronization journal |%s|.", journalFile), e);
+    }
+    finally {
+      Files.close(reader);
+    }
+    return journal;
+  }
+
+  /**
+   * Save journal to file, discarding tombstones older than retention period. Target directories not updated by this
+   * journal instance are preserved as found on file.
+   * 
+   * @param journalFile journal file,
+   * @param retention tombstones retention period, in milliseconds.
+   * @throws IOException if file reading or writing fails.
+   */
+  public synchronized void save(File journalFile, long retention) throws IOException
+  {
+    synchronized(lock(journalFile)) {
+      SyncJournal journal = read(journalFile);
+      for(String targetDir : updatedTargets) {
+        if(files.containsKey(targetDir)) {
+          journal.files.put(targetDir, files.get(targetDir));
+        }
+        if(scanTimes.containsKey(targetDir)) {
+          journal.scanTimes.put(targetDir, scanTimes.get(targetDir));
+        }
+        Iterator<Tombstone> iterator = journal.tombstones.iterator();
+        while(iterator.hasNext()) {
+          if(iterator.next().targetDir.equals(targetDir)) {
+            iterator.remove();
+          }
+        }
+        for(Tombstone tombstone : tombstones) {
+          if(tombstone.targetDir.equals(targetDir)) {
+            journal.tombstones.add(tombstone);
+          }
+        }
+      }
+      journal.write(journalFile, retention);
+    }
+  }
+
+  private static Object lock(File journalFile)
+  {
+    synchronized(locks) {
+      String key = journalFile.getAbsolutePath();
+      Object lock = locks.get(key);
+      if(lock == null) {
+        lock = new Object();
+        locks.put(key, lock);
+      }
+      return lock;
+    }
+  }
+
+  private void write(File journalFile, long retention) throws IOException
+  {
+    long threshold = System.currentTimeMillis() - retention;
+    PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(journalFile), CHARSET));
+    try {
+      for(Map.Entry<String, Set<String>> entry : files.entrySet()) {
+        for(String file : entry.getValue()) {
+          writer.printf("%s\t%s\t%s\n", FILE_RECORD, entry.getKey(), file);
+        }
+      }
+      for(Map.Entry<String, Long> entry : scanTimes.entrySet()) {
+        writer.printf("%s\t%s\t%d\n", SCAN_RECORD, entry.getKey(), entry.getValue());
+      }
+      for(Tombstone tombstone : tombstones) {
+        if(tombstone.timestamp >= threshold) {
+          writer.printf("%s\t%s\t%s\t%d\n", TOMBSTONE_RECORD, tombstone.targetDir, tombstone.file, tombstone.timestamp);
+        }
+      }
+      if(writer.checkError()) {
+        throw new IOException(String.format("Fail to write synchronization journal |%s|.", journalFile));
+      }
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Record for a file removed from target directory.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  private static class Tombstone
+  {
+    final String targetDir;
+    final String file;
+    final long timestamp;
+
+    Tombstone(String targetDir, String file, long timestamp)
+    {
+      this.targetDir = targetDir;
+      this.file = file;
+      this.timestamp = timestamp;
+    }
+  }
+}
@@ -0,0 +1,237 @@
+package js.tools.ant.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import js.tools.commons.util.Files;
+
+/**
+ * Synchronization plan created by a dry run and executed later, without files hashing and negotiation with server.
+ * Plan lists, for every target directory, files to upload, stale files to remove and the count of files left unchanged.
+ * For every file to upload plan records its length and last modification time so that files changed after plan
+ * creation are detected.
+ * <p>
+ * Plan file is a UTF-8 text file with tab separated fields. First field is record type. A <code>target</code> record
+ * opens a target directory section and has target directory and unchanged files count fields. It is followed by
+ * <code>upload</code> records having file path, base directory, file length and last modification time fields and by
+ * <code>remove</code> records having file path field.
+ * 
+ * <pre>
+ * target   js-lib.com/site   125
+ * upload   index.htm         /home/user/site/build/site   2318   1409070122000
+ * remove   about.htm
+ * </pre>
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class SyncPlan
+{
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  private static final String TARGET_RECORD = "target";
+  private static final String UPLOAD_RECORD = "upload";
+  private static final String REMOVE_RECORD = "remove";
+
+  /** Target directories mapped to their plan, in insertion order. */
+  private final Map<String, Target> targets = new LinkedHashMap<String, Target>();
+
+  /**
+   * Add files to upload, stale files to remove and unchanged files count for a target directory. This method can be
+   * invoked concurrently.
+   * 
+   * @param targetDir target directory,
+   * @param baseDirs base directories mapped to file paths,
+   * @param uploadFiles file paths to upload, in upload order,
+   * @param removeFiles stale file paths to remove, possible empty,
+   * @param unchangedCount the number of files left unchanged.
+   */
+  public synchronized void addTarget(String targetDir, Map<String, File> baseDirs, List<String> uploadFiles, Collection<String> removeFiles, int unchangedCount)
+  {
+    Target target = new Target(unchangedCount);
+    for(String path : uploadFiles) {
+      File baseDir = baseDirs.get(path);
+      File file = new File(baseDir, path);
+      target.files.add(new FileEntry(path, baseDir, file.length(), file.lastModified()));
+    }
+    target.removeFiles.addAll(removeFiles);
+    targets.put(targetDir, target);
+  }
+
+  public synchronized Set<String> getTargetDirs()
+  {
+    return Collections.unmodifiableSet(targets.keySet());
+  }
+
+  /**
+   * Get base directories mapped to paths of files to upload, for given target directory. Returned map preserves upload
+   * order.
+   * 
+   * @param targetDir target directory.
+   * @return base directories mapped to file paths.
+   * @throws IOException if a file is changed or removed after plan creation.
+   */
+  public synchronized Map<String, File> getUploadFiles(String targetDir) throws IOException
+  {
+    Map<String, File> baseDirs = new LinkedHashMap<String, File>();
+    for(FileEntry entry : targets.get(targetDir).files) {
+      File file = new File(entry.baseDir, entry.path);
+      if(file.length() != entry.length || file.lastModified() != entry.lastModified) {
+        throw new IOException(String.format("File |%s| changed after synchronization plan creation.", file));
+      }
+      baseDirs.put(entry.path, entry.baseDir);
+    }
+    return baseDirs;
+  }
+
+  /**
+   * Get stale files to remove from given target directory.
+   * 
+   * @param targetDir target directory.
+   * @return stale file paths, possible empty.
+   */
+  public synchronized List<String> getRemoveFiles(String targetDir)
+  {
+    return Collections.unmodifiableList(targets.get(targetDir).removeFiles);
+  }
+
+  public synchronized int getUploadCount(String targetDir)
+  {
+    return targets.get(targetDir).files.size();
+  }
+
+  public synchronized int getUnchangedCount(String targetDir)
+  {
+    return targets.get(targetDir).unchangedCount;
+  }
+
+  public synchronized long getUploadBytes(String targetDir)
+  {
+    long bytes = 0;
+    for(FileEntry entry : targets.get(targetDir).files) {
+      bytes += entry.length;
+    }
+    return bytes;
+  }
+
+  /**
+   * Save this plan to file.
+   * 
+   * @param planFile plan file.
+   * @throws IOException if file write fails.
+   */
+  public synchronized void save(File planFile) throws IOException
+  {
+    PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(planFile), CHARSET));
+    try {
+      for(Map.Entry<String, Target> target : targets.entrySet()) {
+        writer.printf("%s\t%s\t%d\n", TARGET_RECORD, target.getKey(), target.getValue().unchangedCount);
+        for(FileEntry entry : target.getValue().files) {
+          writer.printf("%s\t%s\t%s\t%d\t%d\n", UPLOAD_RECORD, entry.path, entry.baseDir.getPath(), entry.length, entry.lastModified);
+        }
+        for(String path : target.getValue().removeFiles) {
+          writer.printf("%s\t%s\n", REMOVE_RECORD, path);
+        }
+      }
+      if(writer.checkError()) {
+        throw new IOException(String.format("Fail to write synchronization plan |%s|.", planFile));
+      }
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Load plan from file.
+   * 
+   * @param planFile plan file.
+   * @return loaded plan.
+   * @throws IOException if file read fails or file is not a valid plan.
+   */
+  public static SyncPlan load(File planFile) throws IOException
+  {
+    SyncPlan plan = new SyncPlan();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(planFile), CHARSET));
+    try {
+      Target target = null;
+      String line;
+      while((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t");
+        if(fields[0].equals(TARGET_RECORD) && fields.length == 3) {
+          target = new Target(Integer.parseInt(fields[2]));
+          plan.targets.put(fields[1], target);
+        }
+        else if(fields[0].equals(UPLOAD_RECORD) && fields.length == 5 && target != null) {
+          target.files.add(new FileEntry(fields[1], new File(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4])));
+        }
+        else if(fields[0].equals(REMOVE_RECORD) && fields.length == 2 && target != null) {
+          target.removeFiles.add(fields[1]);
+        }
+        else {
+          throw new IOException(String.format("Invalid synchronization plan |%s|. Bad record |%s|.", planFile, line));
+        }
+      }
+    }
+    catch(NumberFormatException e) {
+      throw new IOException(String.format("Invalid synchronization plan |%s|.", planFile), e);
+    }
+    finally {
+      Files.close(reader);
+    }
+    return plan;
+  }
+
+  /**
+   * Plan for a target directory.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  private static class Target
+  {
+    final int unchangedCount;
+    final List<FileEntry> files = new ArrayList<FileEntry>();
+    final List<String> removeFiles = new ArrayList<String>();
+
+    Target(int unchangedCount)
+    {
+      this.unchangedCount = unchangedCount;
+    }
+  }
+
+  /**
+   * File to upload.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  private static class FileEntry
+  {
+    final String path;
+    final File baseDir;
+    final long length;
+    final long lastModified;
+
+    FileEntry(String path, File baseDir, long length, long lastModified)
+    {
+      this.path = path;
+      this.baseDir = baseDir;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+  }
+}
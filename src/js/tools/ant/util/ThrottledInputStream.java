@@ -0,0 +1,50 @@
+package js.tools.ant.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream with bandwidth limited by a {@link TokenBucket}. Bytes are acquired from bucket as they are read, so
+ * that content copied from this stream to an upload stream is sent at bucket rate.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class ThrottledInputStream extends FilterInputStream
+{
+  private final TokenBucket bucket;
+
+  public ThrottledInputStream(InputStream in, TokenBucket bucket)
+  {
+    super(in);
+    this.bucket = bucket;
+  }
+
+  @Override
+  public int read() throws IOException
+  {
+    int b = in.read();
+    if(b != -1) {
+      bucket.acquire(1);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+    int count = in.read(b, off, len);
+    if(count > 0) {
+      bucket.acquire(count);
+    }
+    return count;
+  }
+
+  @Override
+  public long skip(long n) throws IOException
+  {
+    // skipped bytes are not sent
+    return in.skip(n);
+  }
+}
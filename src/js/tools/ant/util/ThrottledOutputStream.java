@@ -0,0 +1,36 @@
+package js.tools.ant.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream with bandwidth limited by a {@link TokenBucket}.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class ThrottledOutputStream extends FilterOutputStream
+{
+  private final TokenBucket bucket;
+
+  public ThrottledOutputStream(OutputStream out, TokenBucket bucket)
+  {
+    super(out);
+    this.bucket = bucket;
+  }
+
+  @Override
+  public void write(int b) throws IOException
+  {
+    bucket.acquire(1);
+    out.write(b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException
+  {
+    bucket.acquire(len);
+    out.write(b, off, len);
+  }
+}
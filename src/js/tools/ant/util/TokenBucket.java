@@ -0,0 +1,157 @@
+package js.tools.ant.util;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket used to limit upload bandwidth. Bucket is filled with tokens, one token per byte, at configured rate
+ * and can hold at most burst tokens. Sending bytes consumes tokens; if there are not enough tokens caller thread is
+ * blocked till bucket refills. Bucket is thread safe and can be shared by concurrent uploads, in which case rate limit
+ * applies to all of them.
+ * <p>
+ * Time is read and waited through a {@link Clock}, system clock by default, so that tests can run bucket on simulated
+ * time.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class TokenBucket
+{
+  private static final long NANOS_PER_SECOND = 1000000000L;
+
+  /** System clock, using {@link System#nanoTime()} and {@link Thread#sleep(long, int)}. */
+  public static final Clock SYSTEM_CLOCK = new Clock()
+  {
+    @Override
+    public long nanoTime()
+    {
+      return System.nanoTime();
+    }
+
+    @Override
+    public void sleep(long nanos) throws InterruptedException
+    {
+      Thread.sleep(nanos / 1000000L, (int)(nanos % 1000000L));
+    }
+  };
+
+  private final Clock clock;
+
+  /** Bucket fill rate, in bytes per second. */
+  private final long rate;
+
+  /** Bucket capacity, in bytes. This is the amount of bytes that can be sent at once after an idle period. */
+  private final long burst;
+
+  /** Available tokens. Can be negative if last acquired bytes count exceeds available tokens. */
+  private double tokens;
+
+  /** Timestamp, in nanoseconds, of the last bucket refill. */
+  private long timestamp;
+
+  /**
+   * Create token bucket for given rate and burst size. Bucket is initially full.
+   * 
+   * @param rate fill rate, in bytes per second,
+   * @param burst bucket capacity, in bytes.
+   * @throws IllegalArgumentException if rate or burst is not positive.
+   */
+  public TokenBucket(long rate, long burst)
+  {
+    this(rate, burst, SYSTEM_CLOCK);
+  }
+
+  /**
+   * Create token bucket for given rate and burst size, reading and waiting time on given clock. Bucket is initially
+   * full.
+   * 
+   * @param rate fill rate, in bytes per second,
+   * @param burst bucket capacity, in bytes,
+   * @param clock time source.
+   * @throws IllegalArgumentException if rate or burst is not positive.
+   */
+  public TokenBucket(long rate, long burst, Clock clock)
+  {
+    if(rate <= 0) {
+      throw new IllegalArgumentException("Rate should be positive.");
+    }
+    if(burst <= 0) {
+      throw new IllegalArgumentException("Burst should be positive.");
+    }
+    this.clock = clock;
+    this.rate = rate;
+    this.burst = burst;
+    this.tokens = burst;
+    this.timestamp = clock.nanoTime();
+  }
+
+  /**
+   * Create token bucket from Ant task attributes, both expressed in kilobytes. Returns null if rate is not positive,
+   * that is, bandwidth is not limited. If burst is not positive bucket capacity is set to one second of transfer.
+   * 
+   * @param rate fill rate, in kilobytes per second,
+   * @param burst bucket capacity, in kilobytes.
+   * @return token bucket or null.
+   */
+  public static TokenBucket create(int rate, int burst)
+  {
+    if(rate <= 0) {
+      return null;
+    }
+    return new TokenBucket(rate * 1024L, (burst > 0 ? burst : rate) * 1024L);
+  }
+
+  /**
+   * Consume tokens for given bytes count, waiting till bucket refills if there are not enough tokens. Bytes count
+   * larger than bucket capacity is accepted, caller waiting proportionally longer.
+   * 
+   * @param bytes bytes count to send.
+   * @throws InterruptedIOException if waiting thread is interrupted.
+   */
+  public synchronized void acquire(long bytes) throws InterruptedIOException
+  {
+    long now = clock.nanoTime();
+    tokens = Math.min(burst, tokens + (double)(now - timestamp) * rate / NANOS_PER_SECOND);
+    timestamp = now;
+
+    tokens -= bytes;
+    if(tokens >= 0) {
+      return;
+    }
+
+    // wait while holding bucket lock so that concurrent uploads are delayed too
+    long delay = (long)(-tokens * NANOS_PER_SECOND / rate);
+    try {
+      clock.sleep(delay);
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for upload bandwidth.");
+    }
+    tokens = 0;
+    timestamp = clock.nanoTime();
+  }
+
+  /**
+   * Time source used by token bucket.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  public interface Clock
+  {
+    /**
+     * Get current time, in nanoseconds, from an arbitrary origin.
+     * 
+     * @return current time.
+     */
+    long nanoTime();
+
+    /**
+     * Block caller thread for given time.
+     * 
+     * @param nanos waiting time, in nanoseconds.
+     * @throws InterruptedException if waiting thread is interrupted.
+     */
+    void sleep(long nanos) throws InterruptedException;
+  }
+}
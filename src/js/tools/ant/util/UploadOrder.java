@@ -0,0 +1,131 @@
+package js.tools.ant.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import js.tools.commons.util.Files;
+
+/**
+ * Order policy for uploaded files. Uploading files in a particular order allows, for example, to have all resources
+ * referenced by a page on server before the page itself.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public enum UploadOrder
+{
+  /** Keep files order, that is, source directory depth-first order. */
+  NONE,
+
+  /** Upload smaller files first so that most files reach server as soon as possible. */
+  SMALLEST_FIRST,
+
+  /** Upload HTML pages last, after styles, scripts and media files they reference. */
+  HTML_LAST;
+
+  /**
+   * Get order policy from Ant attribute value. Attribute value is case insensitive and uses dash as words separator,
+   * e.g. <code>smallest-first</code>.
+   * 
+   * @param value Ant attribute value.
+   * @return order policy.
+   * @throws IllegalArgumentException if value is not a known order policy.
+   */
+  public static UploadOrder forValue(String value)
+  {
+    return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+  }
+
+  /**
+   * Sort files list accordingly this order policy. Given list is not changed; returns a sorted copy or given list if
+   * this policy is {@link #NONE}. Sort is stable: files considered equal preserve their relative order.
+   * 
+   * @param baseDir base directory for files list,
+   * @param files files list, paths relative to base directory.
+   * @return sorted files list.
+   */
+  public List<String> sort(File baseDir, List<String> files)
+  {
+    Map<String, File> baseDirs = new HashMap<String, File>();
+    if(this == SMALLEST_FIRST) {
+      for(String file : files) {
+        baseDirs.put(file, baseDir);
+      }
+    }
+    return sort(baseDirs, files);
+  }
+
+  /**
+   * Sort files list accordingly this order policy, files having not the same base directory. This method is similar
+   * to {@link #sort(File, List)} but every file has its own base directory.
+   * 
+   * @param baseDirs base directories mapped to file paths,
+   * @param files files list, paths relative to base directories.
+   * @return sorted files list.
+   */
+  public List<String> sort(Map<String, File> baseDirs, List<String> files)
+  {
+    Map<String, Long> lengths = new HashMap<String, Long>();
+    if(this == SMALLEST_FIRST) {
+      for(String file : files) {
+        lengths.put(file, new File(baseDirs.get(file), file).length());
+      }
+    }
+    return sort(files, lengths);
+  }
+
+  /**
+   * Sort files list accordingly this order policy, using known files length. This method is similar to
+   * {@link #sort(File, List)} but is usable for files not stored on file system, e.g. archive entries.
+   * 
+   * @param files files list,
+   * @param lengths files length mapped to file path, used only by {@link #SMALLEST_FIRST}.
+   * @return sorted files list.
+   */
+  public List<String> sort(List<String> files, final Map<String, Long> lengths)
+  {
+    if(this == NONE) {
+      return files;
+    }
+    files = new ArrayList<String>(files);
+
+    switch(this) {
+    case SMALLEST_FIRST:
+      Collections.sort(files, new Comparator<String>()
+      {
+        @Override
+        public int compare(String file1, String file2)
+        {
+          return lengths.get(file1).compareTo(lengths.get(file2));
+        }
+      });
+      break;
+
+    case HTML_LAST:
+      Collections.sort(files, new Comparator<String>()
+      {
+        @Override
+        public int compare(String file1, String file2)
+        {
+          return Boolean.compare(isHTML(file1), isHTML(file2));
+        }
+      });
+      break;
+
+    default:
+    }
+    return files;
+  }
+
+  private static boolean isHTML(String file)
+  {
+    String extension = Files.getExtension(new File(file));
+    return extension.equals("htm") || extension.equals("html");
+  }
+}
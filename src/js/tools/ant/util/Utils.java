@@ -1,10 +1,27 @@
 package js.tools.ant.util;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import js.tools.commons.rmi.FilesOutputStream;
 import js.tools.commons.util.Files;
 import js.tools.commons.util.Strings;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.ResourceCollection;
+import org.apache.tools.ant.types.resources.FileResource;
 
 public final class Utils
 {
@@ -48,6 +65,234 @@ public final class Utils
     throw new BuildException(sb.toString());
   }
 
+  /**
+   * Add files to upload stream, in given order. If bandwidth limiter is present files are added one by one, every file
+   * content read through a {@link ThrottledInputStream}, so that file is sent at limited rate while uploading.
+   * 
+   * @param files upload stream,
+   * @param sourceDir source directory,
+   * @param fileNames file paths relative to source directory,
+   * @param bucket bandwidth limiter, null if bandwidth is not limited.
+   * @throws IOException if file reading or upload fails.
+   */
+  public static void addFiles(FilesOutputStream files, File sourceDir, List<String> fileNames, TokenBucket bucket) throws IOException
+  {
+    if(bucket == null) {
+      files.addFiles(sourceDir, fileNames);
+      return;
+    }
+    for(String fileName : fileNames) {
+      InputStream inputStream = new ThrottledInputStream(new FileInputStream(new File(sourceDir, fileName)), bucket);
+      try {
+        files.addFileEntry(fileName, inputStream);
+      }
+      finally {
+        Files.close(inputStream);
+      }
+    }
+  }
+
+  /**
+   * Add files having different base directories to upload stream, in given order. Consecutive files with the same base
+   * directory are added in a single batch, unless bandwidth limiter is present. See
+   * {@link #addFiles(FilesOutputStream, File, List, TokenBucket)}.
+   * 
+   * @param files upload stream,
+   * @param baseDirs base directories mapped to file paths,
+   * @param fileNames file paths relative to base directories,
+   * @param bucket bandwidth limiter, null if bandwidth is not limited.
+   * @throws IOException if file reading or upload fails.
+   */
+  public static void addFiles(FilesOutputStream files, Map<String, File> baseDirs, List<String> fileNames, TokenBucket bucket) throws IOException
+  {
+    File batchDir = null;
+    List<String> batch = new ArrayList<String>();
+    for(String fileName : fileNames) {
+      File baseDir = baseDirs.get(fileName);
+      if(!baseDir.equals(batchDir) && !batch.isEmpty()) {
+        addFiles(files, batchDir, batch, bucket);
+        batch = new ArrayList<String>();
+      }
+      batchDir = baseDir;
+      batch.add(fileName);
+    }
+    if(!batch.isEmpty()) {
+      addFiles(files, batchDir, batch, bucket);
+    }
+  }
+
+  /**
+   * Test if resource is a file from a base directory, e.g. a file from a file set, that can be uploaded using its base
+   * directory and relative path. Other resources, like archive entries, are streamed.
+   * 
+   * @param resource resource to test.
+   * @return true if resource is a file with base directory.
+   */
+  public static boolean isBaseDirFile(Resource resource)
+  {
+    return resource instanceof FileResource && ((FileResource)resource).getBaseDir() != null;
+  }
+
+  /**
+   * Compute MD5 message digest for resource content. Resource content is streamed and not kept in memory.
+   * 
+   * @param resource resource to digest.
+   * @return resource digest.
+   * @throws IOException if resource reading fails.
+   */
+  public static byte[] getResourceDigest(Resource resource) throws IOException
+  {
+    return getDigest(resource.getInputStream(), Agent.DEFAULT_DIGEST_ALGORITHM);
+  }
+
+  /**
+   * Compute message digest for resource content, using requested algorithm.
+   * 
+   * @param resource resource to digest,
+   * @param algorithm message digest algorithm, e.g. <code>SHA-256</code>.
+   * @return resource digest.
+   * @throws IOException if resource reading fails or algorithm is not supported.
+   */
+  public static byte[] getResourceDigest(Resource resource, String algorithm) throws IOException
+  {
+    return getDigest(resource.getInputStream(), algorithm);
+  }
+
+  /**
+   * Compute message digest for file content, using requested algorithm.
+   * 
+   * @param file file to digest,
+   * @param algorithm message digest algorithm, e.g. <code>SHA-256</code>.
+   * @return file digest.
+   * @throws IOException if file reading fails or algorithm is not supported.
+   */
+  public static byte[] getFileDigest(File file, String algorithm) throws IOException
+  {
+    return getDigest(new FileInputStream(file), algorithm);
+  }
+
+  /**
+   * Compute MD5 message digest for stream content. Stream is closed after digest computation.
+   * 
+   * @param inputStream input stream.
+   * @return stream content digest.
+   * @throws IOException if stream reading fails.
+   */
+  public static byte[] getDigest(InputStream inputStream) throws IOException
+  {
+    return getDigest(inputStream, Agent.DEFAULT_DIGEST_ALGORITHM);
+  }
+
+  /**
+   * Compute message digest for stream content, using requested algorithm. Stream is closed after digest computation.
+   * Algorithm can be {@link Agent#FAST_DIGEST_ALGORITHM}, in which case returned digest is the stream fast digest, see
+   * {@link #getFastDigest(long, long)}.
+   * 
+   * @param inputStream input stream,
+   * @param algorithm message digest algorithm, e.g. <code>SHA-256</code>.
+   * @return stream content digest.
+   * @throws IOException if stream reading fails or algorithm is not supported.
+   */
+  public static byte[] getDigest(InputStream inputStream, String algorithm) throws IOException
+  {
+    if(Agent.FAST_DIGEST_ALGORITHM.equals(algorithm)) {
+      return getFastDigest(inputStream);
+    }
+    MessageDigest messageDigest;
+    try {
+      messageDigest = MessageDigest.getInstance(algorithm);
+    }
+    catch(NoSuchAlgorithmException e) {
+      Files.close(inputStream);
+      throw new IOException(e);
+    }
+    try {
+      byte[] buffer = new byte[8192];
+      int length;
+      while((length = inputStream.read(buffer)) != -1) {
+        messageDigest.update(buffer, 0, length);
+      }
+    }
+    finally {
+      Files.close(inputStream);
+    }
+    return messageDigest.digest();
+  }
+
+  /**
+   * Create fast digest from content length and CRC-32, see {@link Agent#FAST_DIGEST_ALGORITHM}.
+   * 
+   * @param length content length,
+   * @param crc content CRC-32.
+   * @return fast digest.
+   */
+  public static byte[] getFastDigest(long length, long crc)
+  {
+    return ByteBuffer.allocate(12).putLong(length).putInt((int)crc).array();
+  }
+
+  /**
+   * Compute fast digest for stream content. Stream is closed after digest computation.
+   * 
+   * @param inputStream input stream.
+   * @return stream content fast digest.
+   * @throws IOException if stream reading fails.
+   */
+  private static byte[] getFastDigest(InputStream inputStream) throws IOException
+  {
+    CRC32 crc = new CRC32();
+    long length = 0;
+    try {
+      byte[] buffer = new byte[8192];
+      int count;
+      while((count = inputStream.read(buffer)) != -1) {
+        crc.update(buffer, 0, count);
+        length += count;
+      }
+    }
+    finally {
+      Files.close(inputStream);
+    }
+    return getFastDigest(length, crc.getValue());
+  }
+
+  /**
+   * Add resources from resource collections to upload stream. Resource collections are iterated lazily and every
+   * resource content is streamed directly to upload stream. If bandwidth limiter is present resource content is read
+   * through a {@link ThrottledInputStream}.
+   * 
+   * @param files upload stream,
+   * @param collections resource collections,
+   * @param names names of resources to add, null to add all resources,
+   * @param skipBaseDirFiles if true skip files with base directory, see {@link #isBaseDirFile(Resource)},
+   * @param bucket bandwidth limiter, null if bandwidth is not limited.
+   * @throws IOException if resource reading or upload fails.
+   */
+  public static void addResources(FilesOutputStream files, List<ResourceCollection> collections, Set<String> names, boolean skipBaseDirFiles, TokenBucket bucket) throws IOException
+  {
+    for(ResourceCollection collection : collections) {
+      for(Resource resource : collection) {
+        if(resource.isDirectory() || !resource.isExists() || (skipBaseDirFiles && isBaseDirFile(resource))) {
+          continue;
+        }
+        String name = Files.path2unix(resource.getName());
+        if(names != null && !names.contains(name)) {
+          continue;
+        }
+        InputStream inputStream = resource.getInputStream();
+        if(bucket != null) {
+          inputStream = new ThrottledInputStream(inputStream, bucket);
+        }
+        try {
+          files.addFileEntry(name, inputStream);
+        }
+        finally {
+          Files.close(inputStream);
+        }
+      }
+    }
+  }
+
   private Utils()
   {
   }
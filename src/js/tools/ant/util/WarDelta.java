@@ -0,0 +1,206 @@
+package js.tools.ant.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+
+/**
+ * Difference between a web archive and the archive currently deployed on server, computed from deployed entries CRC
+ * and size.
+ * Delta is serialized as a ZIP archive holding only changed and new entries, copied raw from web archive, plus an
+ * entries list, see {@link #ENTRIES_LIST}. Server rebuilds web archive by taking listed entries from delta, if present,
+ * or from deployed archive otherwise; deployed entries not listed are removed. See {@link #apply(ZipReader, ZipReader,
+ * OutputStream)} for reference implementation.
+ * <p>
+ * Entries are compared by CRC and uncompressed size, as returned by agent; an entry with changed content but the same
+ * CRC and size is not detected.
+ * <p>
+ * Delta changes are classified by entry names, see {@link Change}, so that static resources and configuration changes
+ * can be hot swapped without web context restart.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class WarDelta
+{
+  /** Delta entry listing, one per line, the names of all web archive entries in archive order. Stored uncompressed. */
+  public static final String ENTRIES_LIST = "META-INF/WAR-DELTA.LST";
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private final ZipReader archive;
+  private final List<ZipReader.Entry> changedEntries = new ArrayList<ZipReader.Entry>();
+  private final List<String> removedEntries = new ArrayList<String>();
+
+  /**
+   * Create delta of web archive against deployed archive entries.
+   * 
+   * @param archive web archive to deploy,
+   * @param deployedEntries deployed archive entries CRC and size mapped to entry name.
+   */
+  public WarDelta(ZipReader archive, Map<String, long[]> deployedEntries)
+  {
+    this.archive = archive;
+    Set<String> names = new HashSet<String>();
+    for(ZipReader.Entry entry : archive.getEntries()) {
+      names.add(entry.getName());
+      long[] deployedEntry = deployedEntries.get(entry.getName());
+      if(deployedEntry == null || deployedEntry[0] != entry.getCrc() || deployedEntry[1] != entry.getSize()) {
+        changedEntries.add(entry);
+      }
+    }
+    for(String name : deployedEntries.keySet()) {
+      if(!names.contains(name)) {
+        removedEntries.add(name);
+      }
+    }
+    Collections.sort(removedEntries);
+  }
+
+  public List<ZipReader.Entry> getChangedEntries()
+  {
+    return Collections.unmodifiableList(changedEntries);
+  }
+
+  public List<String> getRemovedEntries()
+  {
+    return Collections.unmodifiableList(removedEntries);
+  }
+
+  /**
+   * Get the most disruptive kind of change from this delta, considering both changed and removed entries.
+   * 
+   * @return delta change kind or null if delta is empty.
+   */
+  public Change getChange()
+  {
+    Change change = null;
+    for(ZipReader.Entry entry : changedEntries) {
+      change = Change.max(change, Change.forEntry(entry.getName()));
+    }
+    for(String name : removedEntries) {
+      change = Change.max(change, Change.forEntry(name));
+    }
+    return change;
+  }
+
+  /**
+   * Test if web archive has the same entries as deployed archive.
+   * 
+   * @return true if there are no changed or removed entries.
+   */
+  public boolean isEmpty()
+  {
+    return changedEntries.isEmpty() && removedEntries.isEmpty();
+  }
+
+  /**
+   * Write delta archive to given stream. Stream is not closed by this method.
+   * 
+   * @param stream output stream.
+   * @return the number of bytes written.
+   * @throws IOException if web archive reading or stream writing fails.
+   */
+  public long write(OutputStream stream) throws IOException
+  {
+    StringBuilder entries = new StringBuilder();
+    for(ZipReader.Entry entry : archive.getEntries()) {
+      entries.append(entry.getName()).append('\n');
+    }
+
+    ZipWriter delta = new ZipWriter(stream);
+    delta.write(ENTRIES_LIST, entries.toString().getBytes(CHARSET), System.currentTimeMillis(), false);
+    for(ZipReader.Entry entry : changedEntries) {
+      delta.copy(archive, entry);
+    }
+    delta.finish();
+    return delta.getSize();
+  }
+
+  /**
+   * Rebuild web archive from deployed archive and delta. This is the server side counterpart of
+   * {@link #write(OutputStream)}.
+   * 
+   * @param deployedArchive currently deployed archive,
+   * @param delta delta archive,
+   * @param stream output stream for rebuilt web archive, closed by this method.
+   * @throws IOException if delta is not valid or archives reading or stream writing fails.
+   */
+  public static void apply(ZipReader deployedArchive, ZipReader delta, OutputStream stream) throws IOException
+  {
+    ZipReader.Entry listEntry = delta.getEntry(ENTRIES_LIST);
+    if(listEntry == null || listEntry.getMethod() != ZipEntry.STORED) {
+      throw new IOException(String.format("Invalid WAR delta |%s|. Missing entries list.", delta.getFile()));
+    }
+    ByteArrayOutputStream list = new ByteArrayOutputStream();
+    delta.copyRaw(listEntry, list);
+
+    ZipWriter archive = new ZipWriter(stream);
+    try {
+      for(String name : new String(list.toByteArray(), CHARSET).split("\n")) {
+        if(name.isEmpty()) {
+          continue;
+        }
+        ZipReader.Entry entry = delta.getEntry(name);
+        if(entry != null) {
+          archive.copy(delta, entry);
+          continue;
+        }
+        entry = deployedArchive.getEntry(name);
+        if(entry == null) {
+          throw new IOException(String.format("Invalid WAR delta |%s|. Missing entry |%s|.", delta.getFile(), name));
+        }
+        archive.copy(deployedArchive, entry);
+      }
+    }
+    finally {
+      archive.close();
+    }
+  }
+
+  /**
+   * Kind of web archive change, in disruption order. Only {@link #CLASSES} changes require web context restart.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  public enum Change
+  {
+    /** Static resources, that is, entries outside <code>WEB-INF</code> and <code>META-INF</code>. */
+    STATIC,
+    /** Application configuration, that is, <code>WEB-INF</code> entries others than classes, libraries and web.xml. */
+    CONFIG,
+    /** Classes, libraries and container descriptors: <code>web.xml</code> and <code>META-INF</code> entries. */
+    CLASSES;
+
+    /**
+     * Get change kind for named entry.
+     * 
+     * @param name entry name.
+     * @return entry change kind.
+     */
+    public static Change forEntry(String name)
+    {
+      if(name.startsWith("META-INF/") || name.startsWith("WEB-INF/classes/") || name.startsWith("WEB-INF/lib/") || name.equals("WEB-INF/web.xml")) {
+        return CLASSES;
+      }
+      if(name.startsWith("WEB-INF/")) {
+        return CONFIG;
+      }
+      return STATIC;
+    }
+
+    private static Change max(Change change, Change other)
+    {
+      return change == null || other.compareTo(change) > 0 ? other : change;
+    }
+  }
+}
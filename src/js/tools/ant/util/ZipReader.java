@@ -0,0 +1,247 @@
+package js.tools.ant.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-only ZIP archive giving access to entries metadata and to entries raw, still compressed, content. This class
+ * reads archive central directory only; it does not inflate entries. Raw content is used by {@link ZipWriter} to copy
+ * unchanged entries from a previous archive without compressing them again.
+ * <p>
+ * Only plain archives are supported: ZIP64 and encrypted entries are rejected with {@link IOException}, in which case
+ * caller should treat archive as missing.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class ZipReader implements Closeable
+{
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  static final int END_SIGNATURE = 0x06054b50;
+  static final int LOCAL_HEADER_SIZE = 30;
+  static final int CENTRAL_HEADER_SIZE = 46;
+  static final int END_SIZE = 22;
+  static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+  private final File file;
+  private final RandomAccessFile archive;
+
+  /** Archive entries mapped to entry name, in archive order. */
+  private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+  /**
+   * Open archive and load its central directory.
+   * 
+   * @param file archive file.
+   * @throws IOException if archive reading fails or archive is not supported.
+   */
+  public ZipReader(File file) throws IOException
+  {
+    this.file = file;
+    this.archive = new RandomAccessFile(file, "r");
+    try {
+      readCentralDirectory();
+    }
+    catch(IOException e) {
+      archive.close();
+      throw e;
+    }
+  }
+
+  public File getFile()
+  {
+    return file;
+  }
+
+  /**
+   * Get archive entry by name.
+   * 
+   * @param name entry name.
+   * @return archive entry or null if not found.
+   */
+  public Entry getEntry(String name)
+  {
+    return entries.get(name);
+  }
+
+  public Collection<Entry> getEntries()
+  {
+    return Collections.unmodifiableCollection(entries.values());
+  }
+
+  /**
+   * Copy entry raw content, that is, compressed bytes as stored into archive, to given output stream.
+   * 
+   * @param entry archive entry,
+   * @param stream output stream, not closed by this method.
+   * @throws IOException if archive reading or stream writing fails.
+   */
+  public synchronized void copyRaw(Entry entry, OutputStream stream) throws IOException
+  {
+    byte[] header = new byte[LOCAL_HEADER_SIZE];
+    archive.seek(entry.offset);
+    archive.readFully(header);
+    if(int32(header, 0) != LOCAL_HEADER_SIGNATURE) {
+      throw new IOException(String.format("Invalid local header for entry |%s| on archive |%s|.", entry.name, file));
+    }
+    archive.seek(entry.offset + LOCAL_HEADER_SIZE + int16(header, 26) + int16(header, 28));
+
+    byte[] buffer = new byte[8192];
+    long remaining = entry.compressedSize;
+    while(remaining > 0) {
+      int length = archive.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+      if(length == -1) {
+        throw new EOFException(String.format("Truncated entry |%s| on archive |%s|.", entry.name, file));
+      }
+      stream.write(buffer, 0, length);
+      remaining -= length;
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    archive.close();
+  }
+
+  private void readCentralDirectory() throws IOException
+  {
+    long length = archive.length();
+    int tailSize = (int)Math.min(length, END_SIZE + MAX_COMMENT_SIZE);
+    byte[] tail = new byte[tailSize];
+    archive.seek(length - tailSize);
+    archive.readFully(tail);
+
+    int end = -1;
+    for(int i = tailSize - END_SIZE; i >= 0; --i) {
+      if(int32(tail, i) == END_SIGNATURE) {
+        end = i;
+        break;
+      }
+    }
+    if(end == -1) {
+      throw new IOException(String.format("Not a ZIP archive |%s|.", file));
+    }
+
+    int entriesCount = int16(tail, end + 10);
+    long directorySize = uint32(tail, end + 12);
+    long directoryOffset = uint32(tail, end + 16);
+    if(entriesCount == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) {
+      throw new IOException(String.format("ZIP64 archive |%s| is not supported.", file));
+    }
+
+    byte[] directory = new byte[(int)directorySize];
+    archive.seek(directoryOffset);
+    archive.readFully(directory);
+
+    int position = 0;
+    for(int i = 0; i < entriesCount; ++i) {
+      if(position + CENTRAL_HEADER_SIZE > directory.length || int32(directory, position) != CENTRAL_HEADER_SIGNATURE) {
+        throw new IOException(String.format("Invalid central directory on archive |%s|.", file));
+      }
+      int flags = int16(directory, position + 8);
+      if((flags & 1) != 0) {
+        throw new IOException(String.format("Encrypted archive |%s| is not supported.", file));
+      }
+      int nameLength = int16(directory, position + 28);
+      int extraLength = int16(directory, position + 30);
+      int commentLength = int16(directory, position + 32);
+
+      Entry entry = new Entry();
+      entry.method = int16(directory, position + 10);
+      entry.dosTime = uint32(directory, position + 12);
+      entry.crc = uint32(directory, position + 16);
+      entry.compressedSize = uint32(directory, position + 20);
+      entry.size = uint32(directory, position + 24);
+      entry.offset = uint32(directory, position + 42);
+      entry.name = new String(directory, position + CENTRAL_HEADER_SIZE, nameLength, UTF8);
+      if(entry.compressedSize == 0xFFFFFFFFL || entry.size == 0xFFFFFFFFL || entry.offset == 0xFFFFFFFFL) {
+        throw new IOException(String.format("ZIP64 archive |%s| is not supported.", file));
+      }
+      entries.put(entry.name, entry);
+
+      position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+  }
+
+  static int int16(byte[] bytes, int offset)
+  {
+    return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8;
+  }
+
+  static int int32(byte[] bytes, int offset)
+  {
+    return int16(bytes, offset) | int16(bytes, offset + 2) << 16;
+  }
+
+  static long uint32(byte[] bytes, int offset)
+  {
+    return int32(bytes, offset) & 0xFFFFFFFFL;
+  }
+
+  /**
+   * Archive entry metadata as stored on central directory.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  public static class Entry
+  {
+    private String name;
+    private int method;
+    private long dosTime;
+    private long crc;
+    private long compressedSize;
+    private long size;
+
+    /** Local header offset. */
+    private long offset;
+
+    public String getName()
+    {
+      return name;
+    }
+
+    /**
+     * Get entry compression method, {@link java.util.zip.ZipEntry#STORED} or {@link java.util.zip.ZipEntry#DEFLATED}.
+     * 
+     * @return compression method.
+     */
+    public int getMethod()
+    {
+      return method;
+    }
+
+    public long getDosTime()
+    {
+      return dosTime;
+    }
+
+    public long getCrc()
+    {
+      return crc;
+    }
+
+    public long getCompressedSize()
+    {
+      return compressedSize;
+    }
+
+    public long getSize()
+    {
+      return size;
+    }
+  }
+}
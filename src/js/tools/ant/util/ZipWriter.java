@@ -0,0 +1,408 @@
+package js.tools.ant.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+import js.tools.commons.util.Files;
+
+/**
+ * Streaming ZIP archive writer. Entries are written to output stream as they are added, with no temporary buffers;
+ * stored entries need CRC known in advance while deflated entries are followed by a data descriptor. Beside regular
+ * entries this writer is able to copy raw, still compressed, entries from a previous archive, see
+ * {@link #copy(ZipReader, ZipReader.Entry, long)}, so that unchanged entries are not compressed again.
+ * <p>
+ * Entry names are encoded UTF-8. ZIP64 is not supported: archive is limited to 65535 entries and 4GB.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class ZipWriter implements Closeable
+{
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int DESCRIPTOR_SIGNATURE = 0x08074b50;
+  private static final int VERSION = 20;
+  private static final int FLAG_DESCRIPTOR = 0x0008;
+  private static final int FLAG_UTF8 = 0x0800;
+  private static final long MAX_SIZE = 0xFFFFFFFFL;
+  private static final int MAX_ENTRIES = 0xFFFF;
+
+  private final CountingOutputStream stream;
+  private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  private final byte[] buffer = new byte[8192];
+
+  /** Written entries, in archive order, used to create central directory. */
+  private final List<Header> headers = new ArrayList<Header>();
+  private final Set<String> names = new HashSet<String>();
+  private boolean finished;
+
+  public ZipWriter(OutputStream stream)
+  {
+    this.stream = new CountingOutputStream(new BufferedOutputStream(stream));
+  }
+
+  /**
+   * Add file entry. Given CRC should be computed by caller with {@link #crc(File)}, usually to compare against previous
+   * archive entry.
+   * 
+   * @param name entry name,
+   * @param file source file,
+   * @param crc file content CRC,
+   * @param compress true to deflate file content, false to store it as it is.
+   * @throws IOException if file reading or archive writing fails.
+   */
+  public void write(String name, File file, long crc, boolean compress) throws IOException
+  {
+    InputStream input = new FileInputStream(file);
+    try {
+      write(name, input, file.length(), crc, file.lastModified(), compress);
+    }
+    finally {
+      Files.close(input);
+    }
+  }
+
+  /**
+   * Add entry from bytes array.
+   * 
+   * @param name entry name,
+   * @param bytes entry content,
+   * @param time entry modification time, in milliseconds,
+   * @param compress true to deflate content, false to store it as it is.
+   * @throws IOException if archive writing fails.
+   */
+  public void write(String name, byte[] bytes, long time, boolean compress) throws IOException
+  {
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    write(name, new ByteArrayInputStream(bytes), bytes.length, crc.getValue(), time, compress);
+  }
+
+  private void write(String name, InputStream input, long size, long crc, long time, boolean compress) throws IOException
+  {
+    if(size > MAX_SIZE) {
+      throw new IOException(String.format("Entry |%s| is too large. ZIP64 is not supported.", name));
+    }
+    Header header = header(name, compress ? ZipEntry.DEFLATED : ZipEntry.STORED, dosTime(time));
+    header.crc = crc;
+    header.size = size;
+    if(compress) {
+      // compressed size is not known in advance; it is written on data descriptor
+      header.flags |= FLAG_DESCRIPTOR;
+    }
+    else {
+      header.compressedSize = size;
+    }
+    writeLocalHeader(header);
+
+    long start = stream.count;
+    if(compress) {
+      deflater.reset();
+      DeflaterOutputStream deflaterStream = new DeflaterOutputStream(stream, deflater, buffer.length);
+      copy(input, deflaterStream);
+      deflaterStream.finish();
+    }
+    else {
+      copy(input, stream);
+    }
+    long written = stream.count - start;
+
+    if(compress) {
+      header.compressedSize = written;
+      if(written > MAX_SIZE) {
+        throw new IOException(String.format("Entry |%s| is too large. ZIP64 is not supported.", name));
+      }
+      writeInt(DESCRIPTOR_SIGNATURE);
+      writeInt(header.crc);
+      writeInt(header.compressedSize);
+      writeInt(header.size);
+    }
+    else if(written != size) {
+      throw new IOException(String.format("Entry |%s| size changed while writing.", name));
+    }
+  }
+
+  /**
+   * Copy entry from previous archive, without inflating and deflating it again. Entry content is copied as it is,
+   * including compression method; only modification time is updated.
+   * 
+   * @param archive previous archive,
+   * @param entry previous archive entry,
+   * @param time entry modification time, in milliseconds.
+   * @throws IOException if archive reading or writing fails.
+   */
+  public void copy(ZipReader archive, ZipReader.Entry entry, long time) throws IOException
+  {
+    copyEntry(archive, entry, dosTime(time));
+  }
+
+  /**
+   * Copy entry from another archive, without inflating and deflating it again. This method preserves entry modification
+   * time.
+   * 
+   * @param archive source archive,
+   * @param entry source archive entry.
+   * @throws IOException if archive reading or writing fails.
+   */
+  public void copy(ZipReader archive, ZipReader.Entry entry) throws IOException
+  {
+    copyEntry(archive, entry, entry.getDosTime());
+  }
+
+  private void copyEntry(ZipReader archive, ZipReader.Entry entry, long dosTime) throws IOException
+  {
+    Header header = header(entry.getName(), entry.getMethod(), dosTime);
+    header.crc = entry.getCrc();
+    header.compressedSize = entry.getCompressedSize();
+    header.size = entry.getSize();
+    writeLocalHeader(header);
+    archive.copyRaw(entry, stream);
+  }
+
+  /**
+   * Get the number of bytes written so far to underlying stream.
+   * 
+   * @return written bytes count.
+   */
+  public long getSize()
+  {
+    return stream.count;
+  }
+
+  /**
+   * Write central directory and end record, then close underlying stream.
+   * 
+   * @throws IOException if writing fails.
+   */
+  @Override
+  public void close() throws IOException
+  {
+    try {
+      finish();
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  /**
+   * Write central directory and end record without closing underlying stream. No entries can be added after this
+   * method returns.
+   * 
+   * @throws IOException if writing fails.
+   */
+  public void finish() throws IOException
+  {
+    if(finished) {
+      return;
+    }
+    finished = true;
+    try {
+      long directoryOffset = stream.count;
+      for(Header header : headers) {
+        writeInt(ZipReader.CENTRAL_HEADER_SIGNATURE);
+        writeShort(VERSION);
+        writeShort(VERSION);
+        writeShort(header.flags);
+        writeShort(header.method);
+        writeInt(header.dosTime);
+        writeInt(header.crc);
+        writeInt(header.compressedSize);
+        writeInt(header.size);
+        writeShort(header.name.length);
+        // extra field, comment, disk number, internal and external attributes
+        writeShort(0);
+        writeShort(0);
+        writeShort(0);
+        writeShort(0);
+        writeInt(0);
+        writeInt(header.offset);
+        stream.write(header.name);
+      }
+      long directorySize = stream.count - directoryOffset;
+      if(stream.count > MAX_SIZE) {
+        throw new IOException("Archive is too large. ZIP64 is not supported.");
+      }
+
+      writeInt(ZipReader.END_SIGNATURE);
+      writeShort(0);
+      writeShort(0);
+      writeShort(headers.size());
+      writeShort(headers.size());
+      writeInt(directorySize);
+      writeInt(directoryOffset);
+      writeShort(0);
+      stream.flush();
+    }
+    finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Compute file content CRC as used by ZIP entries.
+   * 
+   * @param file file to compute CRC for.
+   * @return file CRC.
+   * @throws IOException if file reading fails.
+   */
+  public static long crc(File file) throws IOException
+  {
+    CRC32 crc = new CRC32();
+    InputStream input = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[8192];
+      int length;
+      while((length = input.read(buffer)) != -1) {
+        crc.update(buffer, 0, length);
+      }
+    }
+    finally {
+      Files.close(input);
+    }
+    return crc.getValue();
+  }
+
+  private Header header(String name, int method, long dosTime) throws IOException
+  {
+    if(finished) {
+      throw new IOException("Archive is finished.");
+    }
+    if(!names.add(name)) {
+      throw new IOException(String.format("Duplicated archive entry |%s|.", name));
+    }
+    if(headers.size() == MAX_ENTRIES) {
+      throw new IOException("Too many archive entries. ZIP64 is not supported.");
+    }
+    if(stream.count > MAX_SIZE) {
+      throw new IOException("Archive is too large. ZIP64 is not supported.");
+    }
+    Header header = new Header();
+    header.name = name.getBytes(UTF8);
+    header.method = method;
+    header.dosTime = dosTime;
+    header.flags = FLAG_UTF8;
+    header.offset = stream.count;
+    headers.add(header);
+    return header;
+  }
+
+  private void writeLocalHeader(Header header) throws IOException
+  {
+    boolean descriptor = (header.flags & FLAG_DESCRIPTOR) != 0;
+    writeInt(ZipReader.LOCAL_HEADER_SIGNATURE);
+    writeShort(VERSION);
+    writeShort(header.flags);
+    writeShort(header.method);
+    writeInt(header.dosTime);
+    writeInt(descriptor ? 0 : header.crc);
+    writeInt(descriptor ? 0 : header.compressedSize);
+    writeInt(descriptor ? 0 : header.size);
+    writeShort(header.name.length);
+    writeShort(0);
+    stream.write(header.name);
+  }
+
+  private void copy(InputStream input, OutputStream output) throws IOException
+  {
+    int length;
+    while((length = input.read(buffer)) != -1) {
+      output.write(buffer, 0, length);
+    }
+  }
+
+  private void writeShort(int value) throws IOException
+  {
+    stream.write(value & 0xFF);
+    stream.write((value >>> 8) & 0xFF);
+  }
+
+  private void writeInt(long value) throws IOException
+  {
+    writeShort((int)(value & 0xFFFF));
+    writeShort((int)((value >>> 16) & 0xFFFF));
+  }
+
+  /**
+   * Convert Java time to MS-DOS date and time used by ZIP headers. MS-DOS time has two seconds resolution and is not
+   * able to represent years before 1980.
+   * 
+   * @param time Java time, in milliseconds.
+   * @return MS-DOS date and time.
+   */
+  static long dosTime(long time)
+  {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(time);
+    int year = calendar.get(Calendar.YEAR);
+    if(year < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21 | calendar.get(Calendar.DAY_OF_MONTH) << 16 | calendar.get(Calendar.HOUR_OF_DAY) << 11 | calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+  }
+
+  /**
+   * Entry header data kept for central directory.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  private static class Header
+  {
+    byte[] name;
+    int method;
+    int flags;
+    long dosTime;
+    long crc;
+    long compressedSize;
+    long size;
+    long offset;
+  }
+
+  /**
+   * Output stream counting written bytes.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  private static class CountingOutputStream extends FilterOutputStream
+  {
+    long count;
+
+    CountingOutputStream(OutputStream stream)
+    {
+      super(stream);
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+      out.write(b);
+      ++count;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+}
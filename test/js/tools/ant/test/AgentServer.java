@@ -0,0 +1,152 @@
+package js.tools.ant.test;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Loopback HTTP endpoint replaying recorded agent responses, so that tests exercise HTTP-RMI client wire path: request
+ * URL, request body streaming, connections reuse, remote exceptions and missing remote methods. Tasks use endpoint by
+ * setting their host to {@link #getHost()}; agent must not be registered on project.
+ * <p>
+ * Endpoint does not parse requests; request body is drained and only remote method name, from request path
+ * <code>context/js/server/client/AppsManager/method.rmi</code>, is recorded, see {@link #getRequests()}. Response is
+ * replayed from fixture directory file named as remote method with <code>.response</code> extension: first line is
+ * HTTP status code and the rest, if any, is JSON response body. Remote method without response file is answered with
+ * not found status, as an agent not implementing it.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class AgentServer implements Closeable
+{
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final Pattern REQUEST_PATH = Pattern.compile("^.*/js/server/client/AppsManager/([a-zA-Z]+)\\.rmi$");
+  private static final String RESPONSE_EXTENSION = ".response";
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final List<String> requests = new ArrayList<String>();
+  private volatile File fixtureDir;
+
+  /**
+   * Create endpoint replaying responses from given fixture directory, bound to an ephemeral port on loopback interface,
+   * and start serving requests.
+   * 
+   * @param fixtureDir directory with recorded responses.
+   * @throws IOException if server socket binding fails.
+   */
+  public AgentServer(File fixtureDir) throws IOException
+  {
+    this.fixtureDir = fixtureDir;
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this.executor = Executors.newCachedThreadPool();
+    this.server.createContext("/", new HttpHandler()
+    {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException
+      {
+        serve(exchange);
+      }
+    });
+    this.server.setExecutor(executor);
+    this.server.start();
+  }
+
+  /**
+   * Replay responses from another fixture directory, e.g. to simulate a failing agent.
+   * 
+   * @param fixtureDir directory with recorded responses.
+   */
+  public void setFixtureDir(File fixtureDir)
+  {
+    this.fixtureDir = fixtureDir;
+  }
+
+  /**
+   * Get host name and port tasks should use to reach this endpoint, e.g. <code>127.0.0.1:45123</code>.
+   * 
+   * @return endpoint host and port.
+   */
+  public String getHost()
+  {
+    InetSocketAddress address = server.getAddress();
+    return address.getAddress().getHostAddress() + ":" + address.getPort();
+  }
+
+  /**
+   * Get remote method names of received requests, in arrival order.
+   * 
+   * @return requested remote methods.
+   */
+  public List<String> getRequests()
+  {
+    synchronized(requests) {
+      return new ArrayList<String>(requests);
+    }
+  }
+
+  @Override
+  public void close()
+  {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void serve(HttpExchange exchange) throws IOException
+  {
+    try {
+      // request body is drained so that client connection can be reused
+      InputStream requestBody = exchange.getRequestBody();
+      byte[] buffer = new byte[8192];
+      while(requestBody.read(buffer) != -1) {}
+
+      Matcher matcher = REQUEST_PATH.matcher(exchange.getRequestURI().getPath());
+      if(!"POST".equals(exchange.getRequestMethod()) || !matcher.find()) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+      synchronized(requests) {
+        requests.add(matcher.group(1));
+      }
+
+      File responseFile = new File(fixtureDir, matcher.group(1) + RESPONSE_EXTENSION);
+      if(!responseFile.exists()) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+      String response = new String(Files.readAllBytes(responseFile.toPath()), UTF8);
+      int lineEnd = response.indexOf('\n');
+      int status = Integer.parseInt((lineEnd != -1 ? response.substring(0, lineEnd) : response).trim());
+      byte[] body = (lineEnd != -1 ? response.substring(lineEnd + 1).trim() : "").getBytes(UTF8);
+      if(body.length == 0) {
+        exchange.sendResponseHeaders(status, -1);
+        return;
+      }
+      exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+      exchange.sendResponseHeaders(status, body.length);
+      OutputStream responseBody = exchange.getResponseBody();
+      responseBody.write(body);
+      responseBody.close();
+    }
+    finally {
+      exchange.close();
+    }
+  }
+}
@@ -0,0 +1,753 @@
+package js.tools.ant.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import js.tools.ant.util.Agent;
+import js.tools.ant.util.MethodNotFoundException;
+import js.tools.ant.util.ThrottledOutputStream;
+import js.tools.ant.util.TokenBucket;
+import js.tools.ant.util.Utils;
+import js.tools.ant.util.WarDelta;
+import js.tools.ant.util.ZipReader;
+import js.tools.commons.rmi.FilesOutputStream;
+import js.tools.commons.rmi.StreamHandler;
+
+/**
+ * In-process stand-in for remote applications manager agent, usable for tests and load tests without a server. Target
+ * directories are kept in memory as file digests mapped to file paths; uploaded content is digested and discarded.
+ * Deployed application archives are kept on temporary files, so that delta deploy and hot swap can be applied.
+ * Stand-in supports injected latency, added to every remote method invocation, upload bandwidth limit and random
+ * failures, reported as IO exceptions like remote failures.
+ * <p>
+ * Stand-in is registered in-process for an agent URL on a project with
+ * {@link Agent#register(org.apache.tools.ant.Project, String, Agent)}, skipping HTTP-RMI; see {@link AgentTestCase}.
+ * HTTP-RMI wire path is tested separately against recorded agent responses, see {@link AgentServer}. It is thread safe.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class AgentStandIn extends Agent
+{
+  private static final String STAGING_SUFFIX = ".staging";
+
+  /** Target directories content, file digests mapped to file paths, mapped to directory. */
+  private final Map<String, Map<String, FileDigest>> directories = new HashMap<String, Map<String, FileDigest>>();
+
+  /** Directories replaced by staging switch, kept for rollback. */
+  private final Map<String, Map<String, FileDigest>> replacedDirectories = new HashMap<String, Map<String, FileDigest>>();
+
+  /** Deployed archives mapped to application name. */
+  private final Map<String, File> deployedApps = new HashMap<String, File>();
+  private final Random random = new Random(0);
+  private final AtomicLong invocations = new AtomicLong();
+  private final AtomicLong activeInvocations = new AtomicLong();
+  private final AtomicLong maxActiveInvocations = new AtomicLong();
+  private final AtomicLong receivedFiles = new AtomicLong();
+  private final AtomicLong receivedBytes = new AtomicLong();
+  private final AtomicLong restarts = new AtomicLong();
+  private final AtomicLong configReloads = new AtomicLong();
+  private final AtomicLong scans = new AtomicLong();
+
+  private volatile long latency;
+  private volatile TokenBucket bucket;
+  private volatile double failureRate;
+
+  /** Digest algorithms supported for files comparison, null if digest negotiation is not supported. */
+  private volatile List<String> digestAlgorithms = Arrays.asList("SHA-256", Agent.FAST_DIGEST_ALGORITHM);
+  private volatile String digestAlgorithm;
+
+  /** The number of compared files mapped to digest algorithm. */
+  private final Map<String, AtomicLong> comparedFiles = new ConcurrentHashMap<String, AtomicLong>();
+
+  /** Stale files scan and removal by list support, false for agents removing stale files only on files comparison. */
+  private volatile boolean staleFilesScan = true;
+
+  public AgentStandIn(String url)
+  {
+    super(url);
+  }
+
+  /**
+   * Set latency added to every remote method invocation.
+   * 
+   * @param latency latency, in milliseconds.
+   */
+  public void setLatency(long latency)
+  {
+    this.latency = latency;
+  }
+
+  /**
+   * Set upload bandwidth limit.
+   * 
+   * @param rate bandwidth limit, in kilobytes per second, zero for unlimited bandwidth.
+   */
+  public void setBandwidth(int rate)
+  {
+    this.bucket = TokenBucket.create(rate, 0);
+  }
+
+  /**
+   * Set probability for a remote method invocation to fail.
+   * 
+   * @param failureRate failure probability, from 0 to 1.
+   */
+  public void setFailureRate(double failureRate)
+  {
+    this.failureRate = failureRate;
+  }
+
+  /**
+   * Set digest algorithms supported for files comparison. Without arguments stand-in behaves like an agent not
+   * supporting digest negotiation.
+   * 
+   * @param digestAlgorithms supported digest algorithms, in preference order.
+   */
+  public void setDigestAlgorithms(String... digestAlgorithms)
+  {
+    this.digestAlgorithms = digestAlgorithms.length > 0 ? Arrays.asList(digestAlgorithms) : null;
+  }
+
+  /**
+   * Enable or disable stale files scan and removal by list. If disabled stand-in behaves like an older agent, that
+   * removes stale files only while comparing files, see {@link #getDirtyFiles(String, String, SortedMap, boolean)}.
+   * 
+   * @param staleFilesScan stale files scan support.
+   */
+  public void setStaleFilesScan(boolean staleFilesScan)
+  {
+    this.staleFilesScan = staleFilesScan;
+  }
+
+  /**
+   * Get digest algorithm used by last files comparison.
+   * 
+   * @return digest algorithm or null if there was no files comparison.
+   */
+  public String getDigestAlgorithm()
+  {
+    return digestAlgorithm;
+  }
+
+  /**
+   * Get the number of files compared using given digest algorithm.
+   * 
+   * @param algorithm digest algorithm.
+   * @return compared files count.
+   */
+  public long getComparedFilesCount(String algorithm)
+  {
+    AtomicLong count = comparedFiles.get(algorithm);
+    return count != null ? count.get() : 0;
+  }
+
+  public long getInvocationsCount()
+  {
+    return invocations.get();
+  }
+
+  /**
+   * Get the maximum number of invocations observed running concurrently while applying latency.
+   * 
+   * @return maximum concurrent invocations.
+   */
+  public long getMaxConcurrentInvocations()
+  {
+    return maxActiveInvocations.get();
+  }
+
+  public long getReceivedFilesCount()
+  {
+    return receivedFiles.get();
+  }
+
+  public long getReceivedBytes()
+  {
+    return receivedBytes.get();
+  }
+
+  /**
+   * Get the number of web context restarts, that is, full and delta deploys. Hot swaps do not restart web context.
+   * 
+   * @return restarts count.
+   */
+  public long getRestartsCount()
+  {
+    return restarts.get();
+  }
+
+  /**
+   * Get the number of target directory scans for stale files, see {@link #getStaleFiles(String, List)}.
+   * 
+   * @return stale files scans count.
+   */
+  public long getScansCount()
+  {
+    return scans.get();
+  }
+
+  public long getConfigReloadsCount()
+  {
+    return configReloads.get();
+  }
+
+  public synchronized Set<String> getFiles(String targetDir)
+  {
+    Map<String, FileDigest> directory = directories.get(targetDir);
+    return directory != null ? new HashSet<String>(directory.keySet()) : new HashSet<String>();
+  }
+
+  public synchronized boolean hasStagingDirectory(String targetDir)
+  {
+    return directories.containsKey(targetDir + STAGING_SUFFIX);
+  }
+
+  public synchronized boolean isDeployed(String appName)
+  {
+    return deployedApps.containsKey(appName);
+  }
+
+  /**
+   * Get deployed archive for named application.
+   * 
+   * @param appName application name.
+   * @return deployed archive file or null if application is not deployed.
+   */
+  public synchronized File getArchive(String appName)
+  {
+    return deployedApps.get(appName);
+  }
+
+  @Override
+  public List<String> getDigestAlgorithms() throws Exception
+  {
+    invoke();
+    List<String> digestAlgorithms = this.digestAlgorithms;
+    if(digestAlgorithms == null) {
+      throw new MethodNotFoundException("getDigestAlgorithms");
+    }
+    return digestAlgorithms;
+  }
+
+  @Override
+  public List<String> getDirtyFiles(String targetDir, String algorithm, SortedMap<String, byte[]> sourceFiles, boolean removeStaleFiles) throws Exception
+  {
+    invoke();
+    List<String> digestAlgorithms = this.digestAlgorithms;
+    if(!algorithm.equals(Agent.DEFAULT_DIGEST_ALGORITHM) && (digestAlgorithms == null || !digestAlgorithms.contains(algorithm))) {
+      throw new IOException(String.format("Not supported digest algorithm |%s|.", algorithm));
+    }
+    digestAlgorithm = algorithm;
+    AtomicLong count = comparedFiles.get(algorithm);
+    if(count == null) {
+      comparedFiles.putIfAbsent(algorithm, new AtomicLong());
+      count = comparedFiles.get(algorithm);
+    }
+    count.addAndGet(sourceFiles.size());
+    List<String> dirtyFiles = new ArrayList<String>();
+    synchronized(this) {
+      Map<String, FileDigest> directory = directory(targetDir);
+      for(Map.Entry<String, byte[]> entry : sourceFiles.entrySet()) {
+        FileDigest fileDigest = directory.get(entry.getKey());
+        if(fileDigest == null || !hex(entry.getValue()).equals(fileDigest.get(algorithm))) {
+          dirtyFiles.add(entry.getKey());
+        }
+      }
+      if(removeStaleFiles) {
+        directory.keySet().retainAll(sourceFiles.keySet());
+      }
+    }
+    return dirtyFiles;
+  }
+
+  @Override
+  public List<String> getStaleFiles(String targetDir, List<String> sourceFiles) throws Exception
+  {
+    invoke();
+    if(!staleFilesScan) {
+      throw new MethodNotFoundException("getStaleFiles");
+    }
+    scans.incrementAndGet();
+    List<String> staleFiles = new ArrayList<String>();
+    synchronized(this) {
+      Set<String> sourceFilesSet = new HashSet<String>(sourceFiles);
+      for(String file : directory(targetDir).keySet()) {
+        if(!sourceFilesSet.contains(file)) {
+          staleFiles.add(file);
+        }
+      }
+    }
+    Collections.sort(staleFiles);
+    return staleFiles;
+  }
+
+  @Override
+  public List<String> removeFiles(String targetDir, List<String> files) throws Exception
+  {
+    invoke();
+    if(!staleFilesScan) {
+      throw new MethodNotFoundException("removeFiles");
+    }
+    List<String> removedFiles = new ArrayList<String>();
+    synchronized(this) {
+      Map<String, FileDigest> directory = directory(targetDir);
+      for(String file : files) {
+        if(directory.remove(file) != null) {
+          removedFiles.add(file);
+        }
+      }
+    }
+    return removedFiles;
+  }
+
+  @Override
+  public void synchronize(String targetDir, StreamHandler<FilesOutputStream> files) throws Exception
+  {
+    invoke();
+    Map<String, FileDigest> receivedFiles = receiveFiles(files);
+    synchronized(this) {
+      directory(targetDir).putAll(receivedFiles);
+    }
+  }
+
+  @Override
+  public String createStagingDirectory(String targetDir) throws Exception
+  {
+    invoke();
+    synchronized(this) {
+      directories.put(targetDir + STAGING_SUFFIX, new HashMap<String, FileDigest>(directory(targetDir)));
+    }
+    return targetDir + STAGING_SUFFIX;
+  }
+
+  @Override
+  public void switchStagingDirectory(String targetDir) throws Exception
+  {
+    invoke();
+    synchronized(this) {
+      Map<String, FileDigest> stagingDirectory = directories.remove(targetDir + STAGING_SUFFIX);
+      if(stagingDirectory == null) {
+        throw new IOException(String.format("Missing staging directory for |%s|.", targetDir));
+      }
+      replacedDirectories.put(targetDir, directories.put(targetDir, stagingDirectory));
+    }
+  }
+
+  @Override
+  public boolean removeStagingDirectory(String targetDir) throws Exception
+  {
+    invoke();
+    synchronized(this) {
+      return directories.remove(targetDir + STAGING_SUFFIX) != null;
+    }
+  }
+
+  @Override
+  public boolean rollbackDirectory(String targetDir) throws Exception
+  {
+    invoke();
+    synchronized(this) {
+      Map<String, FileDigest> replacedDirectory = replacedDirectories.remove(targetDir);
+      if(replacedDirectory == null) {
+        return false;
+      }
+      directories.put(targetDir, replacedDirectory);
+      return true;
+    }
+  }
+
+  @Override
+  public boolean deploy(String appName, StreamHandler<OutputStream> archive) throws Exception
+  {
+    invoke();
+    File archiveFile = receiveFile(archive);
+    replaceArchive(appName, archiveFile);
+    restarts.incrementAndGet();
+    return true;
+  }
+
+  @Override
+  public Map<String, long[]> getArchiveEntries(String appName) throws Exception
+  {
+    invoke();
+    File archiveFile = getArchive(appName);
+    if(archiveFile == null) {
+      return null;
+    }
+    ZipReader archive = new ZipReader(archiveFile);
+    try {
+      Map<String, long[]> entries = new HashMap<String, long[]>();
+      for(ZipReader.Entry entry : archive.getEntries()) {
+        entries.put(entry.getName(), new long[]
+        {
+            entry.getCrc(), entry.getSize()
+        });
+      }
+      return entries;
+    }
+    finally {
+      archive.close();
+    }
+  }
+
+  @Override
+  public boolean deployDelta(String appName, StreamHandler<OutputStream> delta) throws Exception
+  {
+    invoke();
+    if(!applyDelta(appName, delta)) {
+      return false;
+    }
+    restarts.incrementAndGet();
+    return true;
+  }
+
+  @Override
+  public boolean hotSwap(String appName, boolean reloadConfig, StreamHandler<OutputStream> delta) throws Exception
+  {
+    invoke();
+    if(!applyDelta(appName, delta)) {
+      return false;
+    }
+    if(reloadConfig) {
+      configReloads.incrementAndGet();
+    }
+    return true;
+  }
+
+  @Override
+  public boolean undeploy(String appName) throws Exception
+  {
+    invoke();
+    synchronized(this) {
+      File archiveFile = deployedApps.remove(appName);
+      if(archiveFile == null) {
+        return false;
+      }
+      archiveFile.delete();
+      return true;
+    }
+  }
+
+  @Override
+  public void publishWidgets(StreamHandler<FilesOutputStream> files) throws Exception
+  {
+    invoke();
+    receiveFiles(files);
+  }
+
+  @Override
+  public boolean uploadSamsungTvApp(String archiveName, StreamHandler<OutputStream> archive) throws Exception
+  {
+    invoke();
+    handle(archive, openStream());
+    return true;
+  }
+
+  /** Count invocation, apply latency and inject failure. */
+  private void invoke() throws IOException
+  {
+    invocations.incrementAndGet();
+    if(latency > 0) {
+      long active = activeInvocations.incrementAndGet();
+      for(long max = maxActiveInvocations.get(); active > max; max = maxActiveInvocations.get()) {
+        if(maxActiveInvocations.compareAndSet(max, active)) {
+          break;
+        }
+      }
+      try {
+        Thread.sleep(latency);
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      }
+      finally {
+        activeInvocations.decrementAndGet();
+      }
+    }
+    boolean failure;
+    synchronized(random) {
+      failure = random.nextDouble() < failureRate;
+    }
+    if(failure) {
+      throw new IOException("Injected agent failure.");
+    }
+  }
+
+  /** Rebuild deployed archive from received delta. Returns false if application is not deployed. */
+  private boolean applyDelta(String appName, StreamHandler<OutputStream> delta) throws Exception
+  {
+    File deltaFile = receiveFile(delta);
+    try {
+      synchronized(this) {
+        File deployedFile = deployedApps.get(appName);
+        if(deployedFile == null) {
+          return false;
+        }
+        File archiveFile = File.createTempFile("stand-in", ".war");
+        archiveFile.deleteOnExit();
+        ZipReader deployedArchive = new ZipReader(deployedFile);
+        ZipReader deltaArchive = new ZipReader(deltaFile);
+        try {
+          WarDelta.apply(deployedArchive, deltaArchive, new FileOutputStream(archiveFile));
+        }
+        finally {
+          deployedArchive.close();
+          deltaArchive.close();
+        }
+        replaceArchive(appName, archiveFile);
+        return true;
+      }
+    }
+    finally {
+      deltaFile.delete();
+    }
+  }
+
+  /** Invoke archive handler and store received archive on a temporary file. */
+  private File receiveFile(StreamHandler<OutputStream> handler) throws Exception
+  {
+    File file = File.createTempFile("stand-in", ".war");
+    file.deleteOnExit();
+    final OutputStream fileStream = new FileOutputStream(file);
+    final OutputStream countingStream = openStream();
+    try {
+      handle(handler, new OutputStream()
+      {
+        @Override
+        public void write(int b) throws IOException
+        {
+          countingStream.write(b);
+          fileStream.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+          countingStream.write(b, off, len);
+          fileStream.write(b, off, len);
+        }
+      });
+    }
+    catch(Exception e) {
+      fileStream.close();
+      file.delete();
+      throw e;
+    }
+    fileStream.close();
+    return file;
+  }
+
+  private synchronized void replaceArchive(String appName, File archiveFile)
+  {
+    File replacedFile = deployedApps.put(appName, archiveFile);
+    if(replacedFile != null) {
+      replacedFile.delete();
+    }
+  }
+
+  private synchronized Map<String, FileDigest> directory(String targetDir)
+  {
+    Map<String, FileDigest> directory = directories.get(targetDir);
+    if(directory == null) {
+      directory = new HashMap<String, FileDigest>();
+      directories.put(targetDir, directory);
+    }
+    return directory;
+  }
+
+  /** Open stream counting received bytes and limited by bandwidth, if configured. */
+  private OutputStream openStream()
+  {
+    OutputStream stream = new OutputStream()
+    {
+      @Override
+      public void write(int b) throws IOException
+      {
+        receivedBytes.incrementAndGet();
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+        receivedBytes.addAndGet(len);
+      }
+    };
+    TokenBucket bucket = this.bucket;
+    return bucket != null ? new ThrottledOutputStream(stream, bucket) : stream;
+  }
+
+  /**
+   * Invoke files handler and return digests of received files mapped to file paths. Every file is read through handler
+   * stream and digested while read.
+   */
+  private Map<String, FileDigest> receiveFiles(StreamHandler<FilesOutputStream> handler) throws Exception
+  {
+    final Map<String, FileDigest> files = new HashMap<String, FileDigest>();
+    FilesOutputStream stream = new FilesOutputStream(openStream())
+    {
+      @Override
+      public void addFiles(File sourceDir) throws IOException
+      {
+        addFiles(sourceDir, sourceDir);
+      }
+
+      @Override
+      public void addFiles(File sourceDir, List<String> fileNames) throws IOException
+      {
+        for(String fileName : fileNames) {
+          addFileEntry(fileName, new FileInputStream(new File(sourceDir, fileName)));
+        }
+      }
+
+      @Override
+      public void addFileEntry(String entryName, InputStream inputStream) throws IOException
+      {
+        MessageDigest[] messageDigests = new MessageDigest[FileDigest.ALGORITHMS.length];
+        try {
+          for(int i = 0; i < messageDigests.length; ++i) {
+            messageDigests[i] = MessageDigest.getInstance(FileDigest.ALGORITHMS[i]);
+            inputStream = new DigestInputStream(inputStream, messageDigests[i]);
+          }
+        }
+        catch(NoSuchAlgorithmException e) {
+          throw new IOException(e);
+        }
+        final CRC32 crc = new CRC32();
+        final long[] length = new long[1];
+        inputStream = new FilterInputStream(inputStream)
+        {
+          @Override
+          public int read() throws IOException
+          {
+            int b = in.read();
+            if(b != -1) {
+              crc.update(b);
+              ++length[0];
+            }
+            return b;
+          }
+
+          @Override
+          public int read(byte[] b, int off, int len) throws IOException
+          {
+            int count = in.read(b, off, len);
+            if(count > 0) {
+              crc.update(b, off, count);
+              length[0] += count;
+            }
+            return count;
+          }
+        };
+        super.addFileEntry(entryName, inputStream);
+        FileDigest fileDigest = new FileDigest();
+        for(MessageDigest messageDigest : messageDigests) {
+          fileDigest.put(messageDigest.getAlgorithm(), hex(messageDigest.digest()));
+        }
+        fileDigest.put(Agent.FAST_DIGEST_ALGORITHM, hex(Utils.getFastDigest(length[0], crc.getValue())));
+        files.put(entryName, fileDigest);
+        receivedFiles.incrementAndGet();
+      }
+
+      private void addFiles(File baseDir, File dir) throws IOException
+      {
+        File[] children = dir.listFiles();
+        if(children == null) {
+          return;
+        }
+        for(File child : children) {
+          if(child.isDirectory()) {
+            addFiles(baseDir, child);
+            continue;
+          }
+          String path = child.getPath().substring(baseDir.getPath().length() + 1).replace('\\', '/');
+          addFileEntry(path, new FileInputStream(child));
+        }
+      }
+    };
+    handle(handler, stream);
+    return files;
+  }
+
+  /**
+   * Invoke stream handler protected method, as HTTP-RMI client does when writing request body, then close stream.
+   */
+  private static void handle(StreamHandler<?> handler, OutputStream stream) throws Exception
+  {
+    Method method = null;
+    for(Class<?> clazz = handler.getClass(); method == null && clazz != null; clazz = clazz.getSuperclass()) {
+      for(Method declaredMethod : clazz.getDeclaredMethods()) {
+        if(declaredMethod.getName().equals("handle") && declaredMethod.getParameterTypes().length == 1 && !declaredMethod.isBridge()) {
+          method = declaredMethod;
+          break;
+        }
+      }
+    }
+    if(method == null) {
+      throw new IllegalStateException("Stream handler without handle method.");
+    }
+    method.setAccessible(true);
+    try {
+      method.invoke(handler, stream);
+    }
+    catch(InvocationTargetException e) {
+      if(e.getCause() instanceof Error) {
+        throw (Error)e.getCause();
+      }
+      throw (Exception)e.getCause();
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  private static String hex(byte[] digest)
+  {
+    StringBuilder hex = new StringBuilder();
+    for(byte b : digest) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Received file digests, hexadecimal digest mapped to digest algorithm, including fast digest.
+   * 
+   * @author Iulian Rotaru
+   * @since 1.0
+   */
+  private static class FileDigest extends HashMap<String, String>
+  {
+    private static final long serialVersionUID = 1L;
+
+    /** Digest algorithms computed for received files. */
+    static final String[] ALGORITHMS = new String[]
+    {
+        "SHA-256", Agent.DEFAULT_DIGEST_ALGORITHM
+    };
+  }
+}
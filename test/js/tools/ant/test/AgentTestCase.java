@@ -0,0 +1,49 @@
+package js.tools.ant.test;
+
+import java.io.File;
+
+import js.tools.ant.util.Agent;
+import js.tools.ant.util.Utils;
+import junit.framework.TestCase;
+
+import org.apache.tools.ant.Project;
+
+/**
+ * Base for tests of tasks using remote agent. Creates a project with current directory as base directory and registers
+ * an {@link AgentStandIn} on it for <code>localhost</code> agent URL, so that tasks with host set to
+ * <code>localhost</code> use stand-in in-process.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public abstract class AgentTestCase extends TestCase
+{
+  /** Agent URL for tasks with host set to <code>localhost</code> and default agent context. */
+  protected static final String AGENT_URL = Utils.URL(false, "localhost", "server");
+
+  protected Project project;
+  protected AgentStandIn agent;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    project = new Project();
+    project.setBaseDir(new File("."));
+    register(new AgentStandIn(AGENT_URL));
+  }
+
+  /**
+   * Register agent stand-in on project, replacing the one created by {@link #setUp()}, e.g. with a stand-in overriding
+   * some remote methods.
+   * 
+   * @param agent agent stand-in.
+   * @return registered stand-in.
+   */
+  protected <T extends AgentStandIn> T register(T agent)
+  {
+    Agent.register(project, AGENT_URL, agent);
+    this.agent = agent;
+    return agent;
+  }
+}
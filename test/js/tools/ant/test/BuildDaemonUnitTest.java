@@ -0,0 +1,154 @@
+package js.tools.ant.test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import js.tools.ant.util.BuildDaemon;
+import junit.framework.TestCase;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+public class BuildDaemonUnitTest extends TestCase
+{
+  private File stateFile;
+  private BuildDaemon daemon;
+  private Thread thread;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    stateFile = File.createTempFile("js-build-daemon", ".state");
+    System.setProperty("js.build.daemon.state", stateFile.getAbsolutePath());
+    daemon = new BuildDaemon(0, stateFile);
+    thread = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        daemon.run();
+      }
+    });
+    thread.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    BuildDaemon.stop();
+    thread.join(5000);
+    System.clearProperty("js.build.daemon.state");
+    super.tearDown();
+  }
+
+  public void testForward()
+  {
+    Project project = new Project();
+    project.setBaseDir(new File("fixture/build-config"));
+    Map<String, String> attributes = new HashMap<String, String>();
+    attributes.put("variant", "local");
+
+    MessagesTask logger = new MessagesTask();
+    assertTrue(BuildDaemon.forward(project, "BuildConfig", attributes, Project.MSG_DEBUG, logger));
+    assertTrue(logger.messages.toString().contains("Create application descriptor."));
+  }
+
+  public void testForwardFailure()
+  {
+    Project project = new Project();
+    project.setBaseDir(new File("fixture/build-config"));
+    Map<String, String> attributes = new HashMap<String, String>();
+    attributes.put("variant", "missing");
+
+    try {
+      BuildDaemon.forward(project, "BuildConfig", attributes, Project.MSG_INFO, new MessagesTask());
+      fail("Task failure should be reported as build exception.");
+    }
+    catch(BuildException e) {
+      assertTrue(e.getMessage().contains("web.xml"));
+    }
+  }
+
+  public void testFailureStackTrace()
+  {
+    Project project = new Project();
+    project.setBaseDir(new File("fixture/build-config"));
+    Map<String, String> attributes = new HashMap<String, String>();
+    attributes.put("variant", "missing");
+
+    MessagesTask logger = new MessagesTask();
+    try {
+      BuildDaemon.forward(project, "BuildConfig", attributes, Project.MSG_DEBUG, logger);
+      fail("Task failure should be reported as build exception.");
+    }
+    catch(BuildException e) {
+      // stack trace is sent at debug level
+      assertTrue(logger.messages.toString().contains("at js.tools.ant.task.BuildConfig"));
+    }
+  }
+
+  public void testBuildMismatch() throws Exception
+  {
+    BuildDaemon.stop();
+    thread.join(5000);
+    daemon = new BuildDaemon(0, stateFile, "other-build");
+    thread = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        daemon.run();
+      }
+    });
+    thread.start();
+
+    Project project = new Project();
+    project.setBaseDir(new File("fixture/build-config"));
+    MessagesTask logger = new MessagesTask();
+    assertFalse(BuildDaemon.forward(project, "BuildConfig", new HashMap<String, String>(), Project.MSG_INFO, logger));
+    assertTrue(logger.messages.toString().contains("other-build"));
+  }
+
+  public void testOversizedToken() throws Exception
+  {
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+    try {
+      // unauthenticated request with large frame length is dropped without reading frame
+      DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+      output.writeInt(0x1000000);
+      output.flush();
+      socket.setSoTimeout(5000);
+      assertEquals(-1, socket.getInputStream().read());
+    }
+    finally {
+      socket.close();
+    }
+  }
+
+  public void testStop() throws Exception
+  {
+    assertTrue(BuildDaemon.stop());
+    thread.join(5000);
+    assertFalse(stateFile.exists());
+    assertFalse(BuildDaemon.forward(new Project(), "BuildConfig", new HashMap<String, String>(), Project.MSG_INFO, new MessagesTask()));
+  }
+
+  private static class MessagesTask extends Task
+  {
+    final List<String> messages = new ArrayList<String>();
+
+    @Override
+    public void log(String message, int level)
+    {
+      messages.add(message);
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package js.tools.ant.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import js.tools.ant.task.BuildPreviewWar;
+import js.tools.ant.util.ZipReader;
+import js.tools.commons.util.Files;
+import junit.framework.TestCase;
+
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+
+public class BuildPreviewWarUnitTest extends TestCase
+{
+  private File siteDir = new File(System.getProperty("java.io.tmpdir"), "preview-site");
+  private File archiveFile = new File(System.getProperty("java.io.tmpdir"), "preview.war");
+  private Project project;
+  private ByteArrayOutputStream output;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    copy(new File("fixture/build-samsung-tv/context"), siteDir);
+    write(new File(siteDir, "media/logo.png"), new byte[]
+    {
+        (byte)0x89, 'P', 'N', 'G', 1, 2, 3, 4
+    });
+
+    output = new ByteArrayOutputStream();
+    DefaultLogger logger = new DefaultLogger();
+    logger.setMessageOutputLevel(Project.MSG_INFO);
+    logger.setOutputPrintStream(new PrintStream(output));
+    logger.setErrorPrintStream(new PrintStream(output));
+    project = new Project();
+    project.setBaseDir(new File("."));
+    project.addBuildListener(logger);
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    delete(siteDir);
+    archiveFile.delete();
+  }
+
+  public void testExecute() throws IOException
+  {
+    task().execute();
+
+    ZipFile archive = new ZipFile(archiveFile);
+    try {
+      assertNotNull(archive.getEntry("META-INF/MANIFEST.MF"));
+      assertEquals(read(new File("fixture/build-config/build/web.xml")), read(archive, "WEB-INF/web.xml"));
+      assertEquals(read(new File("fixture/build-config/build/app.xml")), read(archive, "WEB-INF/app.xml"));
+      assertEquals(read(new File(siteDir, "index.htm")), read(archive, "index.htm"));
+      assertEquals(read(new File(siteDir, "styles/index.css")), read(archive, "styles/index.css"));
+      assertEquals(ZipEntry.DEFLATED, archive.getEntry("index.htm").getMethod());
+      assertEquals(ZipEntry.STORED, archive.getEntry("media/logo.png").getMethod());
+    }
+    finally {
+      archive.close();
+    }
+
+    // streamed entries should be readable sequentially too, including deflated entries with data descriptor
+    ZipInputStream stream = new ZipInputStream(new FileInputStream(archiveFile));
+    try {
+      int entriesCount = 0;
+      while(stream.getNextEntry() != null) {
+        ++entriesCount;
+      }
+      assertEquals(9, entriesCount);
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  public void testReuseEntries() throws IOException
+  {
+    task().execute();
+    assertTrue(output.toString().contains("Reuse |0| of |8| file entries."));
+    byte[] indexBytes = compressedBytes("index.htm");
+
+    write(new File(siteDir, "styles/index.css"), "body { color: red; }".getBytes("UTF-8"));
+    task().execute();
+    assertTrue(output.toString().contains("Reuse |7| of |8| file entries."));
+    assertTrue(Arrays.equals(indexBytes, compressedBytes("index.htm")));
+
+    ZipFile archive = new ZipFile(archiveFile);
+    try {
+      assertEquals("body { color: red; }", read(archive, "styles/index.css"));
+      assertEquals(read(new File(siteDir, "index.htm")), read(archive, "index.htm"));
+      assertEquals(ZipEntry.STORED, archive.getEntry("media/logo.png").getMethod());
+    }
+    finally {
+      archive.close();
+    }
+  }
+
+  public void testPreviewDescriptor() throws IOException
+  {
+    BuildPreviewWar task = task();
+    task.setBuild("fixture/build-samsung-tv");
+    task.execute();
+
+    ZipFile archive = new ZipFile(archiveFile);
+    try {
+      String webXml = read(archive, "WEB-INF/web.xml");
+      assertTrue(webXml.contains("<display-name>preview</display-name>"));
+      assertTrue(webXml.contains("<param-value>" + project.getBaseDir().getAbsolutePath() + "</param-value>"));
+      assertNull(archive.getEntry("WEB-INF/app.xml"));
+    }
+    finally {
+      archive.close();
+    }
+  }
+
+  public void testStoredExtensions() throws IOException
+  {
+    BuildPreviewWar task = task();
+    task.setStore("css, .js");
+    task.execute();
+
+    ZipFile archive = new ZipFile(archiveFile);
+    try {
+      assertEquals(ZipEntry.STORED, archive.getEntry("styles/index.css").getMethod());
+      assertEquals(ZipEntry.DEFLATED, archive.getEntry("media/logo.png").getMethod());
+      assertEquals(read(new File(siteDir, "styles/index.css")), read(archive, "styles/index.css"));
+    }
+    finally {
+      archive.close();
+    }
+  }
+
+  private BuildPreviewWar task()
+  {
+    BuildPreviewWar task = new BuildPreviewWar();
+    task.setProject(project);
+    task.setSite(siteDir.getAbsolutePath());
+    task.setBuild("fixture/build-config/build");
+    task.setContext("preview");
+    task.setFile(archiveFile.getAbsolutePath());
+    return task;
+  }
+
+  private byte[] compressedBytes(String name) throws IOException
+  {
+    ZipReader archive = new ZipReader(archiveFile);
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      archive.copyRaw(archive.getEntry(name), bytes);
+      return bytes.toByteArray();
+    }
+    finally {
+      archive.close();
+    }
+  }
+
+  private static String read(ZipFile archive, String name) throws IOException
+  {
+    InputStream stream = archive.getInputStream(archive.getEntry(name));
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      Files.copy(stream, bytes);
+      return bytes.toString("UTF-8");
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  private static String read(File file) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Files.copy(file, bytes);
+    return bytes.toString("UTF-8");
+  }
+
+  private static void write(File file, byte[] bytes) throws IOException
+  {
+    file.getParentFile().mkdirs();
+    OutputStream stream = new FileOutputStream(file);
+    try {
+      stream.write(bytes);
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  private static void copy(File source, File target) throws IOException
+  {
+    if(source.isDirectory()) {
+      for(File child : source.listFiles()) {
+        copy(child, new File(target, child.getName()));
+      }
+      return;
+    }
+    target.getParentFile().mkdirs();
+    Files.copy(source, target);
+  }
+
+  private static void delete(File file)
+  {
+    File[] files = file.listFiles();
+    if(files != null) {
+      for(File child : files) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -15,14 +15,13 @@ public class BuildSamsungTvUnitTest extends TestCase
   public void testAddFileToArchive() throws Throwable
   {
     BuildSamsungTvApp task = new BuildSamsungTvApp();
-    Classes.setFieldValue(task, "log", new Log(null, BuildSamsungTvApp.class));
     task.setContext("fixture/build-samsung-tv/context");
     File contextDir = new File((String)Classes.getFieldValue(task, "contextPath"));
     File archiveFile = new File("fixture/build-samsung-tv/archive.zip");
     assertFalse(archiveFile.exists());
 
     ZipOutputStream archive = new ZipOutputStream(new FileOutputStream(archiveFile), Charset.forName("UTF-8"));
-    Classes.invoke(task, "addFileToArchive", contextDir, contextDir, archive);
+    Classes.invoke(task, "addFileToArchive", contextDir, contextDir, archive, archiveFile, new Log(null, BuildSamsungTvApp.class));
     archive.close();
 
     assertTrue(archiveFile.exists());
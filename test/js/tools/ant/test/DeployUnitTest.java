@@ -0,0 +1,400 @@
+package js.tools.ant.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import js.tools.ant.task.Deploy;
+import js.tools.ant.util.Metrics;
+import js.tools.ant.util.WarDelta;
+import js.tools.ant.util.ZipReader;
+import js.tools.commons.rmi.StreamHandler;
+import js.tools.commons.util.Files;
+
+public class DeployUnitTest extends AgentTestCase
+{
+  private static final String APP_NAME = "delta";
+
+  private File archiveFile = new File(System.getProperty("java.io.tmpdir"), APP_NAME + ".war");
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    // archive file is resolved against project base directory
+    project.setBaseDir(archiveFile.getParentFile());
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    archiveFile.delete();
+  }
+
+  public void testDeltaDeploy() throws Exception
+  {
+    byte[] library = random(200000);
+
+    Map<String, byte[]> entries = new HashMap<String, byte[]>();
+    entries.put("WEB-INF/web.xml", "<web-app />".getBytes("UTF-8"));
+    entries.put("WEB-INF/lib/library.jar", library);
+    entries.put("index.htm", "<h1>Hello</h1>".getBytes("UTF-8"));
+    entries.put("about.htm", "<h1>About</h1>".getBytes("UTF-8"));
+    createArchive(entries);
+    deploy();
+    assertEquals(archiveFile.length(), agent.getReceivedBytes());
+    assertEntries(entries, agent.getArchive(APP_NAME));
+
+    entries.put("index.htm", "<h1>Hello World</h1>".getBytes("UTF-8"));
+    entries.remove("about.htm");
+    entries.put("contact.htm", "<h1>Contact</h1>".getBytes("UTF-8"));
+    createArchive(entries);
+    long receivedBytes = agent.getReceivedBytes();
+    deploy();
+    // delta does not include unchanged library
+    assertTrue(agent.getReceivedBytes() - receivedBytes < 1000);
+    assertEntries(entries, agent.getArchive(APP_NAME));
+  }
+
+  public void testUpToDate() throws Exception
+  {
+    Map<String, byte[]> entries = new HashMap<String, byte[]>();
+    entries.put("index.htm", "<h1>Hello</h1>".getBytes("UTF-8"));
+    createArchive(entries);
+    deploy();
+
+    long invocations = agent.getInvocationsCount();
+    long receivedBytes = agent.getReceivedBytes();
+    deploy();
+    assertEquals(receivedBytes, agent.getReceivedBytes());
+    // only deployed archive entries are requested
+    assertEquals(invocations + 1, agent.getInvocationsCount());
+  }
+
+  public void testNotSupportedDelta() throws Exception
+  {
+    register(new AgentStandIn(AGENT_URL)
+    {
+      @Override
+      public Map<String, long[]> getArchiveEntries(String appName) throws Exception
+      {
+        throw new IOException("Method not found.");
+      }
+    });
+    Map<String, byte[]> entries = new HashMap<String, byte[]>();
+    entries.put("index.htm", "<h1>Hello</h1>".getBytes("UTF-8"));
+    createArchive(entries);
+    deploy();
+    deploy();
+    assertEquals(2 * archiveFile.length(), agent.getReceivedBytes());
+    assertEntries(entries, agent.getArchive(APP_NAME));
+  }
+
+  public void testRejectedDelta() throws Exception
+  {
+    register(new AgentStandIn(AGENT_URL)
+    {
+      @Override
+      public boolean deployDelta(String appName, StreamHandler<OutputStream> delta) throws Exception
+      {
+        return false;
+      }
+    });
+    Map<String, byte[]> entries = new HashMap<String, byte[]>();
+    entries.put("index.htm", "<h1>Hello</h1>".getBytes("UTF-8"));
+    createArchive(entries);
+    deploy();
+
+    entries.put("index.htm", "<h1>Hello World</h1>".getBytes("UTF-8"));
+    createArchive(entries);
+    deploy();
+    assertEntries(entries, agent.getArchive(APP_NAME));
+  }
+
+  public void testFullDeploy() throws Exception
+  {
+    project.setBaseDir(new File("."));
+    Deploy deploy = new Deploy();
+    deploy.setProject(project);
+    deploy.setHost("localhost");
+    deploy.setFile("fixture/build-preview-war/hello-world.war");
+    deploy.execute();
+    deploy.execute();
+
+    long archiveLength = new File("fixture/build-preview-war/hello-world.war").length();
+    assertEquals(2 * archiveLength, agent.getReceivedBytes());
+    assertTrue(agent.isDeployed("hello-world"));
+  }
+
+  public void testWirePath() throws Exception
+  {
+    AgentServer server = new AgentServer(new File("fixture/agent-server/deploy"));
+    try {
+      // recorded deployed entries have changed index.htm
+      Map<String, byte[]> entries = new HashMap<String, byte[]>();
+      entries.put("WEB-INF/web.xml", "<web-app />".getBytes("UTF-8"));
+      entries.put("index.htm", "<h1>Hello World</h1>".getBytes("UTF-8"));
+      createArchive(entries);
+      Deploy deploy = new Deploy();
+      deploy.setProject(project);
+      deploy.setHost(server.getHost());
+      deploy.setFile(archiveFile.getName());
+      deploy.setDelta(true);
+      deploy.execute();
+      assertEquals(Arrays.asList("getArchiveEntries", "deployDelta"), server.getRequests());
+    }
+    finally {
+      server.close();
+    }
+  }
+
+  public void testLegacyWirePath() throws Exception
+  {
+    // agent without delta deploy answers not found status and full archive is deployed
+    AgentServer server = new AgentServer(new File("fixture/agent-server/deploy-legacy"));
+    try {
+      Map<String, byte[]> entries = new HashMap<String, byte[]>();
+      entries.put("index.htm", "<h1>Hello</h1>".getBytes("UTF-8"));
+      createArchive(entries);
+      Deploy deploy = new Deploy();
+      deploy.setProject(project);
+      deploy.setHost(server.getHost());
+      deploy.setFile(archiveFile.getName());
+      deploy.setDelta(true);
+      deploy.execute();
+      assertEquals(Arrays.asList("getArchiveEntries", "deploy"), server.getRequests());
+    }
+    finally {
+      server.close();
+    }
+  }
+
+  public void testHotReloadStatic() throws Exception
+  {
+    Map<String, byte[]> entries = webArchive();
+    createArchive(entries);
+    deploy(true);
+    assertEquals(1, agent.getRestartsCount());
+
+    entries.put("index.htm", "<h1>Hello World</h1>".getBytes("UTF-8"));
+    entries.remove("about.htm");
+    createArchive(entries);
+    deploy(true);
+    assertEquals(1, agent.getRestartsCount());
+    assertEquals(0, agent.getConfigReloadsCount());
+    assertEntries(entries, agent.getArchive(APP_NAME));
+  }
+
+  public void testHotReloadConfig() throws Exception
+  {
+    Map<String, byte[]> entries = webArchive();
+    createArchive(entries);
+    deploy(true);
+
+    entries.put("index.htm", "<h1>Hello World</h1>".getBytes("UTF-8"));
+    entries.put("WEB-INF/app.xml", "<app><debug>true</debug></app>".getBytes("UTF-8"));
+    createArchive(entries);
+    deploy(true);
+    assertEquals(1, agent.getRestartsCount());
+    assertEquals(1, agent.getConfigReloadsCount());
+    assertEntries(entries, agent.getArchive(APP_NAME));
+  }
+
+  public void testHotReloadClasses() throws Exception
+  {
+    Map<String, byte[]> entries = webArchive();
+    createArchive(entries);
+    deploy(true);
+
+    entries.put("index.htm", "<h1>Hello World</h1>".getBytes("UTF-8"));
+    entries.put("WEB-INF/classes/Servlet.class", new byte[]
+    {
+        (byte)0xCA, (byte)0xFE, (byte)0xBA, (byte)0xBE, 1
+    });
+    createArchive(entries);
+    deploy(true);
+    assertEquals(2, agent.getRestartsCount());
+    assertEquals(0, agent.getConfigReloadsCount());
+    assertEntries(entries, agent.getArchive(APP_NAME));
+  }
+
+  public void testHotReloadNotSupported() throws Exception
+  {
+    register(new AgentStandIn(AGENT_URL)
+    {
+      @Override
+      public boolean hotSwap(String appName, boolean reloadConfig, StreamHandler<OutputStream> delta) throws Exception
+      {
+        throw new IOException("Method not found.");
+      }
+    });
+    Map<String, byte[]> entries = webArchive();
+    createArchive(entries);
+    deploy(true);
+
+    entries.put("index.htm", "<h1>Hello World</h1>".getBytes("UTF-8"));
+    createArchive(entries);
+    deploy(true);
+    assertEquals(2, agent.getRestartsCount());
+    assertEntries(entries, agent.getArchive(APP_NAME));
+  }
+
+  public void testHotSwapFailureUploadedBytes() throws Exception
+  {
+    register(new AgentStandIn(AGENT_URL)
+    {
+      @Override
+      public boolean hotSwap(String appName, boolean reloadConfig, StreamHandler<OutputStream> delta) throws Exception
+      {
+        // consume delta stream, as agent does before failing, without changing deployed application
+        super.hotSwap("missing-app", reloadConfig, delta);
+        throw new IOException("Hot swap failure.");
+      }
+    });
+    project.setProperty(Metrics.FILE_ANT_PROPERTY, new File(System.getProperty("java.io.tmpdir"), "deploy-metrics.json").getPath());
+    Map<String, byte[]> entries = webArchive();
+    createArchive(entries);
+    deploy(true);
+    long archiveBytes = agent.getReceivedBytes();
+
+    entries.put("index.htm", "<h1>Hello World</h1>".getBytes("UTF-8"));
+    createArchive(entries);
+    deploy(true);
+    assertEquals(2, agent.getRestartsCount());
+    assertEntries(entries, agent.getArchive(APP_NAME));
+
+    // delta is sent twice, on failed hot swap and on deploy, but counted once
+    long deltaBytes = (agent.getReceivedBytes() - archiveBytes) / 2;
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    Metrics.getInstance(project).writeJSON(stream);
+    assertTrue(stream.toString("UTF-8").contains("\"deploy.uploaded.bytes\":" + (archiveBytes + deltaBytes) + "}"));
+  }
+
+  public void testEntrySizeChange() throws Exception
+  {
+    Map<String, byte[]> entries = new HashMap<String, byte[]>();
+    entries.put("index.htm", "<h1>Hello</h1>".getBytes("UTF-8"));
+    entries.put("about.htm", "<h1>About</h1>".getBytes("UTF-8"));
+    createArchive(entries);
+
+    ZipReader archive = new ZipReader(archiveFile);
+    try {
+      Map<String, long[]> deployedEntries = new HashMap<String, long[]>();
+      for(ZipReader.Entry entry : archive.getEntries()) {
+        deployedEntries.put(entry.getName(), new long[]
+        {
+            entry.getCrc(), entry.getSize()
+        });
+      }
+      assertTrue(new WarDelta(archive, deployedEntries).isEmpty());
+
+      // deployed entry with the same CRC but different size is changed
+      deployedEntries.get("index.htm")[1] += 1;
+      WarDelta delta = new WarDelta(archive, deployedEntries);
+      assertEquals(1, delta.getChangedEntries().size());
+      assertEquals("index.htm", delta.getChangedEntries().get(0).getName());
+    }
+    finally {
+      archive.close();
+    }
+  }
+
+  public void testChangeClassification()
+  {
+    assertEquals(WarDelta.Change.STATIC, WarDelta.Change.forEntry("index.htm"));
+    assertEquals(WarDelta.Change.STATIC, WarDelta.Change.forEntry("scripts/js/lang/Object.js"));
+    assertEquals(WarDelta.Change.CONFIG, WarDelta.Change.forEntry("WEB-INF/app.xml"));
+    assertEquals(WarDelta.Change.CLASSES, WarDelta.Change.forEntry("WEB-INF/web.xml"));
+    assertEquals(WarDelta.Change.CLASSES, WarDelta.Change.forEntry("WEB-INF/classes/Servlet.class"));
+    assertEquals(WarDelta.Change.CLASSES, WarDelta.Change.forEntry("WEB-INF/lib/library.jar"));
+    assertEquals(WarDelta.Change.CLASSES, WarDelta.Change.forEntry("META-INF/context.xml"));
+  }
+
+  private static Map<String, byte[]> webArchive() throws IOException
+  {
+    Map<String, byte[]> entries = new HashMap<String, byte[]>();
+    entries.put("WEB-INF/web.xml", "<web-app />".getBytes("UTF-8"));
+    entries.put("WEB-INF/app.xml", "<app />".getBytes("UTF-8"));
+    entries.put("index.htm", "<h1>Hello</h1>".getBytes("UTF-8"));
+    entries.put("about.htm", "<h1>About</h1>".getBytes("UTF-8"));
+    return entries;
+  }
+
+  private void deploy()
+  {
+    deploy(false);
+  }
+
+  private void deploy(boolean hotReload)
+  {
+    Deploy deploy = new Deploy();
+    deploy.setProject(project);
+    deploy.setHost("localhost");
+    deploy.setFile(archiveFile.getName());
+    deploy.setDelta(true);
+    deploy.setHotReload(hotReload);
+    deploy.execute();
+  }
+
+  private void createArchive(Map<String, byte[]> entries) throws IOException
+  {
+    ZipOutputStream archive = new ZipOutputStream(new FileOutputStream(archiveFile));
+    try {
+      for(Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        archive.putNextEntry(new ZipEntry(entry.getKey()));
+        archive.write(entry.getValue());
+      }
+    }
+    finally {
+      archive.close();
+    }
+  }
+
+  private static void assertEntries(Map<String, byte[]> expected, File archiveFile) throws IOException
+  {
+    Map<String, byte[]> entries = entries(archiveFile);
+    assertEquals(expected.keySet(), entries.keySet());
+    for(String name : expected.keySet()) {
+      assertTrue(name, Arrays.equals(expected.get(name), entries.get(name)));
+    }
+  }
+
+  private static Map<String, byte[]> entries(File file) throws IOException
+  {
+    Map<String, byte[]> entries = new HashMap<String, byte[]>();
+    ZipFile archive = new ZipFile(file);
+    try {
+      Enumeration<? extends ZipEntry> enumeration = archive.entries();
+      while(enumeration.hasMoreElements()) {
+        ZipEntry entry = enumeration.nextElement();
+        InputStream stream = archive.getInputStream(entry);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Files.copy(stream, bytes);
+        stream.close();
+        entries.put(entry.getName(), bytes.toByteArray());
+      }
+    }
+    finally {
+      archive.close();
+    }
+    return entries;
+  }
+
+  private static byte[] random(int length)
+  {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+}
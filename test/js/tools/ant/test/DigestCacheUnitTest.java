@@ -0,0 +1,144 @@
+package js.tools.ant.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import js.tools.ant.util.DigestCache;
+import js.tools.ant.util.Utils;
+import junit.framework.TestCase;
+
+import org.apache.tools.ant.Project;
+
+public class DigestCacheUnitTest extends TestCase
+{
+  private static final String ALGORITHM = "SHA-256";
+
+  private File cacheFile = new File(System.getProperty("java.io.tmpdir"), "digest.cache");
+  private File file = new File(System.getProperty("java.io.tmpdir"), "digest.txt");
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    cacheFile.delete();
+    file.delete();
+  }
+
+  public void testGetDigest() throws Exception
+  {
+    write(file, "content-1");
+    long lastModified = file.lastModified();
+    // let file time stamps age beyond granularity so that computed digest is trusted
+    Thread.sleep(DigestCache.TIME_GRANULARITY + 100);
+
+    DigestCache cache = DigestCache.getInstance(null, cacheFile);
+    byte[] digest = cache.getDigest(file, ALGORITHM);
+    assertTrue(Arrays.equals(Utils.getFileDigest(file, ALGORITHM), digest));
+    assertTrue(Arrays.equals(digest, cache.getDigest(file, ALGORITHM)));
+    assertEquals(1, cache.getHits());
+
+    // other algorithm: digest is computed again
+    assertFalse(Arrays.equals(digest, cache.getDigest(file, "MD5")));
+
+    // same length and restored modification time: change time invalidates cached digest
+    write(file, "content-2");
+    file.setLastModified(lastModified);
+    byte[] changedDigest = cache.getDigest(file, ALGORITHM);
+    assertFalse(Arrays.equals(digest, changedDigest));
+    assertTrue(Arrays.equals(Utils.getFileDigest(file, ALGORITHM), changedDigest));
+
+    // file younger than time granularity: cached digest is not trusted
+    assertTrue(Arrays.equals(changedDigest, cache.getDigest(file, ALGORITHM)));
+    assertEquals(1, cache.getHits());
+
+    cache.save();
+    assertTrue(cacheFile.exists());
+    assertTrue(cacheFile.length() > 0);
+  }
+
+  public void testKeyedDigest() throws Exception
+  {
+    DigestCache cache = DigestCache.getInstance(null, cacheFile);
+    File archive = new File("/tmp/site.war");
+    assertNull(cache.getDigest(archive, "index.htm", 100, 0x1234, ALGORITHM));
+
+    byte[] digest = new byte[] { 1, 2, 3, 4 };
+    cache.putDigest(archive, "index.htm", 100, 0x1234, ALGORITHM, digest);
+    assertTrue(Arrays.equals(digest, cache.getDigest(archive, "index.htm", 100, 0x1234, ALGORITHM)));
+    // changed CRC or algorithm invalidates cached digest
+    assertNull(cache.getDigest(archive, "index.htm", 100, 0x4321, ALGORITHM));
+    assertNull(cache.getDigest(archive, "index.htm", 100, 0x1234, "MD5"));
+  }
+
+  public void testPrune() throws Exception
+  {
+    write(file, "archive");
+    File missingArchive = new File("/missing/site.war");
+    byte[] digest = new byte[] { 1, 2, 3, 4 };
+
+    DigestCache cache = DigestCache.getInstance(null, cacheFile);
+    cache.putDigest(missingArchive, "index.htm", 100, 1, ALGORITHM, digest);
+    cache.putDigest(file, "index.htm", 100, 1, ALGORITHM, digest);
+    cache.putDigest(file, "removed.htm", 100, 2, ALGORITHM, digest);
+    cache.save();
+
+    // entries of missing archive are pruned; archive entries not used by a run on the same archive are pruned
+    cache = DigestCache.getInstance(null, cacheFile);
+    assertNotNull(cache.getDigest(file, "index.htm", 100, 1, ALGORITHM));
+    cache.save();
+
+    cache = DigestCache.getInstance(null, cacheFile);
+    assertNull(cache.getDigest(missingArchive, "index.htm", 100, 1, ALGORITHM));
+    assertNull(cache.getDigest(file, "removed.htm", 100, 2, ALGORITHM));
+    assertNotNull(cache.getDigest(file, "index.htm", 100, 1, ALGORITHM));
+
+    // removed file is pruned
+    cache.getDigest(file, ALGORITHM);
+    cache.save();
+    file.delete();
+    cache = DigestCache.getInstance(null, cacheFile);
+    cache.save();
+    cache = DigestCache.getInstance(null, cacheFile);
+    assertNull(cache.getDigest(file, "index.htm", 100, 1, ALGORITHM));
+  }
+
+  public void testSeparatorInPath() throws Exception
+  {
+    // file path containing '!' is not mistaken for an archive entry and pruned
+    File file = new File(System.getProperty("java.io.tmpdir"), "digest!1.txt");
+    try {
+      write(file, "content");
+      DigestCache cache = DigestCache.getInstance(null, cacheFile);
+      cache.getDigest(file, ALGORITHM);
+      cache.save();
+
+      DigestCache.getInstance(null, cacheFile).save();
+      assertTrue(read(cacheFile).contains(file.getAbsolutePath() + "\t"));
+    }
+    finally {
+      file.delete();
+    }
+  }
+
+  public void testGetInstance() throws Exception
+  {
+    Project project = new Project();
+    DigestCache cache = DigestCache.getInstance(project, cacheFile);
+    assertSame(cache, DigestCache.getInstance(project, cacheFile));
+    // every build loads cache file again
+    assertFalse(cache == DigestCache.getInstance(new Project(), cacheFile));
+  }
+
+  private static String read(File file) throws IOException
+  {
+    return new String(java.nio.file.Files.readAllBytes(file.toPath()), "UTF-8");
+  }
+
+  private static void write(File file, String content) throws IOException
+  {
+    FileWriter writer = new FileWriter(file);
+    writer.write(content);
+    writer.close();
+  }
+}
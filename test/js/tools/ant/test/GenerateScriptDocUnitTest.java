@@ -1,9 +1,16 @@
 package js.tools.ant.test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+
 import js.tools.ant.task.GenerateScriptDoc;
 import js.tools.commons.util.Classes;
 import junit.framework.TestCase;
 
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+
 public class GenerateScriptDocUnitTest extends TestCase
 {
   public void testSetExcludes() throws Exception
@@ -85,4 +92,61 @@ public class GenerateScriptDocUnitTest extends TestCase
     }
     fail("Executing GenerateScriptDoc task without <destdir> attribute should rise BuildException.");
   }
+
+  public void testLinkCacheName() throws Throwable
+  {
+    GenerateScriptDoc task = new GenerateScriptDoc();
+    String name = Classes.invoke(task, "getLinkCacheName", "http://api.js-lib.com/client/");
+    assertTrue(name.startsWith("http_api.js-lib.com_client_-"));
+    assertEquals(name, Classes.invoke(task, "getLinkCacheName", "http://api.js-lib.com/client/"));
+
+    // URLs with the same file system safe characters get distinct names
+    assertFalse(Classes.invoke(task, "getLinkCacheName", "http://api.js-lib.com/a_b/").equals(Classes.invoke(task, "getLinkCacheName", "http://api.js-lib.com/a/b/")));
+  }
+
+  public void testLinkCache() throws Throwable
+  {
+    File cacheDir = new File(System.getProperty("java.io.tmpdir"), "script-doc-link-cache");
+    File destDir = new File(System.getProperty("java.io.tmpdir"), "script-doc-api");
+    String href = new File("fixture/generate-script-doc/window-api").toURI().toString();
+
+    GenerateScriptDoc task = new GenerateScriptDoc();
+    task.setSourcePath("src");
+    task.setDestDir(destDir.getPath());
+    task.setLinkCache(cacheDir.getPath());
+    task.setRefreshLinks(true);
+    task.createLink().setHref(href);
+
+    String[] args = Classes.invoke(task, "args");
+    assertEquals("-linkoffline", args[args.length - 3]);
+    assertEquals(href, args[args.length - 2]);
+    File packageList = new File(args[args.length - 1], "package-list");
+    assertTrue(packageList.exists());
+    assertEquals(new File("fixture/generate-script-doc/window-api/package-list").length(), packageList.length());
+
+    // offline mode uses cached package list
+    task.setRefreshLinks(false);
+    task.setOffline(true);
+    args = Classes.invoke(task, "args");
+    assertEquals("-linkoffline", args[args.length - 3]);
+
+    // offline mode ignores linked API not present into cache, with a warning
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    DefaultLogger logger = new DefaultLogger();
+    logger.setMessageOutputLevel(Project.MSG_WARN);
+    logger.setOutputPrintStream(new PrintStream(output));
+    logger.setErrorPrintStream(new PrintStream(output));
+    Project project = new Project();
+    project.addBuildListener(logger);
+    task.setProject(project);
+    task.createLink().setHref("http://api.js-lib.com/not-cached/");
+    String[] offlineArgs = Classes.invoke(task, "args");
+    assertEquals(args.length, offlineArgs.length);
+    assertTrue(output.toString().contains("http://api.js-lib.com/not-cached/"));
+
+    packageList.delete();
+    packageList.getParentFile().delete();
+    cacheDir.delete();
+    destDir.delete();
+  }
 }
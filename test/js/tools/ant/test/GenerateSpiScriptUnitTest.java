@@ -0,0 +1,166 @@
+package js.tools.ant.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import js.tools.ant.task.GenerateSpiScript;
+import js.tools.ant.util.SpiIndex;
+import js.tools.commons.util.Files;
+import junit.framework.TestCase;
+
+public class GenerateSpiScriptUnitTest extends TestCase
+{
+  private File scriptFile = new File(System.getProperty("java.io.tmpdir"), "spi.js");
+  private File indexFile = new File(System.getProperty("java.io.tmpdir"), ".spi.js.index");
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    scriptFile.delete();
+    indexFile.delete();
+  }
+
+  public void testParse()
+  {
+    String script = "" + //
+        "$implements(js.dom.Control, js.dom.ControlInterface);\r\n" + //
+        "// $implements(js.fake.Line, js.fake.Service);\r\n" + //
+        "/* $implements(js.fake.Block, js.fake.Service); */\r\n" + //
+        "var url = \"http://server/\"; $implements ( js.format.BitRate , js.format.Format );\r\n" + //
+        "js.lang.Operator = { $implements: function(subClass, superInterface) {} };";
+
+    List<SpiIndex.Declaration> declarations = SpiIndex.parse(script);
+    assertEquals(2, declarations.size());
+    assertEquals("js.dom.ControlInterface", declarations.get(0).getService());
+    assertEquals("js.dom.Control", declarations.get(0).getProvider());
+    assertEquals("js.format.Format", declarations.get(1).getService());
+    assertEquals("js.format.BitRate", declarations.get(1).getProvider());
+  }
+
+  public void testParseRegex()
+  {
+    String script = "" + //
+        "var quote = /\"/g; $implements(js.dom.Control, js.dom.ControlInterface);\r\n" + //
+        "var slash = /[/\"]/; if(x) return /'/.test(s); $implements(js.format.BitRate, js.format.Format);\r\n" + //
+        "var half = width / 2; // \"\r\n" + //
+        "var ratio = (a) / b; $implements(js.ua.Engine, js.ua.Service);";
+
+    List<SpiIndex.Declaration> declarations = SpiIndex.parse(script);
+    assertEquals(3, declarations.size());
+    assertEquals("js.dom.Control", declarations.get(0).getProvider());
+    assertEquals("js.format.BitRate", declarations.get(1).getProvider());
+    assertEquals("js.ua.Engine", declarations.get(2).getProvider());
+  }
+
+  public void testExecute() throws IOException
+  {
+    GenerateSpiScript task = task();
+    task.execute();
+
+    String script = read(scriptFile);
+    assertTrue(script.contains("$package(\"js.lang\");\n"));
+    assertTrue(script.contains("js.lang.ServiceProviders = {\n"));
+    assertTrue(script.contains("  \"js.lang.Iterator\": [\"js.dom.EList.Iterator\", \"js.dom.Node.Iterator\", \"js.lang.Uniterator\"]"));
+    assertTrue(script.contains("\"js.format.Format\": [\"js.format.AbstractDateTime\", \"js.format.BitRate\""));
+    assertTrue(indexFile.exists());
+
+    // second run: script files are not parsed and generated script is not rewritten
+    long lastModified = scriptFile.lastModified() - 2000;
+    scriptFile.setLastModified(lastModified);
+    SpiIndex index = SpiIndex.load(indexFile);
+    for(File file : new File("fixture/build-samsung-tv/context/scripts/lib").listFiles()) {
+      if(file.getName().endsWith(".js")) {
+        index.getDeclarations(file);
+      }
+    }
+    assertEquals(0, index.getParsedCount());
+
+    task().execute();
+    assertEquals(lastModified, scriptFile.lastModified());
+    assertEquals(script, read(scriptFile));
+  }
+
+  public void testChangedRegistry() throws IOException
+  {
+    GenerateSpiScript task = task();
+    task.execute();
+    String script = read(scriptFile);
+
+    task = task();
+    task.setRegistry("Providers");
+    task.execute();
+    assertFalse(script.equals(read(scriptFile)));
+    assertFalse(read(scriptFile).contains("$package"));
+    assertTrue(read(scriptFile).contains("Providers = {\n"));
+  }
+
+  public void testEmptySources() throws IOException
+  {
+    GenerateSpiScript task = task();
+    task.setExcludes("**/*.js");
+    task.execute();
+    assertTrue(read(scriptFile).endsWith("js.lang.ServiceProviders = {};\n"));
+  }
+
+  public void testIndexUpdate() throws IOException
+  {
+    File sourceFile = new File(System.getProperty("java.io.tmpdir"), "spi-source.js");
+    try {
+      write(sourceFile, "$implements(js.test.Provider, js.test.Service);");
+      SpiIndex index = SpiIndex.load(indexFile);
+      assertEquals("js.test.Provider", index.getDeclarations(sourceFile).get(0).getProvider());
+      assertEquals(1, index.getParsedCount());
+      index.save(indexFile);
+
+      // changed modification time but the same content: cached declarations are reused
+      sourceFile.setLastModified(sourceFile.lastModified() + 2000);
+      index = SpiIndex.load(indexFile);
+      assertEquals(1, index.getDeclarations(sourceFile).size());
+      assertEquals(0, index.getParsedCount());
+
+      // changed content: file is parsed again
+      write(sourceFile, "$implements(js.test.OtherProvider, js.test.Service);");
+      assertEquals("js.test.OtherProvider", index.getDeclarations(sourceFile).get(0).getProvider());
+      assertEquals(1, index.getParsedCount());
+
+      // file younger than time granularity changed again on the same time stamp, with the same length
+      long lastModified = sourceFile.lastModified();
+      write(sourceFile, "$implements(js.test.ThirdProvider, js.test.Service);");
+      sourceFile.setLastModified(lastModified);
+      assertEquals("js.test.ThirdProvider", index.getDeclarations(sourceFile).get(0).getProvider());
+      assertEquals(2, index.getParsedCount());
+    }
+    finally {
+      sourceFile.delete();
+    }
+  }
+
+  private GenerateSpiScript task()
+  {
+    GenerateSpiScript task = new GenerateSpiScript();
+    task.setSourcePath("fixture/build-samsung-tv/context/scripts");
+    task.setFile(scriptFile.getAbsolutePath());
+    return task;
+  }
+
+  private static String read(File file) throws IOException
+  {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    Files.copy(file, stream);
+    return stream.toString("UTF-8");
+  }
+
+  private static void write(File file, String content) throws IOException
+  {
+    FileWriter writer = new FileWriter(file);
+    try {
+      writer.write(content);
+    }
+    finally {
+      writer.close();
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package js.tools.ant.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+
+import js.tools.ant.util.Log;
+import js.tools.ant.util.Metrics;
+import junit.framework.TestCase;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.BuildLogger;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+
+public class LogUnitTest extends TestCase
+{
+  private Project project;
+  private ByteArrayOutputStream output;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    output = new ByteArrayOutputStream();
+    DefaultLogger logger = new DefaultLogger();
+    logger.setMessageOutputLevel(Project.MSG_INFO);
+    logger.setOutputPrintStream(new PrintStream(output));
+    logger.setErrorPrintStream(new PrintStream(output));
+    project = new Project();
+    project.addBuildListener(logger);
+  }
+
+  public void testLevelGate()
+  {
+    Log log = new Log(project, LogUnitTest.class);
+    assertTrue(log.isEnabled(Project.MSG_INFO));
+    assertFalse(log.isDebugEnabled());
+
+    final boolean[] invoked = new boolean[1];
+    log.debug(new Log.Message()
+    {
+      @Override
+      public String get()
+      {
+        invoked[0] = true;
+        return "debug";
+      }
+    });
+    assertFalse(invoked[0]);
+
+    log.info(new Log.Message()
+    {
+      @Override
+      public String get()
+      {
+        invoked[0] = true;
+        return "info message";
+      }
+    });
+    assertTrue(invoked[0]);
+    assertTrue(output.toString().contains("info message"));
+  }
+
+  public void testFatal()
+  {
+    Log log = new Log(project, LogUnitTest.class);
+    log.fatal("fatal %s", "message");
+    assertTrue(output.toString().contains("fatal message"));
+  }
+
+  public void testEvent()
+  {
+    Log log = new Log(project, LogUnitTest.class);
+    log.event(Project.MSG_INFO, "upload", "file", "index.htm", "bytes", 2318);
+    assertTrue(output.toString().contains("js.tools.ant.test.LogUnitTest: upload file=index.htm bytes=2318"));
+  }
+
+  public void testNonLoggerListener()
+  {
+    project.addBuildListener(new BuildListener()
+    {
+      public void buildStarted(BuildEvent event)
+      {
+      }
+
+      public void buildFinished(BuildEvent event)
+      {
+      }
+
+      public void targetStarted(BuildEvent event)
+      {
+      }
+
+      public void targetFinished(BuildEvent event)
+      {
+      }
+
+      public void taskStarted(BuildEvent event)
+      {
+      }
+
+      public void taskFinished(BuildEvent event)
+      {
+      }
+
+      public void messageLogged(BuildEvent event)
+      {
+      }
+    });
+    assertTrue(new Log(project, LogUnitTest.class).isDebugEnabled());
+  }
+
+  public void testOutputLevelChange()
+  {
+    Log log = new Log(project, LogUnitTest.class);
+    assertFalse(log.isDebugEnabled());
+    ((DefaultLogger)project.getBuildListeners().get(0)).setMessageOutputLevel(Project.MSG_DEBUG);
+    // output level is cached by logger instance; change is visible to loggers created after it
+    assertFalse(log.isDebugEnabled());
+    assertTrue(new Log(project, LogUnitTest.class).isDebugEnabled());
+  }
+
+  public void testMetricsListener()
+  {
+    project.setProperty(Metrics.FILE_ANT_PROPERTY, new File(System.getProperty("java.io.tmpdir"), "metrics.json").getPath());
+    Metrics metrics = Metrics.getInstance(project);
+    assertTrue(project.getBuildListeners().contains(metrics));
+    assertFalse(new Log(project, LogUnitTest.class).isDebugEnabled());
+  }
+
+  public void testNoListener()
+  {
+    assertFalse(new Log(new Project(), LogUnitTest.class).isEnabled(Project.MSG_ERR));
+  }
+
+  public void testLoggerWithoutOutputLevel()
+  {
+    project.addBuildListener(new BuildLogger()
+    {
+      public void setMessageOutputLevel(int level)
+      {
+      }
+
+      public void setOutputPrintStream(PrintStream output)
+      {
+      }
+
+      public void setEmacsMode(boolean emacsMode)
+      {
+      }
+
+      public void setErrorPrintStream(PrintStream err)
+      {
+      }
+
+      public void buildStarted(BuildEvent event)
+      {
+      }
+
+      public void buildFinished(BuildEvent event)
+      {
+      }
+
+      public void targetStarted(BuildEvent event)
+      {
+      }
+
+      public void targetFinished(BuildEvent event)
+      {
+      }
+
+      public void taskStarted(BuildEvent event)
+      {
+      }
+
+      public void taskFinished(BuildEvent event)
+      {
+      }
+
+      public void messageLogged(BuildEvent event)
+      {
+      }
+    });
+    assertTrue(new Log(project, LogUnitTest.class).isDebugEnabled());
+  }
+}
@@ -0,0 +1,70 @@
+package js.tools.ant.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+
+import js.tools.ant.util.Metrics;
+import junit.framework.TestCase;
+
+import org.apache.tools.ant.Project;
+
+public class MetricsUnitTest extends TestCase
+{
+  private File metricsFile = new File(System.getProperty("java.io.tmpdir"), "metrics.json");
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    metricsFile.delete();
+  }
+
+  public void testDisabled()
+  {
+    Project project = new Project();
+    Metrics metrics = Metrics.getInstance(project);
+    assertFalse(metrics.isEnabled());
+    assertSame(metrics, Metrics.getInstance(project));
+
+    metrics.count("sync.files", 10);
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    metrics.writeJSON(stream);
+    assertEquals("{\"spans\":{},\"counters\":{}}\n", stream.toString());
+  }
+
+  public void testOpenMetrics()
+  {
+    Project project = new Project();
+    project.setProperty(Metrics.FILE_ANT_PROPERTY, metricsFile.getAbsolutePath());
+    Metrics metrics = Metrics.getInstance(project);
+    assertTrue(metrics.isEnabled());
+
+    metrics.start("sync.hash").end();
+    metrics.start("sync.hash").end();
+    metrics.count("sync.files", 10);
+    metrics.count("sync.files", 5);
+
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    metrics.writeOpenMetrics(stream);
+    String text = stream.toString();
+    assertTrue(text.contains("js_ant_span_seconds_count{span=\"sync.hash\"} 2\n"));
+    assertTrue(text.contains("js_ant_total{counter=\"sync.files\"} 15\n"));
+    assertTrue(text.endsWith("# EOF\n"));
+  }
+
+  public void testBuildFinished() throws Exception
+  {
+    Project project = new Project();
+    project.setProperty(Metrics.FILE_ANT_PROPERTY, metricsFile.getAbsolutePath());
+    Metrics metrics = Metrics.getInstance(project);
+    metrics.count("deploy.uploaded.bytes", 2318);
+    project.fireBuildFinished(null);
+
+    assertTrue(metricsFile.exists());
+    FileInputStream stream = new FileInputStream(metricsFile);
+    byte[] content = new byte[(int)metricsFile.length()];
+    stream.read(content);
+    stream.close();
+    assertEquals("{\"spans\":{},\"counters\":{\"deploy.uploaded.bytes\":2318}}\n", new String(content, "UTF-8"));
+  }
+}
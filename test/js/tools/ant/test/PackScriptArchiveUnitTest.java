@@ -0,0 +1,191 @@
+package js.tools.ant.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import js.tools.ant.task.PackScriptArchive;
+import junit.framework.TestCase;
+
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+
+public class PackScriptArchiveUnitTest extends TestCase
+{
+  private File sourceDir = new File(System.getProperty("java.io.tmpdir"), "pack-src");
+  private File archive = new File(System.getProperty("java.io.tmpdir"), "pack.js");
+  private File inputsFile = new File(System.getProperty("java.io.tmpdir"), "pack.js.inputs");
+  private File manifest = new File(System.getProperty("java.io.tmpdir"), "pack.properties");
+  private ByteArrayOutputStream output;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    sourceDir.mkdir();
+    write(new File(sourceDir, "main.js"), "var main;");
+    write(archive, "packed");
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    for(File file : sourceDir.listFiles()) {
+      file.delete();
+    }
+    sourceDir.delete();
+    archive.delete();
+    inputsFile.delete();
+    manifest.delete();
+    for(File file : hashedFiles()) {
+      file.delete();
+    }
+  }
+
+  public void testUpToDate() throws Exception
+  {
+    File source = new File(sourceDir, "main.js");
+    task(false).execute();
+    assertTrue(inputsFile.exists());
+    assertFalse(isUpToDateLogged());
+
+    task(false).execute();
+    assertTrue(isUpToDateLogged());
+
+    // changed size on restored timestamp
+    long lastModified = source.lastModified();
+    write(source, "var main = 1;");
+    source.setLastModified(lastModified);
+    task(false).execute();
+    assertFalse(isUpToDateLogged());
+    task(false).execute();
+    assertTrue(isUpToDateLogged());
+
+    // older file added
+    File added = new File(sourceDir, "added.js");
+    write(added, "var added;");
+    added.setLastModified(lastModified - 60000);
+    task(false).execute();
+    assertFalse(isUpToDateLogged());
+
+    // file removed
+    added.delete();
+    task(false).execute();
+    assertFalse(isUpToDateLogged());
+
+    // changed packer options
+    task(true).execute();
+    assertFalse(isUpToDateLogged());
+    task(true).execute();
+    assertTrue(isUpToDateLogged());
+  }
+
+  public void testMissingArchive() throws Exception
+  {
+    task(false).execute();
+    archive.delete();
+    task(false).execute();
+    assertFalse(isUpToDateLogged());
+  }
+
+  public void testHashed() throws Exception
+  {
+    write(manifest, "widget.js=widget-0123456789.js\n");
+    PackScriptArchive task = task(false);
+    task.setHashed(true);
+    task.setManifest(manifest.getPath());
+    task.execute();
+
+    File[] hashedFiles = hashedFiles();
+    assertEquals(1, hashedFiles.length);
+    File firstHashedFile = hashedFiles[0];
+    // manifest is sorted and has no time stamp comment
+    assertEquals("pack.js=" + firstHashedFile.getName() + "\nwidget.js=widget-0123456789.js\n", read(manifest));
+
+    // changed archive: previous hashed file is removed
+    write(archive, "packed again");
+    task = task(false);
+    task.setHashed(true);
+    task.setManifest(manifest.getPath());
+    task.execute();
+
+    hashedFiles = hashedFiles();
+    assertEquals(1, hashedFiles.length);
+    assertFalse(firstHashedFile.exists());
+    assertEquals("pack.js=" + hashedFiles[0].getName() + "\nwidget.js=widget-0123456789.js\n", read(manifest));
+  }
+
+  public void testOutputsOnSourceDir() throws Exception
+  {
+    // archive, hashed archive and manifest stored on source directory are not inputs
+    File archive = new File(sourceDir, "pack.js");
+    File manifest = new File(sourceDir, "pack.properties");
+    write(archive, "packed");
+    for(int i = 0; i < 2; ++i) {
+      PackScriptArchive task = task(false);
+      task.setFileName(archive.getPath());
+      task.setHashed(true);
+      task.setManifest(manifest.getPath());
+      task.execute();
+    }
+    assertTrue(manifest.exists());
+    assertEquals(1, sourceDir.listFiles(new FileFilter()
+    {
+      @Override
+      public boolean accept(File file)
+      {
+        return file.getName().matches("pack-[0-9a-f]{10}\\.js");
+      }
+    }).length);
+    assertTrue(isUpToDateLogged());
+  }
+
+  private File[] hashedFiles()
+  {
+    return archive.getParentFile().listFiles(new FileFilter()
+    {
+      @Override
+      public boolean accept(File file)
+      {
+        return file.getName().matches("pack-[0-9a-f]{10}\\.js");
+      }
+    });
+  }
+
+  private PackScriptArchive task(boolean nice)
+  {
+    output = new ByteArrayOutputStream();
+    DefaultLogger logger = new DefaultLogger();
+    logger.setMessageOutputLevel(Project.MSG_INFO);
+    logger.setOutputPrintStream(new PrintStream(output));
+    logger.setErrorPrintStream(new PrintStream(output));
+    Project project = new Project();
+    project.addBuildListener(logger);
+
+    PackScriptArchive task = new PackScriptArchive();
+    task.setProject(project);
+    task.setSourcePath(sourceDir.getPath());
+    task.setFileName(archive.getPath());
+    task.setNice(nice);
+    return task;
+  }
+
+  private boolean isUpToDateLogged()
+  {
+    return output.toString().contains("is up to date");
+  }
+
+  private static String read(File file) throws IOException
+  {
+    return new String(java.nio.file.Files.readAllBytes(file.toPath()), "UTF-8");
+  }
+
+  private static void write(File file, String content) throws IOException
+  {
+    FileWriter writer = new FileWriter(file);
+    writer.write(content);
+    writer.close();
+  }
+}
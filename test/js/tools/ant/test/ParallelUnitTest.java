@@ -0,0 +1,100 @@
+package js.tools.ant.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import js.tools.ant.task.Deploy;
+import js.tools.ant.task.Sync;
+import js.tools.ant.util.SyncJournal;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.taskdefs.Parallel;
+
+public class ParallelUnitTest extends AgentTestCase
+{
+  private static final String[] SOURCES = new String[]
+  {
+      "fixture/build-resources/www/de", "fixture/build-resources/www/en", "fixture/build-resources/www/fr", "fixture/build-resources/www/ro", "fixture/build-resources/www/scripts", "fixture/build-resources/www/styles"
+  };
+  private static final int TASKS_COUNT = 24;
+
+  private File journalFile = new File(System.getProperty("java.io.tmpdir"), "parallel.journal");
+  private File cacheFile = new File(System.getProperty("java.io.tmpdir"), "parallel.cache");
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    journalFile.delete();
+    cacheFile.delete();
+  }
+
+  public void testConcurrentTasks() throws Exception
+  {
+    agent.setLatency(1);
+
+    Parallel parallel = new Parallel();
+    parallel.setProject(project);
+    parallel.setThreadCount(8);
+    parallel.setFailOnAny(true);
+    List<Sync> tasks = new ArrayList<Sync>();
+    for(int i = 0; i < TASKS_COUNT; ++i) {
+      Sync sync = new Sync();
+      sync.setProject(project);
+      sync.setHost("localhost");
+      sync.setSource(SOURCES[i % SOURCES.length]);
+      sync.setTarget("target-" + i);
+      sync.setRemoveStaleFiles(true);
+      sync.setJournal(journalFile.getPath());
+      sync.setDigestCache(cacheFile.getPath());
+      if(i % 3 == 0) {
+        sync.setStaged(true);
+      }
+      tasks.add(sync);
+      parallel.addTask(sync);
+    }
+    for(int i = 0; i < 4; ++i) {
+      Deploy deploy = new Deploy();
+      deploy.setProject(project);
+      deploy.setHost("localhost");
+      deploy.setFile("fixture/build-preview-war/hello-world.war");
+      parallel.addTask(deploy);
+    }
+    parallel.execute();
+
+    SyncJournal journal = SyncJournal.load(journalFile);
+    for(int i = 0; i < TASKS_COUNT; ++i) {
+      Set<String> files = files(SOURCES[i % SOURCES.length]);
+      assertEquals(files, agent.getFiles("target-" + i));
+      // no journal update is lost by concurrent saves
+      assertEquals(files, journal.getStaleFiles("localhost:target-" + i, new HashSet<String>()));
+    }
+    assertTrue(agent.isDeployed("hello-world"));
+
+    // tasks attributes are not changed by execution so that the same instances can be executed again
+    long receivedFiles = agent.getReceivedFilesCount();
+    Parallel again = new Parallel();
+    again.setProject(project);
+    again.setThreadCount(8);
+    again.setFailOnAny(true);
+    for(Sync sync : tasks) {
+      again.addTask(sync);
+    }
+    again.execute();
+    assertEquals(receivedFiles, agent.getReceivedFilesCount());
+  }
+
+  private static Set<String> files(String sourceDir)
+  {
+    DirectoryScanner scanner = new DirectoryScanner();
+    scanner.setBasedir(new File(sourceDir));
+    scanner.scan();
+    Set<String> files = new HashSet<String>();
+    for(String file : scanner.getIncludedFiles()) {
+      files.add(file.replace('\\', '/'));
+    }
+    return files;
+  }
+}
@@ -0,0 +1,92 @@
+package js.tools.ant.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import js.tools.ant.util.SyncJournal;
+import junit.framework.TestCase;
+
+public class SyncJournalUnitTest extends TestCase
+{
+  private File journalFile = new File(System.getProperty("java.io.tmpdir"), "sync.journal");
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    journalFile.delete();
+  }
+
+  public void testStaleFiles() throws Exception
+  {
+    SyncJournal journal = SyncJournal.load(journalFile);
+    assertNull(journal.getStaleFiles("js-lib.com", files("index.htm")));
+
+    journal.update("js-lib.com", files("index.htm", "about.htm", "styles/index.css"), Collections.<String> emptySet(), Collections.<String> emptySet());
+    assertTrue(journal.getStaleFiles("js-lib.com", files("index.htm", "about.htm", "styles/index.css", "contact.htm")).isEmpty());
+    assertEquals(files("about.htm", "styles/index.css"), journal.getStaleFiles("js-lib.com", files("index.htm")));
+    assertNull(journal.getStaleFiles("api.js-lib.com", files("index.htm")));
+  }
+
+  public void testMerge() throws Exception
+  {
+    SyncJournal journal = new SyncJournal();
+    journal.update("js-lib.com", files("index.htm", "about.htm"), Collections.<String> emptySet(), Collections.<String> emptySet());
+    journal.merge("js-lib.com", files("index.htm", "contact.htm"));
+    assertEquals(files("about.htm", "contact.htm"), journal.getStaleFiles("js-lib.com", files("index.htm")));
+  }
+
+  public void testSaveAndLoad() throws Exception
+  {
+    SyncJournal journal = new SyncJournal();
+    journal.update("js-lib.com", files("index.htm", "about.htm"), Collections.<String> emptySet(), Collections.<String> emptySet());
+    journal.update("js-lib.com", files("index.htm"), files("about.htm"), files("about.htm"));
+    journal.save(journalFile, 60000);
+
+    journal = SyncJournal.load(journalFile);
+    assertEquals(files("index.htm"), journal.getStaleFiles("js-lib.com", files("about.htm")));
+    assertEquals(Arrays.asList("about.htm"), journal.getRemovedFiles("js-lib.com"));
+  }
+
+  public void testUnconfirmedRemoval() throws Exception
+  {
+    SyncJournal journal = new SyncJournal();
+    journal.update("js-lib.com", files("index.htm", "about.htm", "contact.htm"), Collections.<String> emptySet(), Collections.<String> emptySet());
+    // agent confirmed only about.htm as removed; contact.htm removal is retried on next run
+    journal.update("js-lib.com", files("index.htm"), files("about.htm", "contact.htm"), files("about.htm"));
+    assertEquals(files("contact.htm"), journal.getStaleFiles("js-lib.com", files("index.htm")));
+    assertEquals(Arrays.asList("about.htm"), journal.getRemovedFiles("js-lib.com"));
+  }
+
+  public void testScanTime() throws Exception
+  {
+    SyncJournal journal = new SyncJournal();
+    assertEquals(0, journal.getScanTime("js-lib.com"));
+    journal.setScanTime("js-lib.com", 1234);
+    journal.save(journalFile, 60000);
+
+    // scan time is preserved even if target directory has no files recorded
+    journal = SyncJournal.load(journalFile);
+    assertEquals(1234, journal.getScanTime("js-lib.com"));
+    assertNull(journal.getStaleFiles("js-lib.com", files("index.htm")));
+  }
+
+  public void testRetention() throws Exception
+  {
+    SyncJournal journal = new SyncJournal();
+    journal.update("js-lib.com", files("index.htm"), files("about.htm"), files("about.htm"));
+    Thread.sleep(10);
+    journal.save(journalFile, 0);
+
+    journal = SyncJournal.load(journalFile);
+    assertTrue(journal.getRemovedFiles("js-lib.com").isEmpty());
+    assertTrue(journal.getStaleFiles("js-lib.com", files("index.htm")).isEmpty());
+  }
+
+  private static Set<String> files(String... files)
+  {
+    return new HashSet<String>(Arrays.asList(files));
+  }
+}
@@ -0,0 +1,107 @@
+package js.tools.ant.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import js.tools.ant.task.Sync;
+import js.tools.ant.util.Agent;
+import js.tools.ant.util.Utils;
+import junit.framework.TestCase;
+
+import org.apache.tools.ant.Project;
+
+/**
+ * Load test for synchronization task against {@link AgentStandIn} registered in-process. Generates source trees of
+ * small files and measures first synchronization, when all files are dirty, and second one, when all files are clean.
+ * Tree sizes are configured by <code>js.load.sizes</code> system property as comma separated files count, default to
+ * 1000; latency and bandwidth added by stand-in are configured by <code>js.load.latency</code>, in milliseconds, and
+ * <code>js.load.bandwidth</code>, in kilobytes per second. This test is not part of unit tests suite; run it
+ * explicitly, e.g. <code>-Djs.load.sizes=1000,10000,100000,1000000</code>.
+ * 
+ * @author Iulian Rotaru
+ * @since 1.0
+ */
+public class SyncLoadTest extends TestCase
+{
+  private static final int FILES_PER_DIRECTORY = 1000;
+  private static final int FILE_SIZE = 512;
+
+  public void testLoad() throws IOException
+  {
+    long latency = Long.getLong("js.load.latency", 0);
+    int bandwidth = Integer.getInteger("js.load.bandwidth", 0);
+
+    for(String size : System.getProperty("js.load.sizes", "1000").split(",")) {
+      int filesCount = Integer.parseInt(size.trim());
+      File sourceDir = new File(System.getProperty("java.io.tmpdir"), "js-load-" + filesCount);
+      try {
+        generateTree(sourceDir, filesCount);
+
+        Project project = new Project();
+        project.setBaseDir(new File("."));
+        String url = Utils.URL(false, "localhost", "server");
+        AgentStandIn agent = new AgentStandIn(url);
+        agent.setLatency(latency);
+        agent.setBandwidth(bandwidth);
+        Agent.register(project, url, agent);
+
+        Sync sync = new Sync();
+        sync.setProject(project);
+        sync.setHost("localhost");
+        sync.setSource(sourceDir.getAbsolutePath());
+        sync.setTarget("load");
+
+        report("dirty", filesCount, agent, sync);
+        report("clean", filesCount, agent, sync);
+        assertEquals(filesCount, agent.getFiles("load").size());
+      }
+      finally {
+        delete(sourceDir);
+      }
+    }
+  }
+
+  private static void report(String run, int filesCount, AgentStandIn agent, Sync sync)
+  {
+    long receivedBytes = agent.getReceivedBytes();
+    long start = System.nanoTime();
+    sync.execute();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    double megabytes = (agent.getReceivedBytes() - receivedBytes) / (1024.0 * 1024.0);
+    System.out.printf("%s: files=%d seconds=%.3f files/s=%.0f MB/s=%.2f%n", run, filesCount, seconds, filesCount / seconds, megabytes / seconds);
+  }
+
+  private static void delete(File file)
+  {
+    File[] files = file.listFiles();
+    if(files != null) {
+      for(File child : files) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static void generateTree(File sourceDir, int filesCount) throws IOException
+  {
+    Random random = new Random(filesCount);
+    byte[] content = new byte[FILE_SIZE];
+    for(int i = 0; i < filesCount; ++i) {
+      File dir = new File(sourceDir, String.format("d%04d", i / FILES_PER_DIRECTORY));
+      if(i % FILES_PER_DIRECTORY == 0) {
+        dir.mkdirs();
+      }
+      random.nextBytes(content);
+      OutputStream stream = new FileOutputStream(new File(dir, String.format("f%04d.bin", i % FILES_PER_DIRECTORY)));
+      try {
+        stream.write(content);
+      }
+      finally {
+        stream.close();
+      }
+    }
+  }
+}
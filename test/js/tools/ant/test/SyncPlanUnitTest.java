@@ -0,0 +1,79 @@
+package js.tools.ant.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import js.tools.ant.util.SyncPlan;
+import junit.framework.TestCase;
+
+public class SyncPlanUnitTest extends TestCase
+{
+  private File baseDir = new File("fixture/build-samsung-tv/context").getAbsoluteFile();
+  private File planFile = new File(System.getProperty("java.io.tmpdir"), "sync.plan");
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    planFile.delete();
+  }
+
+  public void testSaveAndLoad() throws Exception
+  {
+    Map<String, File> baseDirs = new HashMap<String, File>();
+    baseDirs.put("index.htm", baseDir);
+    baseDirs.put("styles/index.css", baseDir);
+    baseDirs.put("styles/reset.css", baseDir);
+
+    SyncPlan plan = new SyncPlan();
+    plan.addTarget("js-lib.com/site", baseDirs, Arrays.asList("styles/index.css", "index.htm"), Arrays.asList("about.htm"), 1);
+    plan.save(planFile);
+
+    plan = SyncPlan.load(planFile);
+    assertEquals(1, plan.getTargetDirs().size());
+    assertEquals("js-lib.com/site", plan.getTargetDirs().iterator().next());
+    assertEquals(2, plan.getUploadCount("js-lib.com/site"));
+    assertEquals(1, plan.getUnchangedCount("js-lib.com/site"));
+    assertEquals(new File(baseDir, "styles/index.css").length() + new File(baseDir, "index.htm").length(), plan.getUploadBytes("js-lib.com/site"));
+
+    Map<String, File> uploadFiles = plan.getUploadFiles("js-lib.com/site");
+    assertEquals(Arrays.asList("styles/index.css", "index.htm"), Arrays.asList(uploadFiles.keySet().toArray()));
+    assertEquals(baseDir, uploadFiles.get("index.htm"));
+    assertEquals(Arrays.asList("about.htm"), plan.getRemoveFiles("js-lib.com/site"));
+  }
+
+  public void testChangedFile() throws Exception
+  {
+    FileWriter writer = new FileWriter(planFile);
+    writer.write("target\tjs-lib.com/site\t0\n");
+    writer.write("upload\tindex.htm\t" + baseDir.getPath() + "\t1\t1\n");
+    writer.close();
+
+    SyncPlan plan = SyncPlan.load(planFile);
+    try {
+      plan.getUploadFiles("js-lib.com/site");
+    }
+    catch(IOException e) {
+      return;
+    }
+    fail("Changed file should rise IO exception.");
+  }
+
+  public void testInvalidPlan() throws Exception
+  {
+    FileWriter writer = new FileWriter(planFile);
+    writer.write("upload\tindex.htm\t" + baseDir.getPath() + "\t1\t1\n");
+    writer.close();
+
+    try {
+      SyncPlan.load(planFile);
+    }
+    catch(IOException e) {
+      return;
+    }
+    fail("Upload record without target should rise IO exception.");
+  }
+}
@@ -1,23 +1,545 @@
 package js.tools.ant.test;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import js.tools.ant.task.Rollback;
 import js.tools.ant.task.Sync;
-import junit.framework.TestCase;
+import js.tools.ant.util.Agent;
+import js.tools.ant.util.DigestCache;
+import js.tools.ant.util.SyncPlan;
+import js.tools.ant.util.Utils;
+import js.tools.commons.rmi.FilesOutputStream;
+import js.tools.commons.rmi.StreamHandler;
+import js.tools.commons.util.Classes;
+import js.tools.commons.util.Files;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.ZipFileSet;
+import org.apache.tools.ant.types.resources.FileResource;
 
-public class SyncUnitTest extends TestCase
+public class SyncUnitTest extends AgentTestCase
 {
+  public void testSingleNotExistingFile()
+  {
+    Sync sync = new Sync();
+    sync.setProject(project);
+    sync.setHost("localhost");
+    sync.setSource("fixture/sync/single.zip");
+    sync.setTarget("js-lib.com/libraries");
+    sync.execute();
 
-  @Override
-  protected void setUp() throws Exception
+    assertTrue(agent.getFiles("js-lib.com/libraries").contains("js-lib.zip"));
+    assertEquals(1, agent.getReceivedFilesCount());
+  }
+
+  public void testUnchangedFiles()
   {
-    super.setUp();
+    Sync sync = new Sync();
+    sync.setProject(project);
+    sync.setHost("localhost");
+    sync.setSource("fixture/build-resources/www/ro");
+    sync.setTarget("js-lib.com/ro");
+    sync.execute();
+    long receivedFiles = agent.getReceivedFilesCount();
+    assertTrue(receivedFiles > 0);
+
+    // second synchronization finds all files clean and does not upload anything
+    sync.execute();
+    assertEquals(receivedFiles, agent.getReceivedFilesCount());
   }
 
-  public void testSingleNotExistingFile()
+  public void testDigestNegotiation()
+  {
+    Sync sync = new Sync();
+    sync.setProject(project);
+    sync.setHost("localhost");
+    sync.setSource("fixture/build-resources/www/ro");
+    sync.setTarget("js-lib.com/ro");
+    agent.setDigestAlgorithms("SHA-256");
+    sync.execute();
+    assertEquals("SHA-256", agent.getDigestAlgorithm());
+    long receivedFiles = agent.getReceivedFilesCount();
+
+    // agent not supporting digest negotiation: fall back to default digest and still find all files clean
+    agent.setDigestAlgorithms();
+    sync.execute();
+    assertEquals(Agent.DEFAULT_DIGEST_ALGORITHM, agent.getDigestAlgorithm());
+    assertEquals(receivedFiles, agent.getReceivedFilesCount());
+  }
+
+  public void testFastDigest()
+  {
+    File cacheFile = new File(System.getProperty("java.io.tmpdir"), "sync.cache");
+    cacheFile.delete();
+
+    Sync sync = new Sync();
+    sync.setProject(project);
+    sync.setHost("localhost");
+    sync.setSource("fixture/build-resources/www/ro");
+    sync.setTarget("js-lib.com/ro");
+    sync.setDigestCache(cacheFile.getPath());
+    try {
+      // empty target: all files are dirty on fast pass and are not hashed with SHA-256
+      sync.execute();
+      long files = agent.getReceivedFilesCount();
+      assertTrue(files > 0);
+      assertEquals(files, agent.getComparedFilesCount(Agent.FAST_DIGEST_ALGORITHM));
+      assertEquals(0, agent.getComparedFilesCount("SHA-256"));
+
+      // files not cached yet: equal fast digests are confirmed by SHA-256
+      sync.execute();
+      assertEquals(2 * files, agent.getComparedFilesCount(Agent.FAST_DIGEST_ALGORITHM));
+      assertEquals(files, agent.getComparedFilesCount("SHA-256"));
+      assertEquals(files, agent.getReceivedFilesCount());
+
+      // cached digests skip fast pass
+      sync.execute();
+      assertEquals(2 * files, agent.getComparedFilesCount(Agent.FAST_DIGEST_ALGORITHM));
+      assertEquals(2 * files, agent.getComparedFilesCount("SHA-256"));
+      assertEquals(files, agent.getReceivedFilesCount());
+    }
+    finally {
+      cacheFile.delete();
+    }
+  }
+
+  public void testStagedSync() throws Exception
+  {
+    Sync sync = new Sync();
+    sync.setProject(project);
+    sync.setHost("localhost");
+    sync.setSource("fixture/build-resources/www/ro");
+    sync.setTarget("js-lib.com/ro");
+    sync.setStaged(true);
+    sync.execute();
+
+    Set<String> files = agent.getFiles("js-lib.com/ro");
+    assertFalse(files.isEmpty());
+    assertFalse(agent.hasStagingDirectory("js-lib.com/ro"));
+
+    // rollback restores target directory replaced by staged synchronization, that is, empty directory
+    Rollback rollback = new Rollback();
+    rollback.setProject(project);
+    rollback.setHost("localhost");
+    rollback.setTarget("js-lib.com/ro");
+    rollback.execute();
+    assertTrue(agent.getFiles("js-lib.com/ro").isEmpty());
+
+    // nothing to restore after rollback; target directory is not changed
+    rollback.execute();
+    assertTrue(agent.getFiles("js-lib.com/ro").isEmpty());
+  }
+
+  public void testNoOpStagedSync()
+  {
+    register(new AgentStandIn(AGENT_URL)
+    {
+      @Override
+      public String createStagingDirectory(String targetDir) throws Exception
+      {
+        if(getFiles(targetDir).isEmpty()) {
+          return super.createStagingDirectory(targetDir);
+        }
+        throw new AssertionError("Staging directory created for unchanged target.");
+      }
+    });
+
+    Sync sync = new Sync();
+    sync.setProject(project);
+    sync.setHost("localhost");
+    sync.setSource("fixture/build-resources/www/ro");
+    sync.setTarget("js-lib.com/ro");
+    sync.setStaged(true);
+    sync.execute();
+    long receivedFiles = agent.getReceivedFilesCount();
+
+    // second staged synchronization finds all files clean and does not create staging directory
+    sync.execute();
+    assertEquals(receivedFiles, agent.getReceivedFilesCount());
+    assertFalse(agent.hasStagingDirectory("js-lib.com/ro"));
+  }
+
+  public void testStagedSyncFailure()
+  {
+    register(new AgentStandIn(AGENT_URL)
+    {
+      @Override
+      public void synchronize(String targetDir, StreamHandler<FilesOutputStream> files) throws Exception
+      {
+        throw new IOException("Upload failure.");
+      }
+    });
+
+    Sync sync = new Sync();
+    sync.setProject(project);
+    sync.setHost("localhost");
+    sync.setSource("fixture/build-resources/www/ro");
+    sync.setTarget("js-lib.com/ro");
+    sync.setStaged(true);
+    try {
+      sync.execute();
+      fail("Upload failure should be reported as build exception.");
+    }
+    catch(BuildException e) {
+      // failed upload removes staging directory and leaves target directory unchanged
+      assertFalse(agent.hasStagingDirectory("js-lib.com/ro"));
+      assertTrue(agent.getFiles("js-lib.com/ro").isEmpty());
+    }
+  }
+
+  public void testStaleFilesRemoval()
+  {
+    File journalFile = new File(System.getProperty("java.io.tmpdir"), "sync.journal");
+    journalFile.delete();
+
+    // populate target directory with files not synchronized by journaled synchronization
+    Sync foreignSync = new Sync();
+    foreignSync.setProject(project);
+    foreignSync.setHost("localhost");
+    foreignSync.setSource("fixture/build-resources/www");
+    foreignSync.setTarget("js-lib.com/ro");
+    foreignSync.execute();
+    Set<String> foreignFiles = agent.getFiles("js-lib.com/ro");
+
+    Sync sync = new Sync();
+    sync.setProject(project);
+    sync.setHost("localhost");
+    sync.setSource("fixture/build-resources/www/ro");
+    sync.setTarget("js-lib.com/ro");
+    sync.setRemoveStaleFiles(true);
+    sync.setJournal(journalFile.getPath());
+    try {
+      // first run scans target directory and removes files not known by journal
+      sync.execute();
+      assertEquals(1, agent.getScansCount());
+      Set<String> files = agent.getFiles("js-lib.com/ro");
+      assertTrue(files.size() < foreignFiles.size());
+      assertTrue(files.contains("index.htm"));
+      assertFalse(files.contains("ro/index.htm"));
+
+      // journal predicts no stale files; target directory is not scanned again before scan interval
+      foreignSync.execute();
+      sync.execute();
+      assertEquals(1, agent.getScansCount());
+      assertTrue(agent.getFiles("js-lib.com/ro").contains("ro/index.htm"));
+
+      // zero scan interval scans target directory on every run
+      sync.setScanInterval(0);
+      sync.execute();
+      assertEquals(2, agent.getScansCount());
+      assertEquals(files, agent.getFiles("js-lib.com/ro"));
+    }
+    finally {
+      journalFile.delete();
+    }
+  }
+
+  public void testLegacyStaleFilesRemoval()
+  {
+    agent.setStaleFilesScan(false);
+    File journalFile = new File(System.getProperty("java.io.tmpdir"), "sync.journal");
+    journalFile.delete();
+
+    Sync foreignSync = new Sync();
+    foreignSync.setProject(project);
+    foreignSync.setHost("localhost");
+    foreignSync.setSource("fixture/build-resources/www");
+    foreignSync.setTarget("js-lib.com/ro");
+    foreignSync.execute();
+
+    Sync sync = new Sync();
+    sync.setProject(project);
+    sync.setHost("localhost");
+    sync.setSource("fixture/build-resources/www/ro");
+    sync.setTarget("js-lib.com/ro");
+    sync.setRemoveStaleFiles(true);
+    sync.setJournal(journalFile.getPath());
+    try {
+      // agent without stale files scan removes stale files while comparing files, on every run
+      sync.execute();
+      Set<String> files = agent.getFiles("js-lib.com/ro");
+      assertTrue(files.contains("index.htm"));
+      assertFalse(files.contains("ro/index.htm"));
+      assertEquals(0, agent.getScansCount());
+
+      foreignSync.execute();
+      sync.execute();
+      assertEquals(files, agent.getFiles("js-lib.com/ro"));
+    }
+    finally {
+      journalFile.delete();
+    }
+  }
+
+  public void testDryRunStaleFiles() throws Exception
+  {
+    File planFile = new File(System.getProperty("java.io.tmpdir"), "sync.plan");
+
+    Sync foreignSync = new Sync();
+    foreignSync.setProject(project);
+    foreignSync.setHost("localhost");
+    foreignSync.setSource("fixture/build-resources/www");
+    foreignSync.setTarget("js-lib.com/ro");
+    foreignSync.execute();
+    Set<String> foreignFiles = agent.getFiles("js-lib.com/ro");
+
+    Sync sync = new Sync();
+    sync.setProject(project);
+    sync.setHost("localhost");
+    sync.setSource("fixture/build-resources/www/ro");
+    sync.setTarget("js-lib.com/ro");
+    sync.setRemoveStaleFiles(true);
+    sync.setDryRun(true);
+    sync.setPlan(planFile.getPath());
+    try {
+      // dry run records stale files into plan and does not change target directory
+      sync.execute();
+      assertEquals(foreignFiles, agent.getFiles("js-lib.com/ro"));
+      SyncPlan plan = SyncPlan.load(planFile);
+      List<String> removeFiles = plan.getRemoveFiles("js-lib.com/ro");
+      assertTrue(removeFiles.contains("ro/index.htm"));
+      assertFalse(removeFiles.contains("index.htm"));
+
+      // plan execution removes planned stale files
+      sync.setDryRun(false);
+      sync.execute();
+      Set<String> files = agent.getFiles("js-lib.com/ro");
+      for(String file : removeFiles) {
+        assertFalse(files.contains(file));
+      }
+      assertTrue(files.contains("index.htm"));
+    }
+    finally {
+      planFile.delete();
+    }
+  }
+
+  public void testWirePath() throws Exception
+  {
+    AgentServer server = new AgentServer(new File("fixture/agent-server/sync"));
+    try {
+      Sync sync = new Sync();
+      sync.setProject(project);
+      sync.setHost(server.getHost());
+      sync.setSource("fixture/build-resources/www/ro");
+      sync.setTarget("js-lib.com/ro");
+      sync.setStaged(true);
+      sync.setRemoveStaleFiles(true);
+      sync.execute();
+      List<String> requests = server.getRequests();
+      assertEquals("getDigestAlgorithms", requests.get(0));
+      assertTrue(requests.contains("getDirtyFilesByDigest"));
+      assertTrue(requests.indexOf("removeFiles") > requests.indexOf("createStagingDirectory"));
+      assertTrue(requests.indexOf("synchronize") > requests.indexOf("createStagingDirectory"));
+      assertEquals("switchStagingDirectory", requests.get(requests.size() - 1));
+
+      // remote exception is reported as build exception
+      server.setFixtureDir(new File("fixture/agent-server/sync-failure"));
+      try {
+        sync.execute();
+        fail("Remote exception should be reported as build exception.");
+      }
+      catch(BuildException expected) {}
+    }
+    finally {
+      server.close();
+    }
+  }
+
+  public void testLegacyWirePath() throws Exception
+  {
+    // agent without digest negotiation answers not found status; files are compared by default digest
+    AgentServer server = new AgentServer(new File("fixture/agent-server/sync-legacy"));
+    try {
+      Sync sync = new Sync();
+      sync.setProject(project);
+      sync.setHost(server.getHost());
+      sync.setSource("fixture/build-resources/www/ro");
+      sync.setTarget("js-lib.com/ro");
+      sync.execute();
+      assertEquals(Arrays.asList("getDigestAlgorithms", "getDirtyFiles"), server.getRequests());
+    }
+    finally {
+      server.close();
+    }
+  }
+
+  public void testThreads()
+  {
+    agent.setLatency(50);
+
+    Sync sync = new Sync();
+    sync.setProject(project);
+    sync.setHost("localhost");
+    sync.setThreads(2);
+    for(int i = 0; i < 6; ++i) {
+      Sync.Mapping mapping = sync.createTarget();
+      mapping.setSource("fixture/sync/single.zip");
+      mapping.setTarget("js-lib.com/libraries-" + i);
+    }
+    sync.execute();
+
+    for(int i = 0; i < 6; ++i) {
+      assertTrue(agent.getFiles("js-lib.com/libraries-" + i).contains("js-lib.zip"));
+    }
+    assertTrue(agent.getMaxConcurrentInvocations() <= 2);
+  }
+
+  public void testBadThreads()
   {
     Sync sync = new Sync();
     sync.setHost("localhost");
     sync.setSource("fixture/sync/single.zip");
+    sync.setThreads(0);
+    try {
+      sync.execute();
+    }
+    catch(BuildException e) {
+      assertEquals("js.tools.ant.task.Sync: Threads count should be positive. Please fix <threads> attribute. See http://api.js-lib.com/js-ant/js/tools/ant/task/Sync.html", e.getMessage());
+      return;
+    }
+    fail("Executing Sync task with zero threads should rise BuildException.");
+  }
+
+  public void testAgentFailure()
+  {
+    agent.setFailureRate(1);
+
+    Sync sync = new Sync();
+    sync.setProject(project);
+    sync.setHost("localhost");
+    sync.setSource("fixture/sync/single.zip");
     sync.setTarget("js-lib.com/libraries");
-    sync.execute();
+    try {
+      sync.execute();
+      fail("Agent failure should be reported as build exception.");
+    }
+    catch(BuildException e) {
+      assertTrue(agent.getFiles("js-lib.com/libraries").isEmpty());
+    }
+  }
+
+  public void testScan() throws Throwable
+  {
+    Sync sync = new Sync();
+    sync.setIncludes("**/*.css, .js");
+    sync.setExcludes("**/scripts/lib/**");
+    Sync.Mapping mapping = sync.createTarget();
+    mapping.setSource("fixture/build-resources/www/ro");
+
+    Map<String, File> files = Classes.invoke(sync, "scan", mapping);
+    assertTrue(files.containsKey("styles/page.css"));
+    assertTrue(files.containsKey("scripts/ListCtrl-001.js"));
+    assertTrue(files.containsKey("scripts/src/js/hood/TopMenu.js"));
+    assertFalse(files.containsKey("scripts/lib/paging/paging.js"));
+    assertFalse(files.containsKey("videos.htm"));
+    assertFalse(files.containsKey("images/next-page.png"));
+  }
+
+  public void testScanResources() throws Throwable
+  {
+    Sync sync = new Sync();
+    sync.setProject(project);
+
+    FileSet fileset = new FileSet();
+    fileset.setProject(project);
+    fileset.setDir(new File("fixture/build-resources/www/ro"));
+    fileset.setIncludes("styles/*.css");
+    ZipFileSet zipfileset = new ZipFileSet();
+    zipfileset.setProject(project);
+    zipfileset.setSrc(new File("fixture/sync/single.zip/js-lib.zip"));
+
+    Sync.Mapping mapping = sync.createTarget();
+    mapping.add(fileset);
+    mapping.add(zipfileset);
+
+    // zip entries are not files with base directory and are streamed on upload
+    Map<String, File> files = Classes.invoke(sync, "scan", mapping);
+    assertTrue(files.containsKey("styles/page.css"));
+    assertFalse(files.containsKey("js-lib.xml"));
+
+    int zipEntries = 0;
+    for(Resource resource : zipfileset) {
+      assertFalse(Utils.isBaseDirFile(resource));
+      ++zipEntries;
+    }
+    assertTrue(zipEntries > 0);
+  }
+
+  public void testResourceDigest() throws Throwable
+  {
+    File file = new File("fixture/build-resources/www/ro/styles/page.css");
+    FileResource resource = new FileResource(file);
+    assertTrue(Arrays.equals(Files.getFileDigest(file), Utils.getResourceDigest(resource)));
+  }
+
+  public void testArchiveEntriesFilter() throws Throwable
+  {
+    Sync sync = new Sync();
+    sync.setIncludes("**/*.xml");
+    sync.setExcludes("strings_*.xml, lib/");
+    assertTrue((Boolean)Classes.invoke(sync, "isIncluded", "js-lib.xml"));
+    assertFalse((Boolean)Classes.invoke(sync, "isIncluded", "strings_en.xml"));
+    assertFalse((Boolean)Classes.invoke(sync, "isIncluded", "lib/js-lib.xml"));
+    assertFalse((Boolean)Classes.invoke(sync, "isIncluded", "index.htm"));
+  }
+
+  public void testArchiveEntryDigestKey() throws Throwable
+  {
+    File archiveFile = new File(System.getProperty("java.io.tmpdir"), "entries.zip");
+    File cacheFile = new File(System.getProperty("java.io.tmpdir"), "entries.cache");
+    try {
+      byte[] content = "<h1>Hello</h1>".getBytes("UTF-8");
+      DigestCache cache = DigestCache.getInstance(null, cacheFile);
+      writeArchive(archiveFile, content, 1000000000000L);
+      byte[] digest = getEntryDigest(archiveFile, cache);
+      assertTrue(Arrays.equals(digest, getEntryDigest(archiveFile, cache)));
+      assertEquals(1, cache.getHits());
+
+      // entry rewritten with the same size and CRC but different time: cached digest is not used
+      writeArchive(archiveFile, content, 1000000010000L);
+      assertTrue(Arrays.equals(digest, getEntryDigest(archiveFile, cache)));
+      assertEquals(1, cache.getHits());
+    }
+    finally {
+      archiveFile.delete();
+      cacheFile.delete();
+    }
+  }
+
+  private static byte[] getEntryDigest(File archiveFile, DigestCache cache) throws Exception
+  {
+    ZipFile archive = new ZipFile(archiveFile);
+    try {
+      return Classes.invoke(new Sync(), "getEntryDigest", archive, archiveFile, archive.getEntry("index.htm"), "SHA-256", cache);
+    }
+    finally {
+      archive.close();
+    }
+  }
+
+  private static void writeArchive(File archiveFile, byte[] content, long time) throws IOException
+  {
+    ZipOutputStream archive = new ZipOutputStream(new FileOutputStream(archiveFile));
+    try {
+      ZipEntry entry = new ZipEntry("index.htm");
+      entry.setTime(time);
+      archive.putNextEntry(entry);
+      archive.write(content);
+    }
+    finally {
+      archive.close();
+    }
   }
 }
@@ -0,0 +1,124 @@
+package js.tools.ant.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import js.tools.ant.util.ThrottledInputStream;
+import js.tools.ant.util.ThrottledOutputStream;
+import js.tools.ant.util.TokenBucket;
+import js.tools.ant.util.UploadOrder;
+import junit.framework.TestCase;
+
+public class TokenBucketUnitTest extends TestCase
+{
+  private static final long NANOS_PER_SECOND = 1000000000L;
+
+  public void testBurst() throws Exception
+  {
+    SimulatedClock clock = new SimulatedClock();
+    TokenBucket bucket = new TokenBucket(1024, 64 * 1024, clock);
+    bucket.acquire(64 * 1024);
+    assertEquals(0, clock.time);
+
+    // empty bucket: next kilobyte waits one second
+    bucket.acquire(1024);
+    assertEquals(NANOS_PER_SECOND, clock.time);
+  }
+
+  public void testRate() throws Exception
+  {
+    SimulatedClock clock = new SimulatedClock();
+    TokenBucket bucket = new TokenBucket(100 * 1024, 10 * 1024, clock);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ThrottledOutputStream stream = new ThrottledOutputStream(bytes, bucket);
+
+    byte[] buffer = new byte[1024];
+    for(int i = 0; i < 60; ++i) {
+      stream.write(buffer);
+    }
+    stream.close();
+
+    // first 10KB are sent in burst and remaining 50KB at 100KB per second
+    assertEquals(60 * 1024, bytes.size());
+    assertEquals(NANOS_PER_SECOND / 2, clock.time);
+  }
+
+  public void testInputRate() throws Exception
+  {
+    SimulatedClock clock = new SimulatedClock();
+    TokenBucket bucket = new TokenBucket(100 * 1024, 10 * 1024, clock);
+    ThrottledInputStream stream = new ThrottledInputStream(new ByteArrayInputStream(new byte[60 * 1024]), bucket);
+
+    // bytes are acquired while read, not upfront: half of content is read after 20KB sent at rate
+    byte[] buffer = new byte[1024];
+    for(int i = 0; i < 30; ++i) {
+      assertEquals(1024, stream.read(buffer));
+    }
+    assertEquals(NANOS_PER_SECOND / 5, clock.time);
+
+    while(stream.read(buffer) != -1) {
+    }
+    stream.close();
+    assertEquals(NANOS_PER_SECOND / 2, clock.time);
+  }
+
+  public void testRefill() throws Exception
+  {
+    SimulatedClock clock = new SimulatedClock();
+    TokenBucket bucket = new TokenBucket(1024, 4 * 1024, clock);
+    bucket.acquire(4 * 1024);
+
+    // idle time refills bucket up to its capacity
+    clock.time += 10 * NANOS_PER_SECOND;
+    bucket.acquire(4 * 1024);
+    assertEquals(10 * NANOS_PER_SECOND, clock.time);
+
+    clock.time += NANOS_PER_SECOND / 2;
+    bucket.acquire(1024);
+    assertEquals(11 * NANOS_PER_SECOND, clock.time);
+  }
+
+  public void testCreate()
+  {
+    assertNull(TokenBucket.create(0, 100));
+    assertNotNull(TokenBucket.create(100, 0));
+  }
+
+  public void testUploadOrder()
+  {
+    File baseDir = new File("fixture/build-samsung-tv/context");
+    List<String> files = Arrays.asList("index.htm", "styles/index.css", "styles/reset.css", "scripts/lib/js-lib-1.3.4.dev.js");
+
+    assertSame(files, UploadOrder.NONE.sort(baseDir, files));
+
+    List<String> sortedFiles = UploadOrder.HTML_LAST.sort(baseDir, files);
+    assertEquals("styles/index.css", sortedFiles.get(0));
+    assertEquals("index.htm", sortedFiles.get(3));
+
+    sortedFiles = UploadOrder.SMALLEST_FIRST.sort(baseDir, files);
+    assertEquals("scripts/lib/js-lib-1.3.4.dev.js", sortedFiles.get(3));
+
+    assertEquals(UploadOrder.SMALLEST_FIRST, UploadOrder.forValue("smallest-first"));
+    assertEquals(UploadOrder.HTML_LAST, UploadOrder.forValue("HTML-last"));
+  }
+
+  private static class SimulatedClock implements TokenBucket.Clock
+  {
+    long time;
+
+    @Override
+    public long nanoTime()
+    {
+      return time;
+    }
+
+    @Override
+    public void sleep(long nanos)
+    {
+      time += nanos;
+    }
+  }
+}